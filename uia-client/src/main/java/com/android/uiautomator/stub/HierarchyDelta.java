@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Changes of window hierarchy since the one a session got last, see
+ * {@link IUiDevice#dumpWindowHierarchyDelta(long, long, boolean)}.
+ *
+ * A hierarchy is a sorted map of nodes by path. A path is the indexes of node and its ancestors from root, one char
+ * per index, so sorting paths as strings lists nodes in pre-order, parent before children, and a node's path is the
+ * prefix of all its descendants' paths. A node is its attribute values, in the order of {@link #ATTRIBUTES}, same as
+ * uiautomator dump.
+ *
+ * A delta lists removed subtrees by path, and inserted or modified nodes. When the base version does not match, such
+ * as for a new session, the delta is a full hierarchy, with base 0.
+ *
+ * @author linsong wang
+ */
+public class HierarchyDelta {
+
+    public static final int VERSION = 1;
+
+    /**
+     * Number of sessions kept on device, the least recently used one is dropped when there are too many.
+     */
+    public static final int MAX_SESSIONS = 8;
+
+    public static final String[] ATTRIBUTES = new String[]{"index", "text", "resource-id", "class", "package",
+        "content-desc", "checkable", "checked", "clickable", "enabled", "focusable", "focused", "scrollable",
+        "long-clickable", "password", "selected", "bounds"};
+
+    public static final int INDEX_CLASS = 3;
+
+    private final long session;
+
+    private final long base;
+
+    private final long version;
+
+    private final String rotation;
+
+    private final List<String> removed;
+
+    private final Map<String, String[]> nodes;
+
+    public HierarchyDelta(long session, long base, long version, String rotation, List<String> removed,
+        Map<String, String[]> nodes) {
+        this.session = session;
+        this.base = base;
+        this.version = version;
+        this.rotation = rotation;
+        this.removed = removed;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Compares two hierarchies.
+     *
+     * @param session  session id
+     * @param base     version of old hierarchy, 0 for a full hierarchy
+     * @param version  version of new hierarchy
+     * @param rotation display rotation
+     * @param old      old hierarchy, ignored if base is 0
+     * @param now      new hierarchy
+     *
+     * @return delta from old to new
+     */
+    public static HierarchyDelta diff(long session, long base, long version, String rotation,
+        SortedMap<String, String[]> old, SortedMap<String, String[]> now) {
+        if (base == 0) {
+            return new HierarchyDelta(session, 0, version, rotation, Collections.<String>emptyList(),
+                new LinkedHashMap<>(now));
+        }
+        List<String> removed = new ArrayList<>();
+        String subtree = null;
+        for (String path : old.keySet()) {
+            if (!now.containsKey(path) && (subtree == null || !path.startsWith(subtree))) {
+                removed.add(path);
+                subtree = path;
+            }
+        }
+        Map<String, String[]> nodes = new LinkedHashMap<>();
+        for (Map.Entry<String, String[]> entry : now.entrySet()) {
+            String[] values = old.get(entry.getKey());
+            if (values == null || !Arrays.equals(values, entry.getValue())) {
+                nodes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return new HierarchyDelta(session, base, version, rotation, removed, nodes);
+    }
+
+    /**
+     * Applies this delta to a hierarchy, which is cleared first if this is a full hierarchy.
+     *
+     * @param hierarchy hierarchy of base version
+     */
+    public void applyTo(SortedMap<String, String[]> hierarchy) {
+        if (isFull()) {
+            hierarchy.clear();
+        }
+        for (String path : removed) {
+            Iterator<String> it = hierarchy.tailMap(path).keySet().iterator();
+            while (it.hasNext() && it.next().startsWith(path)) {
+                it.remove();
+            }
+        }
+        hierarchy.putAll(nodes);
+    }
+
+    public static String path(String parent, int index) {
+        return parent + (char) index;
+    }
+
+    public static String parent(String path) {
+        return path.substring(0, path.length() - 1);
+    }
+
+    /**
+     * @param path node path
+     *
+     * @return readable path, such as 0/3/1
+     */
+    public static String toString(String path) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < path.length(); i++) {
+            sb.append(i == 0 ? "" : "/").append((int) path.charAt(i));
+        }
+        return sb.toString();
+    }
+
+    public long getSession() {
+        return session;
+    }
+
+    /**
+     * @return version this delta applies to, 0 for a full hierarchy
+     */
+    public long getBase() {
+        return base;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getRotation() {
+        return rotation;
+    }
+
+    public boolean isFull() {
+        return base == 0;
+    }
+
+    public boolean isEmpty() {
+        return removed.isEmpty() && nodes.isEmpty();
+    }
+
+    /**
+     * @return paths of removed subtrees
+     */
+    public List<String> getRemoved() {
+        return Collections.unmodifiableList(removed);
+    }
+
+    /**
+     * @return inserted or modified nodes by path, in pre-order
+     */
+    public Map<String, String[]> getNodes() {
+        return Collections.unmodifiableMap(nodes);
+    }
+
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + nodes.size() * 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        out.writeLong(session);
+        out.writeLong(base);
+        out.writeLong(version);
+        RpcProtocol.writeString(out, rotation);
+        out.writeInt(removed.size());
+        for (String path : removed) {
+            RpcProtocol.writeString(out, path);
+        }
+        out.writeInt(nodes.size());
+        for (Map.Entry<String, String[]> entry : nodes.entrySet()) {
+            RpcProtocol.writeString(out, entry.getKey());
+            for (String value : entry.getValue()) {
+                RpcProtocol.writeString(out, value);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static HierarchyDelta read(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int v = in.readInt();
+        if (v != VERSION) {
+            throw new IOException("Unsupported hierarchy delta version " + v);
+        }
+        long session = in.readLong();
+        long base = in.readLong();
+        long version = in.readLong();
+        String rotation = RpcProtocol.readString(in);
+        int n = in.readInt();
+        List<String> removed = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            removed.add(RpcProtocol.readString(in));
+        }
+        n = in.readInt();
+        Map<String, String[]> nodes = new LinkedHashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            String path = RpcProtocol.readString(in);
+            String[] values = new String[ATTRIBUTES.length];
+            for (int j = 0; j < values.length; j++) {
+                values[j] = RpcProtocol.readString(in);
+            }
+            nodes.put(path, values);
+        }
+        return new HierarchyDelta(session, base, version, rotation, removed, nodes);
+    }
+
+    @Override
+    public String toString() {
+        return "HierarchyDelta[session " + session + ", " + base + " -> " + version + ", " + removed.size()
+            + " removed, " + nodes.size() + " changed]";
+    }
+}
@@ -26,6 +26,10 @@ public interface IUiDevice extends Serializable {
 
     int UIAUTOMATOR_RMI_PORT = 8998;
 
+    int UIAUTOMATOR_RPC_PORT = 8999;
+
+    int UIAUTOMATOR_EVENT_PORT = 9000;
+
     String TMP_DIR_V6 = "/data/local/tmp/";
 
     String TMP_DIR = "/data/local/tmp/local/tmp/";
@@ -70,6 +74,48 @@ public interface IUiDevice extends Serializable {
      */
     void dumpWindowHierarchy(String fileName);
 
+    /**
+     * Dumps the current window's layout hierarchy, in the same XML format as {@link #dumpWindowHierarchy(String)},
+     * and returns it in the reply, instead of writing a file on device.
+     *
+     * @param gzip true to compress XML with gzip
+     *
+     * @return XML bytes, gzip-compressed if asked
+     */
+    byte[] dumpWindowHierarchy(boolean gzip);
+
+    /**
+     * Dumps the current window's layout hierarchy, and returns only the changes since the one sent last to a
+     * session, see {@link HierarchyDelta}. The device keeps the last hierarchy of a few sessions only, an unknown
+     * session or version gets a full hierarchy.
+     *
+     * @param session session id, 0 to start a new session
+     * @param base    version of hierarchy the session has, 0 for none
+     * @param gzip    true to compress with gzip
+     *
+     * @return encoded {@link HierarchyDelta}, gzip-compressed if asked
+     */
+    byte[] dumpWindowHierarchyDelta(long session, long base, boolean gzip);
+
+    /**
+     * Dumps part of the current window's layout hierarchy, in the same XML format as
+     * {@link #dumpWindowHierarchy(String)}, with the object of a selector as root node. It does not wait for the
+     * object.
+     *
+     * @param selector    selector of root object, null for root of window
+     * @param maxDepth    levels of descendants to dump, 0 for root object only, negative for all
+     * @param attributes  names of attributes to dump, such as text and bounds, null for all; index and class are
+     *                    always dumped
+     * @param visibleOnly true to skip descendants not visible to user
+     * @param gzip        true to compress XML with gzip
+     *
+     * @return XML bytes, gzip-compressed if asked
+     *
+     * @throws UiObjectNotFoundException if there is no such object
+     */
+    byte[] dumpWindowHierarchy(UiSelector selector, int maxDepth, String[] attributes, boolean visibleOnly,
+        boolean gzip) throws UiObjectNotFoundException;
+
     /**
      * Disables the sensors and freezes the device rotation at its current
      * rotation state.
@@ -487,6 +533,19 @@ public interface IUiDevice extends Serializable {
      */
     boolean takeScreenshot(String name, float scale, int quality);
 
+    /**
+     * Takes a screenshot of current window, adjusted per screen rotation, and returns the image in the reply, instead
+     * of storing a file on device.
+     *
+     * @param crop    region of screen to keep, null for whole screen
+     * @param scale   scale of image, applied after crop; 1.0f for original size
+     * @param png     true for PNG, false for JPEG
+     * @param quality quality of JPEG compression, range 0-100, ignored for PNG
+     *
+     * @return encoded image
+     */
+    byte[] getScreenshot(Rect crop, float scale, boolean png, int quality);
+
     /**
      * Re-enables the sensors and un-freezes the device rotation allowing its
      * contents to rotate with the device physical rotation. During a test
@@ -509,6 +568,30 @@ public interface IUiDevice extends Serializable {
      */
     void waitForIdle(long time);
 
+    /**
+     * Sets how actions, such as click, swipe, or key press, wait for the UI to settle before they return.
+     *
+     * @param sync    idle sync strategy, default is {@link IdleSync#DEVICE}
+     * @param timeout maximal time to wait in milliseconds, 0 for the default of 10 seconds
+     */
+    void setIdleSync(IdleSync sync, long timeout);
+
+    /**
+     * @return time spent waiting for idle after actions, since start or last reset
+     */
+    IdleStats getIdleStats();
+
+    void resetIdleStats();
+
+    /**
+     * Runs all steps of a script on device, in one call.
+     *
+     * @param script steps to run
+     *
+     * @return result and time of each step
+     */
+    UiScriptResult runScript(UiScript script);
+
     /**
      * Waits for a window content update event to occur.
      *
@@ -44,6 +44,73 @@ public interface IUiObject extends Serializable {
 
     void useUiObjectSelector(UiSelector selector);
 
+    /**
+     * Checks if a view matching the selector exists, in one call. The selected object of this IUiObject is not
+     * changed.
+     *
+     * @param selector selector of the view
+     *
+     * @return true if the view exists
+     */
+    boolean exists(UiSelector selector);
+
+    /**
+     * Waits for a view matching the selector to exist, in one call. The selected object of this IUiObject is not
+     * changed.
+     *
+     * @param selector selector of the view
+     * @param timeout  time to wait in milliseconds
+     *
+     * @return true if the view exists
+     */
+    boolean waitForExists(UiSelector selector, long timeout);
+
+    /**
+     * Clicks a view matching the selector, and waits for idle, in one call.
+     *
+     * @param selector selector of the view
+     *
+     * @return result of click, or UiObjectNotFoundException
+     */
+    UiObjectResult click(UiSelector selector);
+
+    /**
+     * Reads text of a view matching the selector, in one call.
+     *
+     * @param selector selector of the view
+     *
+     * @return text, or UiObjectNotFoundException
+     */
+    UiObjectResult getText(UiSelector selector);
+
+    /**
+     * Sets text of an editable view matching the selector, in one call.
+     *
+     * @param selector selector of the view
+     * @param text     text to set
+     *
+     * @return result of set text, or UiObjectNotFoundException
+     */
+    UiObjectResult setText(UiSelector selector, String text);
+
+    /**
+     * Clears text of an editable view matching the selector, and reads text after, in one call.
+     *
+     * @param selector selector of the view
+     *
+     * @return remaining text, or UiObjectNotFoundException
+     */
+    UiObjectResult clearTextField(UiSelector selector);
+
+    /**
+     * Reads bounds of a view matching the selector, in one call.
+     *
+     * @param selector selector of the view
+     *
+     * @return bounds, or UiObjectNotFoundException
+     */
+    UiObjectResult getBounds(UiSelector selector);
+
     /**
      * Clears the existing text contents in an editable field.
      *
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.Serializable;
+
+/**
+ * UI objects by handle. Unlike {@link IUiObject}, which holds one selected object for all callers, each resolved
+ * object gets its own handle, kept in the registry of a session. Several host threads can work with objects on the
+ * same device at the same time, each with its own session.
+ *
+ * Each session keeps a limited number of objects, and drops the least recently used ones when full. A dropped
+ * handle, or a handle of another session, fails with UiObjectNotFoundException. Sessions are limited too, the least
+ * recently used one is dropped when there are too many.
+ *
+ * Handle 0 is never used, and means not found.
+ *
+ * @author linsong wang
+ */
+public interface IUiObjectRegistry extends Serializable {
+
+    int MAX_SESSIONS = 32;
+
+    int MAX_OBJECTS_PER_SESSION = 256;
+
+    long openSession();
+
+    void closeSession(long session);
+
+    /**
+     * Registers an object for a selector. Objects are resolved on each use, so this does not check if the object
+     * exists.
+     *
+     * @param session  session id
+     * @param selector selector of object
+     *
+     * @return handle of object, 0 if session is not found
+     */
+    long find(long session, UiSelector selector);
+
+    /**
+     * @param session  session id
+     * @param handle   handle of parent object
+     * @param selector selector of child
+     *
+     * @return handle of child object, 0 if not found
+     */
+    long getChild(long session, long handle, UiSelector selector);
+
+    /**
+     * @param session  session id
+     * @param handle   handle of object
+     * @param selector selector of sibling, or child of sibling
+     *
+     * @return handle of sibling object, 0 if not found
+     */
+    long getFromParent(long session, long handle, UiSelector selector);
+
+    void release(long session, long handle);
+
+    boolean exists(long session, long handle);
+
+    boolean waitForExists(long session, long handle, long timeout);
+
+    UiObjectResult click(long session, long handle);
+
+    UiObjectResult getText(long session, long handle);
+
+    UiObjectResult setText(long session, long handle, String text);
+
+    UiObjectResult getBounds(long session, long handle);
+}
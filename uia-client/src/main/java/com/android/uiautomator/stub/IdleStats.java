@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.Serializable;
+
+/**
+ * Time spent waiting for UI idle after actions, see {@link IdleSync}.
+ *
+ * @author linsong wang
+ */
+public class IdleStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long count;
+
+    private long timeouts;
+
+    private long totalMillis;
+
+    private long maxMillis;
+
+    private long lastMillis;
+
+    public IdleStats() {
+    }
+
+    public IdleStats(long count, long timeouts, long totalMillis, long maxMillis, long lastMillis) {
+        this.count = count;
+        this.timeouts = timeouts;
+        this.totalMillis = totalMillis;
+        this.maxMillis = maxMillis;
+        this.lastMillis = lastMillis;
+    }
+
+    /**
+     * Adds one wait.
+     *
+     * @param millis   time of wait
+     * @param timedOut true if UI did not settle within timeout
+     */
+    public synchronized void add(long millis, boolean timedOut) {
+        count++;
+        if (timedOut) {
+            timeouts++;
+        }
+        totalMillis += millis;
+        maxMillis = Math.max(maxMillis, millis);
+        lastMillis = millis;
+    }
+
+    public synchronized void reset() {
+        count = 0;
+        timeouts = 0;
+        totalMillis = 0;
+        maxMillis = 0;
+        lastMillis = 0;
+    }
+
+    public synchronized IdleStats copy() {
+        return new IdleStats(count, timeouts, totalMillis, maxMillis, lastMillis);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public synchronized long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public synchronized long getLastMillis() {
+        return lastMillis;
+    }
+
+    public synchronized long getAverageMillis() {
+        return count == 0 ? 0 : totalMillis / count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IdleStats[count " + count + ", timeouts " + timeouts + ", total " + totalMillis + "ms, average "
+            + getAverageMillis() + "ms, max " + maxMillis + "ms]";
+    }
+}
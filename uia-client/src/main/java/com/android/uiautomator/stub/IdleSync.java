@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+/**
+ * How a stub waits for the UI to settle after an action, such as click, or key press, see
+ * {@link IUiDevice#setIdleSync(IdleSync, long)}.
+ *
+ * @author linsong wang
+ */
+public enum IdleSync {
+    /**
+     * Returns right after the action, caller is to wait for what it expects, such as with waitForExists.
+     */
+    NONE,
+    /**
+     * Waits for the accessibility event stream to idle, as UiDevice.waitForIdle does. This is the default.
+     */
+    DEVICE,
+    /**
+     * Waits for the first window content update event, which is quicker than DEVICE for actions that always
+     * change the UI, but waits till timeout for actions that do not.
+     */
+    WINDOW_UPDATE,
+    /**
+     * Waits briefly for a window content update event; if one comes, waits for the UI to idle within the timeout,
+     * otherwise returns, as the action did not change the UI.
+     */
+    ADAPTIVE
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client of {@link RpcServer}, with a pool of channels, so calls from several threads run at the same time, one call
+ * per channel.
+ *
+ * Stub proxies fall back to a LipeRMI proxy for methods which cannot be encoded, such as the ones taking a
+ * {@link UiWatcher}, or another stub object.
+ *
+ * @author linsong wang
+ */
+public class RpcClient implements Closeable {
+
+    private final String host;
+
+    private final int port;
+
+    private final int timeout;
+
+    private final BlockingQueue<Channel> channels;
+
+    /**
+     * Channels with a call in progress.
+     */
+    private final Set<Channel> busy = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+
+    private volatile boolean closed;
+
+    /**
+     * Connects to server with one channel.
+     *
+     * @param host    server host
+     * @param port    server port
+     * @param timeout connect timeout in milliseconds
+     *
+     * @throws IOException if server cannot be reached, or is not compatible
+     */
+    public RpcClient(String host, int port, int timeout) throws IOException {
+        this(host, port, timeout, 1);
+    }
+
+    /**
+     * Connects to server, and verifies that both sides use the same protocol and stub interfaces.
+     *
+     * @param host     server host
+     * @param port     server port
+     * @param timeout  connect timeout in milliseconds
+     * @param channels number of channels, which is the number of calls at the same time
+     *
+     * @throws IOException if server cannot be reached, or is not compatible
+     */
+    public RpcClient(String host, int port, int timeout, int channels) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.channels = new ArrayBlockingQueue<>(channels);
+        try {
+            for (int i = 0; i < channels; i++) {
+                this.channels.add(new Channel());
+            }
+        } catch (IOException ex) {
+            this.close();
+            throw ex;
+        }
+    }
+
+    public int getChannels() {
+        return channels.remainingCapacity() + channels.size();
+    }
+
+    /**
+     * Creates a stub proxy.
+     *
+     * @param <T>      type of stub interface
+     * @param service  stub interface
+     * @param fallback stub to call for methods that cannot be encoded, can be null
+     *
+     * @return proxy of the stub interface
+     */
+    public <T> T getService(final Class<T> service, final T fallback) {
+        final int serviceId = RpcProtocol.SERVICES.indexOf(service);
+        if (serviceId < 0) {
+            throw new IllegalArgumentException("unknown service " + service.getName());
+        }
+        final Map<Method, Integer> ids = new HashMap<>();
+        Method[] methods = RpcProtocol.methods(service);
+        for (int i = 0; i < methods.length; i++) {
+            if (RpcProtocol.isSupported(methods[i])) {
+                ids.put(methods[i], i);
+            }
+        }
+
+        InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                Integer methodId = ids.get(method);
+                if (methodId != null) {
+                    return call(serviceId, methodId, method, args);
+                }
+                if (method.getDeclaringClass() == Object.class) {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return "rpc " + service.getName();
+                    }
+                }
+                if (fallback == null) {
+                    throw new UnsupportedOperationException(RpcProtocol.signature(method));
+                }
+                try {
+                    return method.invoke(fallback, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+        };
+        return service.cast(Proxy.newProxyInstance(service.getClassLoader(), new Class<?>[]{service}, handler));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (Channel channel = channels.poll(); channel != null; channel = channels.poll()) {
+            channel.close();
+        }
+        abort();
+    }
+
+    /**
+     * Fails calls in progress at once, by closing their channels, such as when device is disconnected. A thread
+     * blocked reading a socket does not see interrupts. Channels are connected again by next calls.
+     */
+    public void abort() {
+        for (Channel channel : busy) {
+            channel.broken = true;
+            channel.close();
+        }
+    }
+
+    private Object call(int serviceId, int methodId, Method method, Object[] args) throws Throwable {
+        if (closed) {
+            throw new IllegalStateException("rpc client is closed");
+        }
+        Channel channel;
+        try {
+            channel = channels.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for rpc channel", ex);
+        }
+        try {
+            if (channel.broken) {
+                channel = new Channel();
+            }
+            busy.add(channel);
+            return channel.call(serviceId, methodId, method, args);
+        } catch (IOException ex) {
+            channel.broken = true;
+            channel.close();
+            throw new IllegalStateException("rpc call failed " + RpcProtocol.signature(method), ex);
+        } finally {
+            busy.remove(channel);
+            if (closed) {
+                channel.close();
+            } else {
+                channels.offer(channel);
+            }
+        }
+    }
+
+    /**
+     * One connection, for one call at a time.
+     */
+    private class Channel {
+        private final Socket socket = new Socket();
+
+        private final DataInputStream in;
+
+        private final OutputStream out;
+
+        private final RpcProtocol.Frame frame = new RpcProtocol.Frame();
+
+        private byte[] reply = new byte[256];
+
+        private volatile boolean broken;
+
+        Channel() throws IOException {
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port), timeout);
+                socket.setSoTimeout(timeout);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = socket.getOutputStream();
+
+                DataOutputStream data = frame.begin();
+                data.writeInt(RpcProtocol.VERSION);
+                data.writeInt(RpcProtocol.SERVICES.size());
+                for (Class<?> service : RpcProtocol.SERVICES) {
+                    data.writeInt(RpcProtocol.hash(service));
+                }
+                // handshake starts with magic instead of frame length
+                byte[] buf = frame.toByteArray();
+                int magic = RpcProtocol.MAGIC;
+                buf[0] = (byte) (magic >>> 24);
+                buf[1] = (byte) (magic >>> 16);
+                buf[2] = (byte) (magic >>> 8);
+                buf[3] = (byte) magic;
+                out.write(buf);
+                out.flush();
+                if (receive().readByte() != RpcProtocol.STATUS_OK) {
+                    throw new IOException("rpc server is not compatible");
+                }
+                socket.setSoTimeout(0);
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+        }
+
+        Object call(int serviceId, int methodId, Method method, Object[] args) throws Throwable {
+            DataOutputStream data = frame.begin();
+            data.writeByte(serviceId);
+            data.writeShort(methodId);
+            Class<?>[] types = method.getParameterTypes();
+            for (int i = 0; i < types.length; i++) {
+                RpcProtocol.write(data, types[i], args[i]);
+            }
+            frame.writeTo(out);
+            DataInputStream ret = receive();
+            if (ret.readByte() == RpcProtocol.STATUS_OK) {
+                return method.getReturnType() == void.class ? null : RpcProtocol.read(ret, method.getReturnType());
+            }
+            throw error(method, RpcProtocol.readString(ret), (String) RpcProtocol.read(ret, String.class));
+        }
+
+        private DataInputStream receive() throws IOException {
+            int length = in.readInt();
+            if (length < 0 || length > RpcProtocol.MAX_FRAME) {
+                throw new IOException("invalid frame length " + length);
+            }
+            if (reply.length < length) {
+                reply = new byte[Math.max(length, reply.length * 2)];
+            }
+            in.readFully(reply, 0, length);
+            return new DataInputStream(new ByteArrayInputStream(reply, 0, length));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Recreates remote exception if it is declared by the method, or is unchecked; otherwise wraps it.
+     */
+    private static Throwable error(Method method, String className, String message) {
+        try {
+            Class<?> type = Class.forName(className);
+            boolean declared = RuntimeException.class.isAssignableFrom(type) || Error.class.isAssignableFrom(type);
+            for (Class<?> e : method.getExceptionTypes()) {
+                declared |= e.isAssignableFrom(type);
+            }
+            if (declared) {
+                return (Throwable) type.getConstructor(String.class).newInstance(message);
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // not available on this side
+        }
+        return new IllegalStateException(className + ": " + message);
+    }
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compact binary protocol of uiautomator stub calls, an alternative to LipeRMI, which uses Java serialization and
+ * looks up methods by name for every call.
+ *
+ * Method ids are generated from the stub interfaces: all methods of an interface, sorted by signature, numbered from
+ * 0. Both sides build the table from the same interface classes, and the handshake compares a hash of it, so a
+ * client and server built from different interfaces never talk.
+ *
+ * Values are encoded by their declared types, no type tags, no class names:
+ * <ul>
+ * <li>primitives are written as is, boolean as one byte</li>
+ * <li>nullable values (String, boxed, stub types, arrays) start with one presence byte</li>
+ * <li>String is length-prefixed UTF-8, byte[] is length-prefixed raw bytes</li>
+ * <li>Rect is 4 ints, Point is 2 ints, PointerCoords is 9 floats plus a bit mask and values of extra axes</li>
+ * <li>UiSelector is a count, and then attribute id plus a tagged value for each attribute</li>
+ * <li>UiObjectResult is a tagged value, and then the nullable exception</li>
+ * <li>UiScript is fail-fast flag, nullable idle sync and its timeout, and a list of steps, each step is its action
+ * ordinal and fields, nested steps and scripts inline</li>
+ * </ul>
+ *
+ * Frames are a 4-byte length followed by payload. A call is service id (byte), method id (short) and arguments; a
+ * reply is status (byte), and then the return value, or exception class name and message.
+ *
+ * The event channel, see {@link UiEventServer}, starts with its own magic, version and a mask of event types, and
+ * then carries one UiEvent per frame, type (int), time (long), package and class name, from device to host only.
+ *
+ * @author linsong wang
+ */
+public final class RpcProtocol {
+    public static final int MAGIC = 0x55494152; // UIAR
+
+    public static final int EVENT_MAGIC = 0x55494145; // UIAE
+
+    public static final int VERSION = 2;
+
+    public static final byte STATUS_OK = 0;
+
+    public static final byte STATUS_ERROR = 1;
+
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    /**
+     * Services in the order of their ids.
+     */
+    public static final List<Class<?>> SERVICES = Collections.unmodifiableList(Arrays.<Class<?>>asList(
+        IUiDevice.class, IUiObject.class, IUiCollection.class, IUiScrollable.class, IUiObjectRegistry.class));
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte TAG_NULL = 0;
+
+    private static final byte TAG_STRING = 1;
+
+    private static final byte TAG_INT = 2;
+
+    private static final byte TAG_BOOLEAN = 3;
+
+    private static final byte TAG_PATTERN = 4;
+
+    private static final byte TAG_SELECTOR = 5;
+
+    private static final byte TAG_RECT = 6;
+
+    private static final int STANDARD_AXES = 9;
+
+    private RpcProtocol() {
+    }
+
+    /**
+     * Builds method table of a stub interface.
+     *
+     * @param service stub interface
+     *
+     * @return methods sorted by signature, index is method id
+     */
+    public static Method[] methods(Class<?> service) {
+        Method[] methods = service.getMethods();
+        Arrays.sort(methods, new Comparator<Method>() {
+            @Override
+            public int compare(Method m1, Method m2) {
+                return signature(m1).compareTo(signature(m2));
+            }
+        });
+        return methods;
+    }
+
+    /**
+     * @param service stub interface
+     *
+     * @return hash of the method table, same on both sides only if interfaces are the same
+     */
+    public static int hash(Class<?> service) {
+        List<String> signatures = new ArrayList<>();
+        for (Method m : methods(service)) {
+            signatures.add(signature(m));
+        }
+        return signatures.hashCode();
+    }
+
+    /**
+     * Checks if a method works on the object selected by an earlier call to the same stub, such as click() after
+     * useUiObjectSelector(selector). Such calls of a stub run one at a time. One-shot selector methods, registry
+     * methods, and device methods keep no state in stubs, and run at the same time; stubs only serialize the input
+     * they inject, not the waiting around it.
+     *
+     * @param service stub interface
+     * @param method  stub method
+     *
+     * @return true if method depends on state of stub
+     */
+    public static boolean isStateful(Class<?> service, Method method) {
+        if (service == IUiDevice.class || service == IUiObjectRegistry.class) {
+            return false;
+        }
+        Class<?>[] types = method.getParameterTypes();
+        String name = method.getName();
+        return method.getDeclaringClass() != IUiObject.class || types.length == 0 || types[0] != UiSelector.class
+            || name.startsWith("select") || name.startsWith("use");
+    }
+
+    public static String signature(Method method) {
+        StringBuilder sb = new StringBuilder(method.getName()).append('(');
+        for (Class<?> p : method.getParameterTypes()) {
+            sb.append(p.getName()).append(',');
+        }
+        return sb.append(')').append(method.getReturnType().getName()).toString();
+    }
+
+    /**
+     * Checks if all parameters and return value of a method can be encoded. Calls of other methods, such as the ones
+     * taking call-back objects, go elsewhere.
+     *
+     * @param method stub method
+     *
+     * @return true if supported
+     */
+    public static boolean isSupported(Method method) {
+        for (Class<?> p : method.getParameterTypes()) {
+            if (!isSupported(p)) {
+                return false;
+            }
+        }
+        return method.getReturnType() == void.class || isSupported(method.getReturnType());
+    }
+
+    private static boolean isSupported(Class<?> type) {
+        if (type.isArray()) {
+            return isSupported(type.getComponentType());
+        }
+        return type.isPrimitive() || type == String.class || type == Boolean.class || type == Integer.class
+            || type == Long.class || type == Float.class || type == Double.class || type == UiSelector.class
+            || type == Rect.class || type == Point.class || type == PointerCoords.class
+            || type == UiObjectNotFoundException.class || type == UiObjectResult.class || type == UiScript.class
+            || type == UiScript.Step.class || type == UiScriptResult.class || type == IdleSync.class
+            || type == IdleStats.class || type == UiEvent.class;
+    }
+
+    public static void write(DataOutputStream out, Class<?> type, Object value) throws IOException {
+        if (type.isPrimitive()) {
+            writePrimitive(out, type, value);
+            return;
+        }
+        if (value == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        if (type == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (type.isArray()) {
+            int length = Array.getLength(value);
+            out.writeInt(length);
+            Class<?> component = type.getComponentType();
+            for (int i = 0; i < length; i++) {
+                write(out, component, Array.get(value, i));
+            }
+        } else if (type == String.class) {
+            writeString(out, (String) value);
+        } else if (type == Boolean.class) {
+            out.writeBoolean((Boolean) value);
+        } else if (type == Integer.class) {
+            out.writeInt((Integer) value);
+        } else if (type == Long.class) {
+            out.writeLong((Long) value);
+        } else if (type == Float.class) {
+            out.writeFloat((Float) value);
+        } else if (type == Double.class) {
+            out.writeDouble((Double) value);
+        } else if (type == Rect.class) {
+            Rect r = (Rect) value;
+            out.writeInt(r.left);
+            out.writeInt(r.top);
+            out.writeInt(r.right);
+            out.writeInt(r.bottom);
+        } else if (type == Point.class) {
+            Point p = (Point) value;
+            out.writeInt(p.x);
+            out.writeInt(p.y);
+        } else if (type == PointerCoords.class) {
+            writePointerCoords(out, (PointerCoords) value);
+        } else if (type == UiSelector.class) {
+            writeSelector(out, (UiSelector) value);
+        } else if (type == UiObjectNotFoundException.class) {
+            writeString(out, ((Throwable) value).getMessage());
+        } else if (type == UiObjectResult.class) {
+            writeResult(out, (UiObjectResult) value);
+        } else if (type == UiScript.class) {
+            writeScript(out, (UiScript) value);
+        } else if (type == UiScript.Step.class) {
+            writeStep(out, (UiScript.Step) value);
+        } else if (type == UiScriptResult.class) {
+            writeScriptResult(out, (UiScriptResult) value);
+        } else if (type == IdleSync.class) {
+            out.writeByte(((IdleSync) value).ordinal());
+        } else if (type == IdleStats.class) {
+            IdleStats s = (IdleStats) value;
+            out.writeLong(s.getCount());
+            out.writeLong(s.getTimeouts());
+            out.writeLong(s.getTotalMillis());
+            out.writeLong(s.getMaxMillis());
+            out.writeLong(s.getLastMillis());
+        } else if (type == UiEvent.class) {
+            UiEvent e = (UiEvent) value;
+            out.writeInt(e.getType());
+            out.writeLong(e.getTime());
+            write(out, String.class, e.getPackageName());
+            write(out, String.class, e.getClassName());
+        } else {
+            throw new IOException("unsupported type " + type.getName());
+        }
+    }
+
+    public static Object read(DataInputStream in, Class<?> type) throws IOException {
+        if (type.isPrimitive()) {
+            return readPrimitive(in, type);
+        }
+        if (!in.readBoolean()) {
+            return null;
+        }
+        if (type == byte[].class) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        } else if (type.isArray()) {
+            int length = in.readInt();
+            Class<?> component = type.getComponentType();
+            Object array = Array.newInstance(component, length);
+            for (int i = 0; i < length; i++) {
+                Array.set(array, i, read(in, component));
+            }
+            return array;
+        } else if (type == String.class) {
+            return readString(in);
+        } else if (type == Boolean.class) {
+            return in.readBoolean();
+        } else if (type == Integer.class) {
+            return in.readInt();
+        } else if (type == Long.class) {
+            return in.readLong();
+        } else if (type == Float.class) {
+            return in.readFloat();
+        } else if (type == Double.class) {
+            return in.readDouble();
+        } else if (type == Rect.class) {
+            return new Rect(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        } else if (type == Point.class) {
+            return new Point(in.readInt(), in.readInt());
+        } else if (type == PointerCoords.class) {
+            return readPointerCoords(in);
+        } else if (type == UiSelector.class) {
+            return readSelector(in);
+        } else if (type == UiObjectNotFoundException.class) {
+            return new UiObjectNotFoundException(readString(in));
+        } else if (type == UiObjectResult.class) {
+            return readResult(in);
+        } else if (type == UiScript.class) {
+            return readScript(in);
+        } else if (type == UiScript.Step.class) {
+            return readStep(in);
+        } else if (type == UiScriptResult.class) {
+            return readScriptResult(in);
+        } else if (type == IdleSync.class) {
+            int sync = in.readUnsignedByte();
+            if (sync >= IdleSync.values().length) {
+                throw new IOException("unknown idle sync " + sync);
+            }
+            return IdleSync.values()[sync];
+        } else if (type == IdleStats.class) {
+            return new IdleStats(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+        } else if (type == UiEvent.class) {
+            return new UiEvent(in.readInt(), in.readLong(), (String) read(in, String.class),
+                (String) read(in, String.class));
+        }
+        throw new IOException("unsupported type " + type.getName());
+    }
+
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writePrimitive(DataOutputStream out, Class<?> type, Object value) throws IOException {
+        if (type == boolean.class) {
+            out.writeBoolean((Boolean) value);
+        } else if (type == int.class) {
+            out.writeInt((Integer) value);
+        } else if (type == long.class) {
+            out.writeLong((Long) value);
+        } else if (type == float.class) {
+            out.writeFloat((Float) value);
+        } else if (type == double.class) {
+            out.writeDouble((Double) value);
+        } else {
+            throw new IOException("unsupported type " + type.getName());
+        }
+    }
+
+    private static Object readPrimitive(DataInputStream in, Class<?> type) throws IOException {
+        if (type == boolean.class) {
+            return in.readBoolean();
+        } else if (type == int.class) {
+            return in.readInt();
+        } else if (type == long.class) {
+            return in.readLong();
+        } else if (type == float.class) {
+            return in.readFloat();
+        } else if (type == double.class) {
+            return in.readDouble();
+        }
+        throw new IOException("unsupported type " + type.getName());
+    }
+
+    private static void writePointerCoords(DataOutputStream out, PointerCoords pc) throws IOException {
+        for (int axis = 0; axis < STANDARD_AXES; axis++) {
+            out.writeFloat(pc.getAxisValue(axis));
+        }
+        long bits = 0;
+        for (int axis = STANDARD_AXES; axis < 64; axis++) {
+            if (pc.getAxisValue(axis) != 0) {
+                bits |= 1L << axis;
+            }
+        }
+        out.writeLong(bits);
+        for (int axis = STANDARD_AXES; axis < 64; axis++) {
+            if ((bits & (1L << axis)) != 0) {
+                out.writeFloat(pc.getAxisValue(axis));
+            }
+        }
+    }
+
+    private static PointerCoords readPointerCoords(DataInputStream in) throws IOException {
+        PointerCoords pc = new PointerCoords();
+        for (int axis = 0; axis < STANDARD_AXES; axis++) {
+            pc.setAxisValue(axis, in.readFloat());
+        }
+        long bits = in.readLong();
+        for (int axis = STANDARD_AXES; axis < 64; axis++) {
+            if ((bits & (1L << axis)) != 0) {
+                pc.setAxisValue(axis, in.readFloat());
+            }
+        }
+        return pc;
+    }
+
+    private static void writeSelector(DataOutputStream out, UiSelector selector) throws IOException {
+        Map<Integer, Object> attributes = selector.getAttributes();
+        out.writeByte(attributes.size());
+        for (Map.Entry<Integer, Object> e : attributes.entrySet()) {
+            out.writeByte(e.getKey());
+            writeValue(out, e.getValue());
+        }
+    }
+
+    private static UiSelector readSelector(DataInputStream in) throws IOException {
+        UiSelector selector = new UiSelector();
+        int count = in.readUnsignedByte();
+        for (int i = 0; i < count; i++) {
+            int id = in.readUnsignedByte();
+            selector.getAttributes().put(id, readValue(in));
+        }
+        return selector;
+    }
+
+    private static void writeResult(DataOutputStream out, UiObjectResult result) throws IOException {
+        writeValue(out, result.getValue());
+        write(out, UiObjectNotFoundException.class, result.getUiObjectNotFoundException());
+    }
+
+    private static UiObjectResult readResult(DataInputStream in) throws IOException {
+        Object value = readValue(in);
+        return new UiObjectResult(value, (UiObjectNotFoundException) read(in, UiObjectNotFoundException.class));
+    }
+
+    private static void writeScript(DataOutputStream out, UiScript script) throws IOException {
+        out.writeBoolean(script.isFailFast());
+        write(out, IdleSync.class, script.getIdleSync());
+        out.writeLong(script.getIdleTimeout());
+        out.writeInt(script.getSteps().size());
+        for (UiScript.Step step : script.getSteps()) {
+            writeStep(out, step);
+        }
+    }
+
+    private static UiScript readScript(DataInputStream in) throws IOException {
+        UiScript script = new UiScript().failFast(in.readBoolean());
+        IdleSync sync = (IdleSync) read(in, IdleSync.class);
+        script.idleSync(sync, in.readLong());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            script.add(readStep(in));
+        }
+        return script;
+    }
+
+    private static void writeStep(DataOutputStream out, UiScript.Step step) throws IOException {
+        out.writeByte(step.getAction().ordinal());
+        write(out, UiSelector.class, step.getSelector());
+        write(out, String.class, step.getText());
+        write(out, int[].class, step.getArgs());
+        out.writeLong(step.getTimeout());
+        write(out, UiScript.Step.class, step.getCondition());
+        write(out, UiScript.class, step.getThen());
+        write(out, UiScript.class, step.getOtherwise());
+    }
+
+    private static UiScript.Step readStep(DataInputStream in) throws IOException {
+        UiScript.Action[] actions = UiScript.Action.values();
+        int action = in.readUnsignedByte();
+        if (action >= actions.length) {
+            throw new IOException("unknown script action " + action);
+        }
+        return new UiScript.Step(actions[action], (UiSelector) read(in, UiSelector.class),
+            (String) read(in, String.class), (int[]) read(in, int[].class), in.readLong(),
+            (UiScript.Step) read(in, UiScript.Step.class), (UiScript) read(in, UiScript.class),
+            (UiScript) read(in, UiScript.class));
+    }
+
+    private static void writeScriptResult(DataOutputStream out, UiScriptResult result) throws IOException {
+        out.writeBoolean(result.isCompleted());
+        out.writeInt(result.getResults().size());
+        for (UiScriptResult.StepResult r : result.getResults()) {
+            writeString(out, r.getStep());
+            out.writeShort(r.getDepth());
+            out.writeBoolean(r.isCondition());
+            out.writeBoolean(r.isOk());
+            write(out, String.class, r.getValue());
+            write(out, String.class, r.getError());
+            out.writeLong(r.getMillis());
+            out.writeLong(r.getIdleMillis());
+        }
+    }
+
+    private static UiScriptResult readScriptResult(DataInputStream in) throws IOException {
+        UiScriptResult result = new UiScriptResult();
+        result.setCompleted(in.readBoolean());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            result.add(new UiScriptResult.StepResult(readString(in), in.readShort(), in.readBoolean(),
+                in.readBoolean(), (String) read(in, String.class), (String) read(in, String.class), in.readLong(),
+                in.readLong()));
+        }
+        return result;
+    }
+
+    /**
+     * Writes a value of loose type, such as selector attribute, with a tag of its type.
+     */
+    private static void writeValue(DataOutputStream out, Object v) throws IOException {
+        if (v == null) {
+            out.writeByte(TAG_NULL);
+        } else if (v instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeString(out, (String) v);
+        } else if (v instanceof Integer) {
+            out.writeByte(TAG_INT);
+            out.writeInt((Integer) v);
+        } else if (v instanceof Boolean) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof Pattern) {
+            out.writeByte(TAG_PATTERN);
+            writeString(out, ((Pattern) v).pattern());
+            out.writeInt(((Pattern) v).flags());
+        } else if (v instanceof UiSelector) {
+            out.writeByte(TAG_SELECTOR);
+            writeSelector(out, (UiSelector) v);
+        } else if (v instanceof Rect) {
+            out.writeByte(TAG_RECT);
+            write(out, Rect.class, v);
+        } else {
+            throw new IOException("unsupported value " + v.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString(in);
+            case TAG_INT:
+                return in.readInt();
+            case TAG_BOOLEAN:
+                return in.readBoolean();
+            case TAG_PATTERN:
+                return Pattern.compile(readString(in), in.readInt());
+            case TAG_SELECTOR:
+                return readSelector(in);
+            case TAG_RECT:
+                return read(in, Rect.class);
+            default:
+                throw new IOException("unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * Reusable buffer of one frame, which is sent with a single write, length first.
+     */
+    public static final class Frame extends ByteArrayOutputStream {
+        private final DataOutputStream data = new DataOutputStream(this);
+
+        public Frame() {
+            super(256);
+        }
+
+        /**
+         * Clears the buffer, and reserves room for frame length.
+         *
+         * @return stream to write payload
+         */
+        public DataOutputStream begin() {
+            super.reset();
+            count = 4;
+            return data;
+        }
+
+        public void writeTo(OutputStream os) throws IOException {
+            int length = count - 4;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            os.write(buf, 0, count);
+            os.flush();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves stub calls in {@link RpcProtocol}, with a pool of workers, one worker per connection. Connections beyond
+ * the pool size are closed. Stub instances are shared with the LipeRMI server, so both kinds of clients see the same
+ * state.
+ *
+ * Calls of different connections run at the same time. Only calls on the object selected in a stub run one at a time
+ * per stub, see {@link RpcProtocol#isStateful(Class, Method)}; input injection is serialized by the stubs themselves,
+ * so one connection waiting for an object or for idle UI does not hold up the others.
+ *
+ * @author linsong wang
+ */
+public class RpcServer implements Closeable {
+
+    public static final int DEFAULT_WORKERS = 8;
+
+    private final ThreadPoolExecutor workers;
+
+    private final Object[] services = new Object[RpcProtocol.SERVICES.size()];
+
+    private final Method[][] methods = new Method[RpcProtocol.SERVICES.size()][];
+
+    private final boolean[][] stateful = new boolean[RpcProtocol.SERVICES.size()][];
+
+    private final Object[] stubLocks = new Object[RpcProtocol.SERVICES.size()];
+
+    private ServerSocket serverSocket;
+
+    public RpcServer() {
+        this(DEFAULT_WORKERS);
+    }
+
+    /**
+     * @param workers maximal number of connections served at the same time
+     */
+    public RpcServer(int workers) {
+        this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "uia-rpc-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    public <T> void register(Class<T> service, T stub) {
+        int id = RpcProtocol.SERVICES.indexOf(service);
+        if (id < 0) {
+            throw new IllegalArgumentException("unknown service " + service.getName());
+        }
+        services[id] = stub;
+        methods[id] = RpcProtocol.methods(service);
+        stateful[id] = new boolean[methods[id].length];
+        for (int i = 0; i < methods[id].length; i++) {
+            stateful[id][i] = RpcProtocol.isStateful(service, methods[id][i]);
+        }
+        stubLocks[id] = new Object();
+    }
+
+    public void bind(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        Thread thread = new Thread("uia-rpc-server") {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        workers.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                try {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    System.err.println("Too many rpc connections, max " + workers.getMaximumPoolSize());
+                    socket.close();
+                }
+            } catch (IOException ex) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Cannot accept rpc connection " + ex);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream os = socket.getOutputStream();
+            RpcProtocol.Frame frame = new RpcProtocol.Frame();
+            if (!handshake(in, frame, os)) {
+                return;
+            }
+            byte[] request = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException ex) {
+                    return;
+                }
+                if (length < 0 || length > RpcProtocol.MAX_FRAME) {
+                    throw new IOException("invalid frame length " + length);
+                }
+                if (request.length < length) {
+                    request = new byte[Math.max(length, request.length * 2)];
+                }
+                in.readFully(request, 0, length);
+                DataInputStream call = new DataInputStream(new ByteArrayInputStream(request, 0, length));
+                invoke(call, frame.begin());
+                frame.writeTo(os);
+            }
+        } catch (IOException ex) {
+            System.err.println("rpc connection closed " + ex);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    private boolean handshake(DataInputStream in, RpcProtocol.Frame frame, OutputStream os) throws IOException {
+        int magic = in.readInt();
+        int version = in.readInt();
+        int count = in.readInt();
+        boolean match = magic == RpcProtocol.MAGIC && version == RpcProtocol.VERSION
+            && count == RpcProtocol.SERVICES.size();
+        for (int i = 0; i < count; i++) {
+            int hash = in.readInt();
+            match &= i < services.length && hash == RpcProtocol.hash(RpcProtocol.SERVICES.get(i));
+        }
+        DataOutputStream out = frame.begin();
+        out.writeByte(match ? RpcProtocol.STATUS_OK : RpcProtocol.STATUS_ERROR);
+        frame.writeTo(os);
+        return match;
+    }
+
+    private void invoke(DataInputStream call, DataOutputStream out) throws IOException {
+        int serviceId = call.readUnsignedByte();
+        int methodId = call.readUnsignedShort();
+        if (serviceId >= services.length || services[serviceId] == null || methodId >= methods[serviceId].length) {
+            writeError(out, new IllegalArgumentException("unknown method " + serviceId + "/" + methodId));
+            return;
+        }
+        Method method = methods[serviceId][methodId];
+        Class<?>[] types = method.getParameterTypes();
+        Object[] args = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            args[i] = RpcProtocol.read(call, types[i]);
+        }
+
+        Object ret;
+        try {
+            if (stateful[serviceId][methodId]) {
+                synchronized (stubLocks[serviceId]) {
+                    ret = method.invoke(services[serviceId], args);
+                }
+            } else {
+                ret = method.invoke(services[serviceId], args);
+            }
+        } catch (InvocationTargetException ex) {
+            writeError(out, ex.getCause());
+            return;
+        } catch (IllegalAccessException | RuntimeException ex) {
+            writeError(out, ex);
+            return;
+        }
+        out.writeByte(RpcProtocol.STATUS_OK);
+        if (method.getReturnType() != void.class) {
+            RpcProtocol.write(out, method.getReturnType(), ret);
+        }
+    }
+
+    private void writeError(DataOutputStream out, Throwable t) throws IOException {
+        out.writeByte(RpcProtocol.STATUS_ERROR);
+        RpcProtocol.writeString(out, t.getClass().getName());
+        RpcProtocol.write(out, String.class, t.getMessage());
+    }
+}
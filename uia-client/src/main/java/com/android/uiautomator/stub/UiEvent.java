@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.Serializable;
+
+/**
+ * A compact accessibility event, pushed from device to host, see {@link UiEventServer}. Types are the same as
+ * android.view.accessibility.AccessibilityEvent types, so they can be combined as a mask.
+ *
+ * @author linsong wang
+ */
+public class UiEvent implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int TYPE_VIEW_FOCUSED = 0x00000008;
+
+    public static final int TYPE_WINDOW_STATE_CHANGED = 0x00000020;
+
+    public static final int TYPE_WINDOW_CONTENT_CHANGED = 0x00000800;
+
+    /**
+     * Window and content changes, which make a loaded window hierarchy stale.
+     */
+    public static final int TYPES_WINDOW = TYPE_WINDOW_STATE_CHANGED | TYPE_WINDOW_CONTENT_CHANGED;
+
+    public static final int TYPES_ALL = TYPES_WINDOW | TYPE_VIEW_FOCUSED;
+
+    private final int type;
+
+    private final long time;
+
+    private final String packageName;
+
+    private final String className;
+
+    /**
+     * @param type        event type
+     * @param time        event time on device, in milliseconds since boot
+     * @param packageName package of the source window, can be null
+     * @param className   class of the source, such as an activity for window state change, can be null
+     */
+    public UiEvent(int type, long time, String packageName, String className) {
+        this.type = type;
+        this.time = time;
+        this.packageName = packageName;
+        this.className = className;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @param types       mask of event types
+     * @param packageName package name, or null for any package
+     *
+     * @return true if event is one of the types, and of the package
+     */
+    public boolean matches(int types, String packageName) {
+        return (type & types) != 0 && (packageName == null || packageName.equals(this.packageName));
+    }
+
+    @Override
+    public String toString() {
+        String name;
+        switch (type) {
+            case TYPE_VIEW_FOCUSED:
+                name = "FOCUSED";
+                break;
+            case TYPE_WINDOW_STATE_CHANGED:
+                name = "WINDOW_STATE_CHANGED";
+                break;
+            case TYPE_WINDOW_CONTENT_CHANGED:
+                name = "WINDOW_CONTENT_CHANGED";
+                break;
+            default:
+                name = "0x" + Integer.toHexString(type);
+        }
+        return "UiEvent[" + name + " " + packageName + " " + className + " @" + time + "]";
+    }
+}
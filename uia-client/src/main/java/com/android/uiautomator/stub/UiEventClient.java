@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Receives {@link UiEvent}s pushed by {@link UiEventServer}, and passes them to listeners, on a reader thread of its
+ * own.
+ *
+ * @author linsong wang
+ */
+public class UiEventClient implements Closeable {
+
+    private final Socket socket = new Socket();
+
+    private final DataInputStream in;
+
+    private final List<UiEventListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile boolean connected;
+
+    /**
+     * Connects to server, and subscribes to events.
+     *
+     * @param host    server host
+     * @param port    server port
+     * @param timeout connect timeout in milliseconds
+     * @param types   mask of event types to receive, such as {@link UiEvent#TYPES_ALL}
+     *
+     * @throws IOException if server cannot be reached, or is not compatible
+     */
+    public UiEventClient(String host, int port, int timeout, int types) throws IOException {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setSoTimeout(timeout);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(RpcProtocol.EVENT_MAGIC);
+            out.writeInt(RpcProtocol.VERSION);
+            out.writeInt(types);
+            out.flush();
+            if (receive().readByte() != RpcProtocol.STATUS_OK) {
+                throw new IOException("event server is not compatible");
+            }
+            socket.setSoTimeout(0);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        connected = true;
+        Thread thread = new Thread("uia-event-client") {
+            @Override
+            public void run() {
+                read();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void addListener(UiEventListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(UiEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return false once the channel is closed, or lost, after which no more events come
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void close() throws IOException {
+        connected = false;
+        socket.close();
+    }
+
+    private void read() {
+        try {
+            while (true) {
+                UiEvent event = (UiEvent) RpcProtocol.read(receive(), UiEvent.class);
+                for (UiEventListener l : listeners) {
+                    try {
+                        l.onUiEvent(event);
+                    } catch (RuntimeException ex) {
+                        System.err.println("event listener failed " + ex);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            if (connected) {
+                System.err.println("event channel closed " + ex);
+            }
+        } finally {
+            connected = false;
+        }
+    }
+
+    private DataInputStream receive() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > RpcProtocol.MAX_FRAME) {
+            throw new IOException("invalid frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new DataInputStream(new ByteArrayInputStream(payload));
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+/**
+ * Receives events pushed from device, see {@link UiEventClient}.
+ *
+ * @author linsong wang
+ */
+public interface UiEventListener {
+
+    /**
+     * Called on the event reader thread, in the order events happened on device. It should return quickly.
+     *
+     * @param event event from device
+     */
+    void onUiEvent(UiEvent event);
+}
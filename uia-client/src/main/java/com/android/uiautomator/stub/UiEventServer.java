@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes {@link UiEvent}s to subscribed hosts, on a channel of its own, apart from the rpc calls. Each subscriber
+ * has a queue and a thread, so {@link #publish(UiEvent)} never blocks the accessibility event thread; events are
+ * dropped for a subscriber whose queue is full. Content changes are coalesced, a new one is dropped while another
+ * one is still waiting to be sent.
+ *
+ * @author linsong wang
+ */
+public class UiEventServer implements Closeable {
+
+    public static final int MAX_SUBSCRIBERS = 4;
+
+    public static final int QUEUE_SIZE = 256;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private ServerSocket serverSocket;
+
+    public void bind(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        Thread thread = new Thread("uia-event-server") {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getSubscribers() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return number of events dropped because of full queues
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Queues an event for each subscriber of its type.
+     *
+     * @param event event to send
+     */
+    public void publish(UiEvent event) {
+        for (Subscriber s : subscribers) {
+            s.offer(event);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        for (Subscriber s : subscribers) {
+            s.close();
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (subscribers.size() >= MAX_SUBSCRIBERS) {
+                    System.err.println("Too many event subscribers, max " + MAX_SUBSCRIBERS);
+                    socket.close();
+                    continue;
+                }
+                Subscriber s = new Subscriber(socket);
+                subscribers.add(s);
+                s.start();
+            } catch (IOException ex) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Cannot accept event connection " + ex);
+                }
+            }
+        }
+    }
+
+    private class Subscriber extends Thread {
+        private final Socket socket;
+
+        private final BlockingQueue<UiEvent> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        private final AtomicBoolean contentPending = new AtomicBoolean();
+
+        /**
+         * Event types subscribed, none till handshake is done.
+         */
+        private volatile int types;
+
+        Subscriber(Socket socket) {
+            super("uia-event-" + socket.getPort());
+            this.setDaemon(true);
+            this.socket = socket;
+        }
+
+        void offer(UiEvent event) {
+            if ((event.getType() & types) == 0) {
+                return;
+            }
+            boolean content = event.getType() == UiEvent.TYPE_WINDOW_CONTENT_CHANGED;
+            if (content && !contentPending.compareAndSet(false, true)) {
+                return;
+            }
+            if (!queue.offer(event)) {
+                dropped.incrementAndGet();
+                if (content) {
+                    contentPending.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                OutputStream os = socket.getOutputStream();
+                RpcProtocol.Frame frame = new RpcProtocol.Frame();
+                int magic = in.readInt();
+                int version = in.readInt();
+                int mask = in.readInt();
+                boolean match = magic == RpcProtocol.EVENT_MAGIC && version == RpcProtocol.VERSION;
+                frame.begin().writeByte(match ? RpcProtocol.STATUS_OK : RpcProtocol.STATUS_ERROR);
+                frame.writeTo(os);
+                if (!match) {
+                    return;
+                }
+                this.types = mask;
+                while (true) {
+                    UiEvent event = queue.take();
+                    if (event.getType() == UiEvent.TYPE_WINDOW_CONTENT_CHANGED) {
+                        contentPending.set(false);
+                    }
+                    DataOutputStream out = frame.begin();
+                    RpcProtocol.write(out, UiEvent.class, event);
+                    frame.writeTo(os);
+                }
+            } catch (IOException ex) {
+                System.err.println("event connection closed " + ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                subscribers.remove(this);
+                this.close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+}
@@ -25,4 +25,8 @@ public class UiObjectNotFoundException extends Exception {
     public UiObjectNotFoundException(Throwable throwable) {
         super(throwable.toString());
     }
+
+    public UiObjectNotFoundException(String message) {
+        super(message);
+    }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.Serializable;
+
+/**
+ * Result of a one-shot UI object operation, the return value and the UiObjectNotFoundException if any, so there
+ * is no extra call to check for the exception.
+ *
+ * The value is one of Boolean, Integer, String, or Rect, or null.
+ *
+ * @author linsong wang
+ */
+public class UiObjectResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Object value;
+
+    private final UiObjectNotFoundException uiObjectNotFoundException;
+
+    public UiObjectResult(Object value) {
+        this(value, null);
+    }
+
+    public UiObjectResult(Object value, UiObjectNotFoundException uiObjectNotFoundException) {
+        this.value = value;
+        this.uiObjectNotFoundException = uiObjectNotFoundException;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public boolean getBoolean() {
+        return value instanceof Boolean && (Boolean) value;
+    }
+
+    public String getString() {
+        return value == null ? null : value.toString();
+    }
+
+    public Rect getRect() {
+        return (Rect) value;
+    }
+
+    public UiObjectNotFoundException getUiObjectNotFoundException() {
+        return uiObjectNotFoundException;
+    }
+
+    public boolean hasUiObjectNotFoundException() {
+        return uiObjectNotFoundException != null;
+    }
+
+    @Override
+    public String toString() {
+        return uiObjectNotFoundException == null ? "[" + value + "]" : "[" + uiObjectNotFoundException + "]";
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A list of UI steps, sent to device in one call, see {@link IUiDevice#runScript(UiScript)}, instead of one call per
+ * step. Besides actions on objects and device, steps can be conditional, or in a loop.
+ *
+ * <pre>
+ * UiScript script = new UiScript()
+ *     .when(UiScript.Step.exists(new UiSelector().description("Apps")),
+ *         new UiScript().click(new UiSelector().description("Apps")))
+ *     .whileTrue(UiScript.Step.not(UiScript.Step.exists(new UiSelector().text("Settings"))), 10,
+ *         new UiScript().swipe(540, 960, 0, 960, 5))
+ *     .click(new UiSelector().text("Settings"));
+ * </pre>
+ *
+ * @author linsong wang
+ */
+public class UiScript implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int KEYCODE_DPAD_RIGHT = 22;
+
+    public static final int KEYCODE_ENTER = 66;
+
+    public static final int KEYCODE_DEL = 67;
+
+    public enum Action {
+        EXISTS,
+        WAIT_FOR_EXISTS,
+        WAIT_UNTIL_GONE,
+        CLICK,
+        CLICK_BOTTOM_RIGHT,
+        LONG_CLICK,
+        SET_TEXT,
+        CLEAR_TEXT,
+        GET_TEXT,
+        CLICK_AT,
+        SWIPE,
+        PRESS_KEY,
+        PRESS_BACK,
+        PRESS_HOME,
+        WAIT_FOR_IDLE,
+        SLEEP,
+        NOT,
+        IF,
+        REPEAT,
+        WHILE
+    }
+
+    private final List<Step> steps = new ArrayList<>();
+
+    private boolean failFast;
+
+    private IdleSync idleSync;
+
+    private long idleTimeout;
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    /**
+     * Stops at the first failed step, instead of running all steps. Conditions of if and while are not checked.
+     *
+     * @param failFast true to stop at first failure
+     *
+     * @return this
+     */
+    public UiScript failFast(boolean failFast) {
+        this.failFast = failFast;
+        return this;
+    }
+
+    public IdleSync getIdleSync() {
+        return idleSync;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets how actions of this script wait for UI idle, such as {@link IdleSync#NONE} for a series of quick key
+     * presses. It applies to this script only, other calls keep the strategy of device, see
+     * {@link IUiDevice#setIdleSync(IdleSync, long)}.
+     *
+     * @param sync    idle sync strategy, null for the strategy of device
+     * @param timeout maximal time to wait in milliseconds, 0 for default
+     *
+     * @return this
+     */
+    public UiScript idleSync(IdleSync sync, long timeout) {
+        this.idleSync = sync;
+        this.idleTimeout = timeout;
+        return this;
+    }
+
+    public UiScript add(Step step) {
+        steps.add(step);
+        return this;
+    }
+
+    public UiScript exists(UiSelector selector) {
+        return add(Step.exists(selector));
+    }
+
+    public UiScript waitForExists(UiSelector selector, long timeout) {
+        return add(Step.waitForExists(selector, timeout));
+    }
+
+    public UiScript waitUntilGone(UiSelector selector, long timeout) {
+        return add(new Step(Action.WAIT_UNTIL_GONE, selector, null, null, timeout));
+    }
+
+    public UiScript click(UiSelector selector) {
+        return add(new Step(Action.CLICK, selector, null, null, 0));
+    }
+
+    public UiScript clickBottomRight(UiSelector selector) {
+        return add(new Step(Action.CLICK_BOTTOM_RIGHT, selector, null, null, 0));
+    }
+
+    public UiScript longClick(UiSelector selector) {
+        return add(new Step(Action.LONG_CLICK, selector, null, null, 0));
+    }
+
+    public UiScript setText(UiSelector selector, String text) {
+        return add(new Step(Action.SET_TEXT, selector, text, null, 0));
+    }
+
+    public UiScript clearText(UiSelector selector) {
+        return add(new Step(Action.CLEAR_TEXT, selector, null, null, 0));
+    }
+
+    public UiScript getText(UiSelector selector) {
+        return add(new Step(Action.GET_TEXT, selector, null, null, 0));
+    }
+
+    public UiScript clickAt(int x, int y) {
+        return add(new Step(Action.CLICK_AT, null, null, new int[]{x, y}, 0));
+    }
+
+    public UiScript swipe(int startX, int startY, int endX, int endY, int steps) {
+        return add(new Step(Action.SWIPE, null, null, new int[]{startX, startY, endX, endY, steps}, 0));
+    }
+
+    public UiScript pressKey(int keyCode) {
+        return add(new Step(Action.PRESS_KEY, null, null, new int[]{keyCode}, 0));
+    }
+
+    public UiScript pressBack() {
+        return add(new Step(Action.PRESS_BACK, null, null, null, 0));
+    }
+
+    public UiScript pressHome() {
+        return add(new Step(Action.PRESS_HOME, null, null, null, 0));
+    }
+
+    public UiScript waitForIdle() {
+        return waitForIdle(0);
+    }
+
+    /**
+     * @param timeout time to wait in milliseconds, 0 for default timeout
+     *
+     * @return this
+     */
+    public UiScript waitForIdle(long timeout) {
+        return add(new Step(Action.WAIT_FOR_IDLE, null, null, null, timeout));
+    }
+
+    public UiScript sleep(long millis) {
+        return add(new Step(Action.SLEEP, null, null, null, millis));
+    }
+
+    /**
+     * Runs then-steps if condition is true.
+     *
+     * @param condition condition step, such as exists
+     * @param then      steps to run if condition is true
+     *
+     * @return this
+     */
+    public UiScript when(Step condition, UiScript then) {
+        return when(condition, then, null);
+    }
+
+    /**
+     * Runs then-steps if condition is true, otherwise else-steps.
+     *
+     * @param condition condition step, such as exists
+     * @param then      steps to run if condition is true
+     * @param otherwise steps to run if condition is false, can be null
+     *
+     * @return this
+     */
+    public UiScript when(Step condition, UiScript then, UiScript otherwise) {
+        return add(Step.control(Action.IF, condition, then, otherwise, 0));
+    }
+
+    public UiScript repeat(int times, UiScript body) {
+        return add(Step.control(Action.REPEAT, null, body, null, times));
+    }
+
+    /**
+     * Runs steps while condition is true, at most a number of times.
+     *
+     * @param condition condition step, checked before each run
+     * @param max       maximal number of runs
+     * @param body      steps to run
+     *
+     * @return this
+     */
+    public UiScript whileTrue(Step condition, int max, UiScript body) {
+        return add(Step.control(Action.WHILE, condition, body, null, max));
+    }
+
+    @Override
+    public String toString() {
+        return "UiScript" + steps;
+    }
+
+    /**
+     * One step of script, fields used depend on action.
+     */
+    public static class Step implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Action action;
+
+        private final UiSelector selector;
+
+        private final String text;
+
+        private final int[] args;
+
+        /**
+         * Timeout, or sleep time in milliseconds, or number of loops.
+         */
+        private final long timeout;
+
+        private final Step condition;
+
+        private final UiScript then;
+
+        private final UiScript otherwise;
+
+        public Step(Action action, UiSelector selector, String text, int[] args, long timeout) {
+            this(action, selector, text, args, timeout, null, null, null);
+        }
+
+        static Step control(Action action, Step condition, UiScript then, UiScript otherwise, long timeout) {
+            return new Step(action, null, null, null, timeout, condition, then, otherwise);
+        }
+
+        Step(Action action, UiSelector selector, String text, int[] args, long timeout, Step condition, UiScript then,
+            UiScript otherwise) {
+            this.action = action;
+            this.selector = selector;
+            this.text = text;
+            this.args = args;
+            this.timeout = timeout;
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        public static Step exists(UiSelector selector) {
+            return new Step(Action.EXISTS, selector, null, null, 0);
+        }
+
+        public static Step waitForExists(UiSelector selector, long timeout) {
+            return new Step(Action.WAIT_FOR_EXISTS, selector, null, null, timeout);
+        }
+
+        public static Step not(Step condition) {
+            return control(Action.NOT, condition, null, null, 0);
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        public UiSelector getSelector() {
+            return selector;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public int[] getArgs() {
+            return args;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public Step getCondition() {
+            return condition;
+        }
+
+        public UiScript getThen() {
+            return then;
+        }
+
+        public UiScript getOtherwise() {
+            return otherwise;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(action.name());
+            if (selector != null) {
+                sb.append(' ').append(selector.getAttributes());
+            }
+            if (text != null) {
+                sb.append(" '").append(text).append('\'');
+            }
+            if (condition != null) {
+                sb.append(" (").append(condition).append(')');
+            }
+            return sb.toString();
+        }
+    }
+}
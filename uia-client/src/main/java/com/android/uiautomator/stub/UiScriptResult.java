@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results of the steps run by a {@link UiScript}, in the order they finished, so a step with nested steps, such as
+ * if, comes after them. Steps in loops appear once per run, and steps of branches not taken do not appear.
+ *
+ * @author linsong wang
+ */
+public class UiScriptResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<StepResult> results = new ArrayList<>();
+
+    private boolean completed = true;
+
+    public List<StepResult> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * @return false if a fail-fast script stopped at a failed step
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return true if all steps, other than conditions, succeeded
+     */
+    public boolean isOk() {
+        for (StepResult r : results) {
+            if (!r.isOk() && !r.isCondition()) {
+                return false;
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * @return value of the last step which has one, such as GET_TEXT, or null
+     */
+    public String getLastValue() {
+        for (int i = results.size() - 1; i >= 0; i--) {
+            if (results.get(i).getValue() != null) {
+                return results.get(i).getValue();
+            }
+        }
+        return null;
+    }
+
+    public long getMillis() {
+        long millis = 0;
+        for (StepResult r : results) {
+            if (r.getDepth() == 0) {
+                millis += r.getMillis();
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * @return time top level steps spent waiting for idle after actions
+     */
+    public long getIdleMillis() {
+        long millis = 0;
+        for (StepResult r : results) {
+            if (r.getDepth() == 0) {
+                millis += r.getIdleMillis();
+            }
+        }
+        return millis;
+    }
+
+    public void add(StepResult result) {
+        results.add(result);
+    }
+
+    public void setCompleted(boolean completed) {
+        this.completed = completed;
+    }
+
+    @Override
+    public String toString() {
+        return "UiScriptResult" + results;
+    }
+
+    public static class StepResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String step;
+
+        private final int depth;
+
+        private final boolean condition;
+
+        private final boolean ok;
+
+        private final String value;
+
+        private final String error;
+
+        private final long millis;
+
+        private final long idleMillis;
+
+        public StepResult(String step, int depth, boolean condition, boolean ok, String value, String error,
+            long millis) {
+            this(step, depth, condition, ok, value, error, millis, 0);
+        }
+
+        /**
+         * @param step       description of the step
+         * @param depth      nesting level of step, 0 for top level
+         * @param condition  true if step is a condition of if or while
+         * @param ok         true if step succeeded, or condition is true
+         * @param value      value read by step, can be null
+         * @param error      error message, can be null
+         * @param millis     time spent on step, including nested steps
+         * @param idleMillis part of millis spent waiting for idle after actions
+         */
+        public StepResult(String step, int depth, boolean condition, boolean ok, String value, String error,
+            long millis, long idleMillis) {
+            this.step = step;
+            this.depth = depth;
+            this.condition = condition;
+            this.ok = ok;
+            this.value = value;
+            this.error = error;
+            this.millis = millis;
+            this.idleMillis = idleMillis;
+        }
+
+        public String getStep() {
+            return step;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public boolean isCondition() {
+            return condition;
+        }
+
+        public boolean isOk() {
+            return ok;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public long getIdleMillis() {
+            return idleMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + step + " " + (ok ? "ok" : "failed") + (value == null ? "" : " '" + value + "'")
+                + (error == null ? "" : " " + error) + " " + millis + "ms"
+                + (idleMillis == 0 ? "" : ", idle " + idleMillis + "ms") + "]";
+        }
+    }
+}
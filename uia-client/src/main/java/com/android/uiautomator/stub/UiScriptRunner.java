@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+/**
+ * Interprets a {@link UiScript} with a device and an object. On device, it runs with the stubs directly, and an object
+ * of its own, so the whole script costs one call. With remote stubs, each step costs its own calls, which is the
+ * fallback for uia servers without script support.
+ *
+ * @author linsong wang
+ */
+public class UiScriptRunner {
+
+    private final IUiDevice device;
+
+    private final IUiObject object;
+
+    private final IdleStats idleStats;
+
+    public UiScriptRunner(IUiDevice device, IUiObject object) {
+        this(device, object, null);
+    }
+
+    /**
+     * @param device    device to run with
+     * @param object    object to run with
+     * @param idleStats live idle stats of device, to get idle time of each step, can be null
+     */
+    public UiScriptRunner(IUiDevice device, IUiObject object, IdleStats idleStats) {
+        this.device = device;
+        this.object = object;
+        this.idleStats = idleStats;
+    }
+
+    public UiScriptResult run(UiScript script) {
+        UiScriptResult result = new UiScriptResult();
+        result.setCompleted(run(script, 0, result));
+        return result;
+    }
+
+    /**
+     * @return false if script stopped at a failed step
+     */
+    private boolean run(UiScript script, int depth, UiScriptResult result) {
+        for (UiScript.Step step : script.getSteps()) {
+            if (!step(step, depth, false, result) && script.isFailFast()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean step(UiScript.Step step, int depth, boolean condition, UiScriptResult result) {
+        long start = System.currentTimeMillis();
+        long idle = idleStats == null ? 0 : idleStats.getTotalMillis();
+        boolean ok;
+        String value = null;
+        String error = null;
+        int[] args = step.getArgs();
+        try {
+            if (step.getSelector() != null) {
+                // a not found exception left by an earlier step is not an error of this one
+                object.clearUiObjectNotFoundException();
+                object.useUiObjectSelector(step.getSelector());
+            }
+            switch (step.getAction()) {
+                case EXISTS:
+                    ok = object.exists();
+                    break;
+                case WAIT_FOR_EXISTS:
+                    ok = object.waitForExists(step.getTimeout());
+                    break;
+                case WAIT_UNTIL_GONE:
+                    ok = object.waitUntilGone(step.getTimeout());
+                    break;
+                case CLICK:
+                    ok = object.click();
+                    break;
+                case CLICK_BOTTOM_RIGHT:
+                    ok = object.clickBottomRight();
+                    break;
+                case LONG_CLICK:
+                    ok = object.longClick();
+                    break;
+                case SET_TEXT:
+                    ok = object.setText(step.getText());
+                    break;
+                case CLEAR_TEXT:
+                    object.clearTextField();
+                    ok = !object.hasUiObjectNotFoundException();
+                    break;
+                case GET_TEXT:
+                    value = object.getText();
+                    ok = value != null;
+                    break;
+                case CLICK_AT:
+                    ok = device.click(args[0], args[1]);
+                    break;
+                case SWIPE:
+                    ok = device.swipe(args[0], args[1], args[2], args[3], args[4]);
+                    break;
+                case PRESS_KEY:
+                    ok = device.pressKeyCode(args[0]);
+                    break;
+                case PRESS_BACK:
+                    ok = device.pressBack();
+                    break;
+                case PRESS_HOME:
+                    ok = device.pressHome();
+                    break;
+                case WAIT_FOR_IDLE:
+                    if (step.getTimeout() > 0) {
+                        device.waitForIdle(step.getTimeout());
+                    } else {
+                        device.waitForIdle();
+                    }
+                    ok = true;
+                    break;
+                case SLEEP:
+                    Thread.sleep(step.getTimeout());
+                    ok = true;
+                    break;
+                case NOT:
+                    ok = !step(step.getCondition(), depth + 1, true, result);
+                    break;
+                case IF:
+                    if (step(step.getCondition(), depth + 1, true, result)) {
+                        ok = run(step.getThen(), depth + 1, result);
+                    } else {
+                        ok = step.getOtherwise() == null || run(step.getOtherwise(), depth + 1, result);
+                    }
+                    break;
+                case REPEAT:
+                    ok = true;
+                    for (long i = 0; i < step.getTimeout(); i++) {
+                        ok &= run(step.getThen(), depth + 1, result);
+                    }
+                    break;
+                case WHILE:
+                    ok = true;
+                    for (long i = 0; i < step.getTimeout() && step(step.getCondition(), depth + 1, true, result);
+                        i++) {
+                        ok &= run(step.getThen(), depth + 1, result);
+                    }
+                    break;
+                default:
+                    throw new UnsupportedOperationException(step.getAction().name());
+            }
+            if (!ok && step.getSelector() != null && object.hasUiObjectNotFoundException()) {
+                error = object.getUiObjectNotFoundException().getMessage();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            ok = false;
+            error = ex.toString();
+        } catch (RuntimeException ex) {
+            ok = false;
+            error = ex.toString();
+        }
+        result.add(new UiScriptResult.StepResult(step.toString(), depth, condition, ok, value, error,
+            System.currentTimeMillis() - start, idleStats == null ? 0 : idleStats.getTotalMillis() - idle));
+        return ok;
+    }
+}
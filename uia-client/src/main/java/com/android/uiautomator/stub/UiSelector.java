@@ -103,6 +103,10 @@ public class UiSelector implements Serializable {
         return this.mSelectorAttributes.get(i);
     }
 
+    Map<Integer, Object> getAttributes() {
+        return this.mSelectorAttributes;
+    }
+
     /**
      * Set the search criteria to match the visible text displayed
      * in a widget (for example, the text label to launch an app).
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Window hierarchy sent last to each session, to reply with changes only, see {@link HierarchyDelta}.
+ *
+ * @author linsong wang
+ */
+final class HierarchySessions {
+
+    private long ids;
+
+    private long versions;
+
+    private final Map<Long, Snapshot> sessions = new LinkedHashMap<Long, Snapshot>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Snapshot> eldest) {
+            return size() > HierarchyDelta.MAX_SESSIONS;
+        }
+    };
+
+    /**
+     * Compares a hierarchy with the one sent last to a session, and keeps it as the last one.
+     *
+     * @param session   session id, 0 for a new session
+     * @param base      version the session has, 0 for none
+     * @param rotation  display rotation
+     * @param hierarchy current hierarchy, not changed after this call
+     *
+     * @return changes since base, or full hierarchy if session does not have base version
+     */
+    synchronized HierarchyDelta delta(long session, long base, String rotation,
+        SortedMap<String, String[]> hierarchy) {
+        if (session == 0 || !sessions.containsKey(session)) {
+            session = ++ids;
+        }
+        Snapshot last = sessions.get(session);
+        if (last == null || last.version != base || !last.rotation.equals(rotation)) {
+            base = 0;
+        }
+        HierarchyDelta delta = HierarchyDelta.diff(session, base, versions + 1, rotation,
+            last == null ? null : last.hierarchy, hierarchy);
+        if (!delta.isFull() && delta.isEmpty()) {
+            // same version, so the session can keep using what it has
+            delta = new HierarchyDelta(session, base, base, rotation, delta.getRemoved(), delta.getNodes());
+        } else {
+            versions++;
+        }
+        sessions.put(session, new Snapshot(delta.getVersion(), rotation, hierarchy));
+        return delta;
+    }
+
+    private static final class Snapshot {
+        final long version;
+
+        final String rotation;
+
+        final SortedMap<String, String[]> hierarchy;
+
+        Snapshot(long version, String rotation, SortedMap<String, String[]> hierarchy) {
+            this.version = version;
+            this.rotation = rotation;
+            this.hierarchy = hierarchy;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import android.os.SystemClock;
+import com.android.uiautomator.core.UiDevice;
+
+/**
+ * Waits for UI to settle after actions of stubs, with the strategy set by
+ * {@link IUiDevice#setIdleSync(IdleSync, long)}, and keeps the time spent waiting. All stubs share one instance, so
+ * the strategy applies to the whole device, unless the calling thread overrides it, as a script with its own idle
+ * sync does, see {@link UiScript#idleSync(IdleSync, long)}.
+ *
+ * @author linsong wang
+ */
+public final class IdleSynchronizer {
+
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    /**
+     * Time to wait for a first window update in adaptive mode.
+     */
+    public static final long ADAPTIVE_PROBE = 300;
+
+    private static final IdleSynchronizer INSTANCE = new IdleSynchronizer();
+
+    private final UiDevice uiDevice = UiDevice.getInstance();
+
+    private final IdleStats stats = new IdleStats();
+
+    private volatile IdleSync sync = IdleSync.DEVICE;
+
+    private volatile long timeout = DEFAULT_TIMEOUT;
+
+    /**
+     * Strategy and timeout of the current call, null for those of device.
+     */
+    private final ThreadLocal<Setting> override = new ThreadLocal<Setting>();
+
+    private IdleSynchronizer() {
+    }
+
+    public static IdleSynchronizer getInstance() {
+        return INSTANCE;
+    }
+
+    public void set(IdleSync sync, long timeout) {
+        this.sync = sync == null ? IdleSync.DEVICE : sync;
+        this.timeout = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+    }
+
+    /**
+     * Sets strategy for actions of the calling thread only, till {@link #clear()}.
+     *
+     * @param sync    idle sync strategy, null for the strategy of device
+     * @param timeout maximal time to wait in milliseconds, 0 for default
+     */
+    public void override(IdleSync sync, long timeout) {
+        if (sync == null) {
+            override.remove();
+        } else {
+            override.set(new Setting(sync, timeout > 0 ? timeout : DEFAULT_TIMEOUT));
+        }
+    }
+
+    public void clear() {
+        override.remove();
+    }
+
+    /**
+     * @return live stats, see {@link IdleStats#copy()}
+     */
+    public IdleStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Waits for UI to settle after an action.
+     */
+    public void sync() {
+        Setting o = override.get();
+        IdleSync s = o == null ? this.sync : o.sync;
+        if (s == IdleSync.NONE) {
+            return;
+        }
+        long t = o == null ? this.timeout : o.timeout;
+        long start = SystemClock.uptimeMillis();
+        boolean settled;
+        switch (s) {
+            case WINDOW_UPDATE:
+                settled = uiDevice.waitForWindowUpdate(null, t);
+                break;
+            case ADAPTIVE:
+                settled = true;
+                if (uiDevice.waitForWindowUpdate(null, Math.min(ADAPTIVE_PROBE, t))) {
+                    long left = t - (SystemClock.uptimeMillis() - start);
+                    if (left > 0) {
+                        uiDevice.waitForIdle(left);
+                    }
+                    settled = SystemClock.uptimeMillis() - start < t;
+                }
+                break;
+            default:
+                uiDevice.waitForIdle(t);
+                settled = SystemClock.uptimeMillis() - start < t;
+                break;
+        }
+        stats.add(SystemClock.uptimeMillis() - start, !settled);
+    }
+
+    private static final class Setting {
+        private final IdleSync sync;
+
+        private final long timeout;
+
+        Setting(IdleSync sync, long timeout) {
+            this.sync = sync;
+            this.timeout = timeout;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import android.app.UiAutomation;
+import com.android.uiautomator.core.UiDevice;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Access to UiAutomation, which uiautomator does not expose; it is taken from the automator bridge of UiDevice.
+ *
+ * @author linsong wang
+ */
+final class UiAutomations {
+
+    private UiAutomations() {
+    }
+
+    /**
+     * @return UiAutomation of uiautomator
+     *
+     * @throws Exception if it cannot be reached on this device
+     */
+    static UiAutomation get() throws Exception {
+        Method m = UiDevice.class.getDeclaredMethod("getAutomatorBridge");
+        m.setAccessible(true);
+        Object bridge = m.invoke(UiDevice.getInstance());
+        return (UiAutomation) field(bridge.getClass(), "mUiAutomation").get(bridge);
+    }
+
+    static Field field(Class<?> type, String name) throws NoSuchFieldException {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                Field f = c.getDeclaredField(name);
+                f.setAccessible(true);
+                return f;
+            } catch (NoSuchFieldException ex) {
+                // try super class
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+}
@@ -36,24 +36,57 @@ import net.sf.lipermi.net.Server;
  *
  * adb forward --remove tcp:local_port
  * adb forward tcp:local_port tcp:8998
+ * adb forward tcp:local_port_rpc tcp:8999
+ * adb forward tcp:local_port_event tcp:9000
  *
  * @author linsong wang
  */
 public class UiAutomatorRmiServer extends UiAutomatorTestCase {
+    private static final String TAG = "UIA";
+
     private static final CallHandler CALL_HANDLER = new CallHandler();
 
+    private static final RpcServer RPC_SERVER = new RpcServer();
+
+    private static final UiEventServer EVENT_SERVER = new UiEventServer();
+
     static {
         Server server = new Server();
         try {
             server.bind(IUiDevice.UIAUTOMATOR_RMI_PORT, CALL_HANDLER);
 
-            CALL_HANDLER.registerGlobal(IUiDevice.class, new UiDeviceStub());
-            CALL_HANDLER.registerGlobal(IUiObject.class, new UiObjectStub());
-            CALL_HANDLER.registerGlobal(IUiCollection.class, new UiCollectionStub());
-            CALL_HANDLER.registerGlobal(IUiScrollable.class, new UiScrollableStub());
+            UiDeviceStub uiDevice = new UiDeviceStub();
+            UiObjectStub uiObject = new UiObjectStub();
+            UiCollectionStub uiCollection = new UiCollectionStub();
+            UiScrollableStub uiScrollable = new UiScrollableStub();
+            UiObjectRegistryStub uiObjectRegistry = new UiObjectRegistryStub();
+            CALL_HANDLER.registerGlobal(IUiDevice.class, uiDevice);
+            CALL_HANDLER.registerGlobal(IUiObject.class, uiObject);
+            CALL_HANDLER.registerGlobal(IUiCollection.class, uiCollection);
+            CALL_HANDLER.registerGlobal(IUiScrollable.class, uiScrollable);
+            CALL_HANDLER.registerGlobal(IUiObjectRegistry.class, uiObjectRegistry);
+
+            RPC_SERVER.register(IUiDevice.class, uiDevice);
+            RPC_SERVER.register(IUiObject.class, uiObject);
+            RPC_SERVER.register(IUiCollection.class, uiCollection);
+            RPC_SERVER.register(IUiScrollable.class, uiScrollable);
+            RPC_SERVER.register(IUiObjectRegistry.class, uiObjectRegistry);
         } catch (IOException | LipeRMIException e) {
             throw new RuntimeException(e);
         }
+
+        try {
+            RPC_SERVER.bind(IUiDevice.UIAUTOMATOR_RPC_PORT);
+        } catch (IOException ex) {
+            Log.w(TAG, "Cannot start binary rpc, LipeRMI only", ex);
+        }
+        if (UiEventPublisher.install(EVENT_SERVER)) {
+            try {
+                EVENT_SERVER.bind(IUiDevice.UIAUTOMATOR_EVENT_PORT);
+            } catch (IOException ex) {
+                Log.w(TAG, "Cannot publish accessibility events", ex);
+            }
+        }
     }
 
     public void testRmiServer() throws Exception {
@@ -15,8 +15,24 @@
  */
 package com.android.uiautomator.stub;
 
+import android.app.UiAutomation;
+import android.graphics.Bitmap;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
 
 import com.android.uiautomator.core.UiDevice;
 import net.sf.lipermi.exception.LipeRMIException;
@@ -28,8 +44,16 @@ import net.sf.lipermi.exception.LipeRMIException;
 public class UiDeviceStub implements IUiDevice {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Held by all stubs only while input is injected, so that gestures of different connections do not mix. Waiting
+     * for UI, before or after the input, happens outside of it.
+     */
+    static final Object INPUT_LOCK = new Object();
+
     private final UiDevice uiDevice = UiDevice.getInstance();
 
+    private final HierarchySessions hierarchySessions = new HierarchySessions();
+
     @Override
     public void clearLastTraversedText() {
         this.uiDevice.clearLastTraversedText();
@@ -37,7 +61,10 @@ public class UiDeviceStub implements IUiDevice {
 
     @Override
     public boolean click(int x, int y) {
-        boolean ok = this.uiDevice.click(x, y);
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.click(x, y);
+        }
         this.waitForIdle0();
         return ok;
     }
@@ -49,6 +76,82 @@ public class UiDeviceStub implements IUiDevice {
         this.uiDevice.dumpWindowHierarchy(fileName);
     }
 
+    @Override
+    public byte[] dumpWindowHierarchy(boolean gzip) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        try (OutputStream os = gzip ? new GZIPOutputStream(bytes) : bytes) {
+            AccessibilityNodeInfo root = this.getRootInActiveWindow();
+            if (root == null) {
+                this.dumpWindowHierarchyFile(os);
+            } else {
+                try {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 16 * 1024);
+                    new WindowHierarchyDumper(writer, uiDevice.getDisplayWidth(), uiDevice.getDisplayHeight())
+                        .dump(root, uiDevice.getDisplayRotation());
+                } finally {
+                    root.recycle();
+                }
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("cannot dump window hierarchy", ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public byte[] dumpWindowHierarchy(UiSelector selector, int maxDepth, String[] attributes, boolean visibleOnly,
+        boolean gzip) throws UiObjectNotFoundException {
+        AccessibilityNodeInfo root = selector == null ? this.getRootInActiveWindow()
+            : new UiObjectNode(convert(selector)).find(0);
+        if (root == null) {
+            if (selector == null) {
+                throw new UnsupportedOperationException("cannot get root node of active window");
+            }
+            throw new UiObjectNotFoundException("no object of " + selector.getAttributes());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+        try (OutputStream os = gzip ? new GZIPOutputStream(bytes) : bytes) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 16 * 1024);
+            new WindowHierarchyDumper(writer, uiDevice.getDisplayWidth(), uiDevice.getDisplayHeight())
+                .project(attributes).maxDepth(maxDepth).visibleOnly(visibleOnly)
+                .dump(root, uiDevice.getDisplayRotation());
+        } catch (IOException ex) {
+            throw new IllegalStateException("cannot dump window hierarchy", ex);
+        } finally {
+            root.recycle();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public byte[] dumpWindowHierarchyDelta(long session, long base, boolean gzip) {
+        AccessibilityNodeInfo root = this.getRootInActiveWindow();
+        if (root == null) {
+            throw new UnsupportedOperationException("cannot get root node of active window");
+        }
+        SortedMap<String, String[]> nodes = new TreeMap<>();
+        try {
+            new WindowHierarchyDumper(uiDevice.getDisplayWidth(), uiDevice.getDisplayHeight()).collect(root, nodes);
+        } finally {
+            root.recycle();
+        }
+        HierarchyDelta delta = hierarchySessions.delta(session, base,
+            Integer.toString(uiDevice.getDisplayRotation()), nodes);
+        try {
+            byte[] bytes = delta.toByteArray();
+            if (!gzip) {
+                return bytes;
+            }
+            ByteArrayOutputStream gz = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            try (OutputStream os = new GZIPOutputStream(gz)) {
+                os.write(bytes);
+            }
+            return gz.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException("cannot encode window hierarchy delta", ex);
+        }
+    }
+
     @Override
     public void freezeRotation() throws LipeRMIException {
         try {
@@ -135,84 +238,120 @@ public class UiDeviceStub implements IUiDevice {
 
     @Override
     public boolean pressBack() {
-        boolean ok = this.uiDevice.pressBack();
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressBack();
+        }
         this.waitForIdle0();
         return ok;
     }
 
     @Override
     public boolean pressDPadCenter() {
-        boolean ok = this.uiDevice.pressDPadCenter();
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressDPadCenter();
+        }
         this.waitForIdle0();
         return ok;
     }
 
     @Override
     public boolean pressDPadDown() {
-        boolean ok = this.uiDevice.pressDPadDown();
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressDPadDown();
+        }
         this.waitForIdle0();
         return ok;
     }
 
     @Override
     public boolean pressDPadLeft() {
-        boolean ok = this.uiDevice.pressDPadLeft();
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressDPadLeft();
+        }
         this.waitForIdle0();
         return ok;
     }
 
     @Override
     public boolean pressDPadRight() {
-        boolean ok = this.uiDevice.pressDPadRight();
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressDPadRight();
+        }
         this.waitForIdle0();
         return ok;
     }
 
     @Override
     public boolean pressDPadUp() {
-        boolean ok = this.uiDevice.pressDPadUp();
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressDPadUp();
+        }
         this.waitForIdle0();
         return ok;
     }
 
     @Override
     public boolean pressDelete() {
-        boolean ok = this.uiDevice.pressDelete();
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressDelete();
+        }
         this.waitForIdle0();
         return ok;
     }
 
     @Override
     public boolean pressEnter() {
-        boolean ok = this.uiDevice.pressEnter();
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressEnter();
+        }
         this.waitForIdle0();
         return ok;
     }
 
     @Override
     public boolean pressHome() {
-        boolean ok = this.uiDevice.pressHome();
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressHome();
+        }
         this.waitForIdle0();
         return ok;
     }
 
     @Override
     public boolean pressKeyCode(int keyCode) {
-        boolean ok = this.uiDevice.pressKeyCode(keyCode);
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressKeyCode(keyCode);
+        }
         this.waitForIdle0();
         return ok;
     }
 
     @Override
     public boolean pressKeyCode(int keyCode, int metaState) {
-        boolean ok = this.uiDevice.pressKeyCode(keyCode, metaState);
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressKeyCode(keyCode, metaState);
+        }
         this.waitForIdle0();
         return ok;
     }
 
     @Override
     public boolean pressMenu() {
-        boolean ok = this.uiDevice.pressMenu();
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressMenu();
+        }
         this.waitForIdle0();
         return ok;
     }
@@ -220,7 +359,10 @@ public class UiDeviceStub implements IUiDevice {
     @Override
     public boolean pressRecentApps() throws LipeRMIException {
         try {
-            boolean ok = this.uiDevice.pressRecentApps();
+            boolean ok;
+            synchronized (INPUT_LOCK) {
+                ok = this.uiDevice.pressRecentApps();
+            }
             this.waitForIdle0();
             return ok;
         } catch (RemoteException ex) {
@@ -230,7 +372,10 @@ public class UiDeviceStub implements IUiDevice {
 
     @Override
     public boolean pressSearch() {
-        boolean ok = this.uiDevice.pressSearch();
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.pressSearch();
+        }
         this.waitForIdle0();
         return ok;
     }
@@ -292,7 +437,9 @@ public class UiDeviceStub implements IUiDevice {
     @Override
     public void sleep() throws LipeRMIException {
         try {
-            this.uiDevice.sleep();
+            synchronized (INPUT_LOCK) {
+                this.uiDevice.sleep();
+            }
         } catch (RemoteException ex) {
             throw new LipeRMIException(ex);
         }
@@ -300,7 +447,12 @@ public class UiDeviceStub implements IUiDevice {
 
     @Override
     public boolean swipe(int startX, int startY, int endX, int endY, int steps) {
-        return this.uiDevice.swipe(startX, startY, endX, endY, steps);
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.swipe(startX, startY, endX, endY, steps);
+        }
+        this.waitForIdle0();
+        return ok;
     }
 
     @Override
@@ -309,7 +461,12 @@ public class UiDeviceStub implements IUiDevice {
         for (int i = 0; i < segments.length; i++) {
             aSegments[i] = new android.graphics.Point(segments[i].x, segments[i].y);
         }
-        return this.uiDevice.swipe(aSegments, segmentSteps);
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = this.uiDevice.swipe(aSegments, segmentSteps);
+        }
+        this.waitForIdle0();
+        return ok;
     }
 
     @Override
@@ -324,6 +481,38 @@ public class UiDeviceStub implements IUiDevice {
         return this.uiDevice.takeScreenshot(new File(f, name), scale, quality);
     }
 
+    @Override
+    public byte[] getScreenshot(Rect crop, float scale, boolean png, int quality) {
+        Bitmap bitmap;
+        try {
+            bitmap = UiAutomations.get().takeScreenshot();
+        } catch (Exception ex) {
+            throw new UnsupportedOperationException("Cannot take screenshot with UiAutomation " + ex);
+        }
+        if (bitmap == null) {
+            throw new IllegalStateException("Cannot take screenshot");
+        }
+        try {
+            if (crop != null) {
+                int left = Math.max(0, Math.min(crop.left, bitmap.getWidth() - 1));
+                int top = Math.max(0, Math.min(crop.top, bitmap.getHeight() - 1));
+                int right = Math.max(left + 1, Math.min(crop.right, bitmap.getWidth()));
+                int bottom = Math.max(top + 1, Math.min(crop.bottom, bitmap.getHeight()));
+                bitmap = replace(bitmap, Bitmap.createBitmap(bitmap, left, top, right - left, bottom - top));
+            }
+            if (scale > 0 && scale != 1.0f) {
+                int w = Math.max(1, Math.round(bitmap.getWidth() * scale));
+                int h = Math.max(1, Math.round(bitmap.getHeight() * scale));
+                bitmap = replace(bitmap, Bitmap.createScaledBitmap(bitmap, w, h, true));
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * 1024);
+            bitmap.compress(png ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, quality, bytes);
+            return bytes.toByteArray();
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
     @Override
     public void unfreezeRotation() throws LipeRMIException {
         try {
@@ -343,6 +532,32 @@ public class UiDeviceStub implements IUiDevice {
         this.uiDevice.waitForIdle(time);
     }
 
+    @Override
+    public UiScriptResult runScript(UiScript script) {
+        IdleSynchronizer idle = IdleSynchronizer.getInstance();
+        idle.override(script.getIdleSync(), script.getIdleTimeout());
+        try {
+            return new UiScriptRunner(this, new UiObjectStub(), idle.getStats()).run(script);
+        } finally {
+            idle.clear();
+        }
+    }
+
+    @Override
+    public void setIdleSync(IdleSync sync, long timeout) {
+        IdleSynchronizer.getInstance().set(sync, timeout);
+    }
+
+    @Override
+    public IdleStats getIdleStats() {
+        return IdleSynchronizer.getInstance().getStats().copy();
+    }
+
+    @Override
+    public void resetIdleStats() {
+        IdleSynchronizer.getInstance().getStats().reset();
+    }
+
     @Override
     public boolean waitForWindowUpdate(String packageName, long timeout) {
         return this.uiDevice.waitForWindowUpdate(packageName, timeout);
@@ -351,7 +566,10 @@ public class UiDeviceStub implements IUiDevice {
     @Override
     public void wakeUp() throws LipeRMIException {
         try {
-            this.uiDevice.wakeUp();
+            synchronized (INPUT_LOCK) {
+                this.uiDevice.wakeUp();
+            }
+            this.waitForIdle0();
         } catch (RemoteException ex) {
             throw new LipeRMIException(ex);
         }
@@ -445,20 +663,75 @@ public class UiDeviceStub implements IUiDevice {
 
     @Override
     public boolean openNotification() {
-        return uiDevice.openNotification();
+        synchronized (INPUT_LOCK) {
+            return uiDevice.openNotification();
+        }
     }
 
     @Override
     public boolean openQuickSettings() {
-        return uiDevice.openQuickSettings();
+        synchronized (INPUT_LOCK) {
+            return uiDevice.openQuickSettings();
+        }
     }
 
     @Override
     public boolean drag(int startX, int startY, int endX, int endY, int steps) {
-        return uiDevice.drag(startX, startY, endX, endY, steps);
+        boolean ok;
+        synchronized (INPUT_LOCK) {
+            ok = uiDevice.drag(startX, startY, endX, endY, steps);
+        }
+        this.waitForIdle0();
+        return ok;
+    }
+
+    private static Bitmap replace(Bitmap old, Bitmap bitmap) {
+        if (bitmap != old) {
+            old.recycle();
+        }
+        return bitmap;
+    }
+
+    private AccessibilityNodeInfo getRootInActiveWindow() {
+        try {
+            UiAutomation automation = UiAutomations.get();
+            for (int i = 0; i < 3; i++) {
+                AccessibilityNodeInfo root = automation.getRootInActiveWindow();
+                if (root != null) {
+                    return root;
+                }
+                SystemClock.sleep(100);
+            }
+        } catch (Exception ex) {
+            Log.w("UIA", "Cannot get root node, dump to file", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Dumps with uiautomator to a file, which is copied and removed.
+     */
+    private void dumpWindowHierarchyFile(OutputStream os) throws IOException {
+        String name = "uidump-" + SystemClock.uptimeMillis() + ".xml";
+        this.dumpWindowHierarchy(name);
+        for (String dir : new String[]{IUiDevice.TMP_DIR, IUiDevice.TMP_DIR_V6}) {
+            File file = new File(dir, name);
+            if (file.exists()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    byte[] buf = new byte[16 * 1024];
+                    for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                        os.write(buf, 0, n);
+                    }
+                } finally {
+                    file.delete();
+                }
+                return;
+            }
+        }
+        throw new IOException("Cannot find file " + name);
     }
 
     private void waitForIdle0() {
-        this.uiDevice.waitForIdle();
+        IdleSynchronizer.getInstance().sync();
     }
 }
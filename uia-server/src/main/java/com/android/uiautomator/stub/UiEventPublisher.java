@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import android.app.UiAutomation;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+
+/**
+ * Listens to accessibility events of UiAutomation, and publishes window, content and focus events to
+ * {@link UiEventServer}.
+ *
+ * Uiautomator sets its own listener on UiAutomation, for last traversed text. The listener in place is kept, and
+ * called first.
+ *
+ * @author linsong wang
+ */
+public class UiEventPublisher implements UiAutomation.OnAccessibilityEventListener {
+    private static final String TAG = "UIA";
+
+    private final UiEventServer server;
+
+    private final UiAutomation.OnAccessibilityEventListener previous;
+
+    private UiEventPublisher(UiEventServer server, UiAutomation.OnAccessibilityEventListener previous) {
+        this.server = server;
+        this.previous = previous;
+    }
+
+    /**
+     * Starts publishing events.
+     *
+     * @param server event server
+     *
+     * @return false if UiAutomation cannot be reached on this device
+     */
+    public static boolean install(UiEventServer server) {
+        try {
+            UiAutomation automation = UiAutomations.get();
+            UiAutomation.OnAccessibilityEventListener previous = (UiAutomation.OnAccessibilityEventListener)
+                UiAutomations.field(UiAutomation.class, "mOnAccessibilityEventListener").get(automation);
+            automation.setOnAccessibilityEventListener(new UiEventPublisher(server, previous));
+            return true;
+        } catch (Exception ex) {
+            Log.w(TAG, "Cannot listen to accessibility events", ex);
+            return false;
+        }
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (previous != null) {
+            previous.onAccessibilityEvent(event);
+        }
+        int type = event.getEventType();
+        if ((type & UiEvent.TYPES_ALL) == 0 || server.getSubscribers() == 0) {
+            return;
+        }
+        server.publish(new UiEvent(type, event.getEventTime(), toString(event.getPackageName()),
+            toString(event.getClassName())));
+    }
+
+    private static String toString(CharSequence cs) {
+        return cs == null ? null : cs.toString();
+    }
+}
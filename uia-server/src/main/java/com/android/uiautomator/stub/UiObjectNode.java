@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+import com.android.uiautomator.core.UiObject;
+import com.android.uiautomator.core.UiSelector;
+
+/**
+ * Gives access to the accessibility node of a UI object, which uiautomator keeps protected.
+ *
+ * @author linsong wang
+ */
+final class UiObjectNode extends UiObject {
+
+    UiObjectNode(UiSelector selector) {
+        super(selector);
+    }
+
+    /**
+     * @param timeout time to wait for object in milliseconds, 0 to check once
+     *
+     * @return node of object, to be recycled by caller, or null if not found
+     */
+    AccessibilityNodeInfo find(long timeout) {
+        return findAccessibilityNodeInfo(timeout);
+    }
+}
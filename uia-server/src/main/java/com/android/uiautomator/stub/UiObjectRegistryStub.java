@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import android.util.Log;
+import com.android.uiautomator.core.UiObject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author linsong wang
+ */
+public class UiObjectRegistryStub implements IUiObjectRegistry {
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicLong ids = new AtomicLong();
+
+    private final Map<Long, Map<Long, UiObject>> sessions = new LruMap<>(MAX_SESSIONS);
+
+    @Override
+    public long openSession() {
+        long session = ids.incrementAndGet();
+        synchronized (sessions) {
+            sessions.put(session, new LruMap<Long, UiObject>(MAX_OBJECTS_PER_SESSION));
+        }
+        return session;
+    }
+
+    @Override
+    public void closeSession(long session) {
+        synchronized (sessions) {
+            sessions.remove(session);
+        }
+    }
+
+    @Override
+    public long find(long session, UiSelector selector) {
+        return this.register(session, new UiObject(UiDeviceStub.convert(selector)));
+    }
+
+    @Override
+    public long getChild(long session, long handle, UiSelector selector) {
+        UiObject parent = this.get(session, handle);
+        if (parent == null) {
+            return 0;
+        }
+        try {
+            return this.register(session, parent.getChild(UiDeviceStub.convert(selector)));
+        } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
+            Log.e("UIAutomator", "UiObjectNotFound", ex);
+            return 0;
+        }
+    }
+
+    @Override
+    public long getFromParent(long session, long handle, UiSelector selector) {
+        UiObject object = this.get(session, handle);
+        if (object == null) {
+            return 0;
+        }
+        try {
+            return this.register(session, object.getFromParent(UiDeviceStub.convert(selector)));
+        } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
+            Log.e("UIAutomator", "UiObjectNotFound", ex);
+            return 0;
+        }
+    }
+
+    @Override
+    public void release(long session, long handle) {
+        Map<Long, UiObject> objects = this.getSession(session);
+        if (objects != null) {
+            synchronized (objects) {
+                objects.remove(handle);
+            }
+        }
+    }
+
+    @Override
+    public boolean exists(long session, long handle) {
+        UiObject object = this.get(session, handle);
+        return object != null && object.exists();
+    }
+
+    @Override
+    public boolean waitForExists(long session, long handle, long timeout) {
+        UiObject object = this.get(session, handle);
+        return object != null && object.waitForExists(timeout);
+    }
+
+    @Override
+    public UiObjectResult click(long session, long handle) {
+        UiObject object = this.get(session, handle);
+        if (object == null) {
+            return invalid(session, handle);
+        }
+        try {
+            UiObjectStub.ready(object);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.click();
+            }
+            IdleSynchronizer.getInstance().sync();
+            return new UiObjectResult(ok);
+        } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
+            return new UiObjectResult(null, new UiObjectNotFoundException(ex));
+        }
+    }
+
+    @Override
+    public UiObjectResult getText(long session, long handle) {
+        UiObject object = this.get(session, handle);
+        if (object == null) {
+            return invalid(session, handle);
+        }
+        try {
+            return new UiObjectResult(object.getText());
+        } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
+            return new UiObjectResult(null, new UiObjectNotFoundException(ex));
+        }
+    }
+
+    @Override
+    public UiObjectResult setText(long session, long handle, String text) {
+        UiObject object = this.get(session, handle);
+        if (object == null) {
+            return invalid(session, handle);
+        }
+        try {
+            UiObjectStub.ready(object);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return new UiObjectResult(object.setText(text));
+            }
+        } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
+            return new UiObjectResult(null, new UiObjectNotFoundException(ex));
+        }
+    }
+
+    @Override
+    public UiObjectResult getBounds(long session, long handle) {
+        UiObject object = this.get(session, handle);
+        if (object == null) {
+            return invalid(session, handle);
+        }
+        try {
+            android.graphics.Rect rect = object.getBounds();
+            return new UiObjectResult(new Rect(rect.left, rect.top, rect.right, rect.bottom));
+        } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
+            return new UiObjectResult(null, new UiObjectNotFoundException(ex));
+        }
+    }
+
+    private long register(long session, UiObject object) {
+        Map<Long, UiObject> objects = this.getSession(session);
+        if (objects == null) {
+            return 0;
+        }
+        long handle = ids.incrementAndGet();
+        synchronized (objects) {
+            objects.put(handle, object);
+        }
+        return handle;
+    }
+
+    private UiObject get(long session, long handle) {
+        Map<Long, UiObject> objects = this.getSession(session);
+        if (objects == null) {
+            return null;
+        }
+        synchronized (objects) {
+            return objects.get(handle);
+        }
+    }
+
+    private Map<Long, UiObject> getSession(long session) {
+        synchronized (sessions) {
+            return sessions.get(session);
+        }
+    }
+
+    private static UiObjectResult invalid(long session, long handle) {
+        return new UiObjectResult(null,
+            new UiObjectNotFoundException("no object of handle " + handle + " in session " + session));
+    }
+
+    /**
+     * Map in access order, which drops the least recently used entry when full.
+     */
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -17,6 +17,7 @@ package com.android.uiautomator.stub;
 
 import android.util.Log;
 import android.view.MotionEvent;
+import com.android.uiautomator.core.Configurator;
 import com.android.uiautomator.core.UiDevice;
 import com.android.uiautomator.core.UiObject;
 import java.util.ArrayList;
@@ -59,6 +60,75 @@ public class UiObjectStub implements IUiObject {
         this.uiObject = new UiObject(uiSelector);
     }
 
+    @Override
+    public boolean exists(UiSelector selector) {
+        return new UiObject(UiDeviceStub.convert(selector)).exists();
+    }
+
+    @Override
+    public boolean waitForExists(UiSelector selector, long timeout) {
+        return new UiObject(UiDeviceStub.convert(selector)).waitForExists(timeout);
+    }
+
+    @Override
+    public UiObjectResult click(UiSelector selector) {
+        try {
+            UiObject object = ready(new UiObject(UiDeviceStub.convert(selector)));
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.click();
+            }
+            this.waitForIdle0();
+            return new UiObjectResult(ok);
+        } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
+            return notFound(ex);
+        }
+    }
+
+    @Override
+    public UiObjectResult getText(UiSelector selector) {
+        try {
+            return new UiObjectResult(new UiObject(UiDeviceStub.convert(selector)).getText());
+        } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
+            return notFound(ex);
+        }
+    }
+
+    @Override
+    public UiObjectResult setText(UiSelector selector, String text) {
+        try {
+            UiObject object = ready(new UiObject(UiDeviceStub.convert(selector)));
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return new UiObjectResult(object.setText(text));
+            }
+        } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
+            return notFound(ex);
+        }
+    }
+
+    @Override
+    public UiObjectResult clearTextField(UiSelector selector) {
+        try {
+            UiObject object = ready(new UiObject(UiDeviceStub.convert(selector)));
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                object.clearTextField();
+            }
+            return new UiObjectResult(object.getText());
+        } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
+            return notFound(ex);
+        }
+    }
+
+    @Override
+    public UiObjectResult getBounds(UiSelector selector) {
+        try {
+            android.graphics.Rect rect = new UiObject(UiDeviceStub.convert(selector)).getBounds();
+            return new UiObjectResult(new Rect(rect.left, rect.top, rect.right, rect.bottom));
+        } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
+            return notFound(ex);
+        }
+    }
+
     @Override
     public boolean selectChild(UiSelector selector) {
         com.android.uiautomator.core.UiSelector uiSelector = UiDeviceStub.convert(selector);
@@ -103,7 +173,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean dragTo(int destX, int destY, int steps) {
         try {
-            boolean ok = this.uiObject.dragTo(destX, destY, steps);
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.dragTo(destX, destY, steps);
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -115,7 +189,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean swipeUp(int steps) {
         try {
-            boolean ok = this.uiObject.swipeUp(steps);
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.swipeUp(steps);
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -127,7 +205,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean swipeDown(int steps) {
         try {
-            boolean ok = this.uiObject.swipeDown(steps);
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.swipeDown(steps);
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -139,7 +221,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean swipeLeft(int steps) {
         try {
-            boolean ok = this.uiObject.swipeLeft(steps);
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.swipeLeft(steps);
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -151,7 +237,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean swipeRight(int steps) {
         try {
-            boolean ok = this.uiObject.swipeRight(steps);
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.swipeRight(steps);
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -163,7 +253,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean click() {
         try {
-            boolean ok = this.uiObject.click();
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.click();
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -175,7 +269,10 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean clickAndWaitForNewWindow() {
         try {
-            return this.uiObject.clickAndWaitForNewWindow();
+            UiObject object = ready(this.uiObject);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return object.clickAndWaitForNewWindow();
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -185,7 +282,10 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean clickAndWaitForNewWindow(long timeout) {
         try {
-            return this.uiObject.clickAndWaitForNewWindow(timeout);
+            UiObject object = ready(this.uiObject);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return object.clickAndWaitForNewWindow(timeout);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -195,7 +295,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean clickTopLeft() {
         try {
-            boolean ok = this.uiObject.clickTopLeft();
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.clickTopLeft();
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -207,7 +311,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean longClickBottomRight() {
         try {
-            boolean ok = this.uiObject.longClickBottomRight();
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.longClickBottomRight();
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -219,7 +327,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean clickBottomRight() {
         try {
-            boolean ok = this.uiObject.clickBottomRight();
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.clickBottomRight();
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -231,7 +343,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean longClick() {
         try {
-            boolean ok = this.uiObject.longClick();
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.longClick();
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -243,7 +359,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean longClickTopLeft() {
         try {
-            boolean ok = this.uiObject.longClickTopLeft();
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.longClickTopLeft();
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -285,7 +405,10 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean setText(String text) {
         try {
-            return this.uiObject.setText(text);
+            UiObject object = ready(this.uiObject);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return object.setText(text);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -295,7 +418,10 @@ public class UiObjectStub implements IUiObject {
     @Override
     public void clearTextField() {
         try {
-            this.uiObject.clearTextField();
+            UiObject object = ready(this.uiObject);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                object.clearTextField();
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -441,7 +567,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean pinchOut(int percent, int steps) {
         try {
-            boolean ok = this.uiObject.pinchOut(percent, steps);
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.pinchOut(percent, steps);
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -453,7 +583,11 @@ public class UiObjectStub implements IUiObject {
     @Override
     public boolean pinchIn(int percent, int steps) {
         try {
-            boolean ok = this.uiObject.pinchIn(percent, steps);
+            UiObject object = ready(this.uiObject);
+            boolean ok;
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                ok = object.pinchIn(percent, steps);
+            }
             this.waitForIdle0();
             return ok;
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
@@ -471,7 +605,9 @@ public class UiObjectStub implements IUiObject {
         android.graphics.Point ep1 = new android.graphics.Point(endPoint1.x, endPoint1.y);
         android.graphics.Point ep2 = new android.graphics.Point(endPoint2.x, endPoint2.y);
 
-        return this.uiObject.performTwoPointerGesture(sp1, sp2, ep1, ep2, steps);
+        synchronized (UiDeviceStub.INPUT_LOCK) {
+            return this.uiObject.performTwoPointerGesture(sp1, sp2, ep1, ep2, steps);
+        }
     }
 
     @Override
@@ -494,6 +630,22 @@ public class UiObjectStub implements IUiObject {
         this.uiObjectNotFoundException = new UiObjectNotFoundException(ex);
     }
 
+    /**
+     * Waits for an object outside of {@link UiDeviceStub#INPUT_LOCK}, so that an action on it under the lock does not
+     * wait again.
+     */
+    static <T extends UiObject> T ready(T object) throws com.android.uiautomator.core.UiObjectNotFoundException {
+        if (!object.waitForExists(Configurator.getInstance().getWaitForSelectorTimeout())) {
+            throw new com.android.uiautomator.core.UiObjectNotFoundException(String.valueOf(object.getSelector()));
+        }
+        return object;
+    }
+
+    private static UiObjectResult notFound(com.android.uiautomator.core.UiObjectNotFoundException ex) {
+        Log.e("UIAutomator", "UiObjectNotFound", ex);
+        return new UiObjectResult(null, new UiObjectNotFoundException(ex));
+    }
+
     private static MotionEvent.PointerCoords convert(PointerCoords pcs) {
         MotionEvent.PointerCoords mepcs = new MotionEvent.PointerCoords();
         mepcs.x = pcs.x;
@@ -509,6 +661,6 @@ public class UiObjectStub implements IUiObject {
     }
 
     private void waitForIdle0() {
-        this.uiDevice.waitForIdle();
+        IdleSynchronizer.getInstance().sync();
     }
 }
@@ -53,7 +53,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     public boolean selectChildByDescription(UiSelector childPattern, String text) {
         com.android.uiautomator.core.UiSelector selector = UiDeviceStub.convert(childPattern);
         try {
-            this.uiObject = this.uiScrollable.getChildByDescription(selector, text);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                this.uiObject = scrollable.getChildByDescription(selector, text);
+            }
             return true;
         } catch (UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
@@ -65,7 +68,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     public boolean selectChildByDescription(UiSelector childPattern, String text, boolean allowScrollSearch) {
         com.android.uiautomator.core.UiSelector selector = UiDeviceStub.convert(childPattern);
         try {
-            this.uiObject = this.uiScrollable.getChildByDescription(selector, text, allowScrollSearch);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                this.uiObject = scrollable.getChildByDescription(selector, text, allowScrollSearch);
+            }
             return true;
         } catch (UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
@@ -90,7 +96,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
         com.android.uiautomator.core.UiSelector selector = UiDeviceStub.convert(childPattern);
         System.out.println(selector);
         try {
-            this.uiObject = this.uiScrollable.getChildByText(selector, text);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                this.uiObject = scrollable.getChildByText(selector, text);
+            }
             System.out.println(this.uiObject);
             return true;
         } catch (UiObjectNotFoundException ex) {
@@ -103,7 +112,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     public boolean selectChildByText(UiSelector childPattern, String text, boolean allowScrollSearch) {
         com.android.uiautomator.core.UiSelector selector = UiDeviceStub.convert(childPattern);
         try {
-            this.uiObject = this.uiScrollable.getChildByText(selector, text, allowScrollSearch);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                this.uiObject = scrollable.getChildByText(selector, text, allowScrollSearch);
+            }
             return true;
         } catch (UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
@@ -114,7 +126,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean scrollDescriptionIntoView(String text) {
         try {
-            return this.uiScrollable.scrollDescriptionIntoView(text);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.scrollDescriptionIntoView(text);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -130,7 +145,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     public boolean scrollIntoView(UiSelector selector) {
         com.android.uiautomator.core.UiSelector s = UiDeviceStub.convert(selector);
         try {
-            return this.uiScrollable.scrollIntoView(s);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.scrollIntoView(s);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -140,7 +158,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean scrollTextIntoView(String text) {
         try {
-            return this.uiScrollable.scrollTextIntoView(text);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.scrollTextIntoView(text);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -160,7 +181,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean flingForward() {
         try {
-            return this.uiScrollable.flingForward();
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.flingForward();
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -170,7 +194,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean scrollForward() {
         try {
-            return this.uiScrollable.scrollForward();
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.scrollForward();
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -180,7 +207,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean scrollForward(int steps) {
         try {
-            return this.uiScrollable.scrollForward(steps);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.scrollForward(steps);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -190,7 +220,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean flingBackward() {
         try {
-            return this.uiScrollable.flingBackward();
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.flingBackward();
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -200,7 +233,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean scrollBackward() {
         try {
-            return this.uiScrollable.scrollBackward();
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.scrollBackward();
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -210,7 +246,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean scrollBackward(int steps) {
         try {
-            return this.uiScrollable.scrollBackward(steps);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.scrollBackward(steps);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -220,7 +259,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean scrollToBeginning(int maxSwipes, int steps) {
         try {
-            return this.uiScrollable.scrollToBeginning(maxSwipes, steps);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.scrollToBeginning(maxSwipes, steps);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -230,7 +272,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean scrollToBeginning(int maxSwipes) {
         try {
-            return this.uiScrollable.scrollToBeginning(maxSwipes);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.scrollToBeginning(maxSwipes);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -240,7 +285,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean flingToBeginning(int maxSwipes) {
         try {
-            return this.uiScrollable.flingToBeginning(maxSwipes);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.flingToBeginning(maxSwipes);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -250,7 +298,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean scrollToEnd(int maxSwipes, int steps) {
         try {
-            return this.uiScrollable.scrollToEnd(maxSwipes, steps);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.scrollToEnd(maxSwipes, steps);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -260,7 +311,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean scrollToEnd(int maxSwipes) {
         try {
-            return this.uiScrollable.scrollToEnd(maxSwipes);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.scrollToEnd(maxSwipes);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
@@ -270,7 +324,10 @@ public class UiScrollableStub extends UiCollectionStub implements IUiScrollable
     @Override
     public boolean flingToEnd(int maxSwipes) {
         try {
-            return this.uiScrollable.flingToEnd(maxSwipes);
+            UiScrollable scrollable = ready(this.uiScrollable);
+            synchronized (UiDeviceStub.INPUT_LOCK) {
+                return scrollable.flingToEnd(maxSwipes);
+            }
         } catch (com.android.uiautomator.core.UiObjectNotFoundException ex) {
             this.setUiObjectNotFoundException(ex);
         }
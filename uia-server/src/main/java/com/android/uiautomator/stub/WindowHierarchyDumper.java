@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.uiautomator.stub;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityNodeInfo;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Writes window hierarchy XML straight from the accessibility node tree, in the format of uiautomator dump, so it can
+ * be returned in memory instead of through a file on device.
+ *
+ * @author linsong wang
+ */
+final class WindowHierarchyDumper {
+
+    /**
+     * Attributes in XML, index is always written as the first one.
+     */
+    private static final String[] ALL_ATTRIBUTES = Arrays.copyOfRange(HierarchyDelta.ATTRIBUTES, 1,
+        HierarchyDelta.ATTRIBUTES.length);
+
+    private final Writer out;
+
+    private final int width;
+
+    private final int height;
+
+    private final Rect rect = new Rect();
+
+    private String[] attributes = ALL_ATTRIBUTES;
+
+    private int maxDepth = -1;
+
+    private boolean visibleOnly = true;
+
+    /**
+     * @param out    writer of XML
+     * @param width  display width, to clip bounds
+     * @param height display height, to clip bounds
+     */
+    WindowHierarchyDumper(Writer out, int width, int height) {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @param width  display width, to clip bounds
+     * @param height display height, to clip bounds
+     */
+    WindowHierarchyDumper(int width, int height) {
+        this(null, width, height);
+    }
+
+    /**
+     * Collects nodes by path, in the format of {@link HierarchyDelta}, instead of writing XML.
+     *
+     * @param root  root node
+     * @param nodes map to add nodes into
+     */
+    void collect(AccessibilityNodeInfo root, SortedMap<String, String[]> nodes) {
+        collect(root, HierarchyDelta.path("", 0), nodes);
+    }
+
+    /**
+     * Keeps only some attributes in XML, index and class are always kept.
+     *
+     * @param names names of attributes, such as text and bounds, null for all
+     *
+     * @return this
+     */
+    WindowHierarchyDumper project(String[] names) {
+        if (names == null) {
+            this.attributes = ALL_ATTRIBUTES;
+            return this;
+        }
+        List<String> wanted = Arrays.asList(names);
+        List<String> kept = new ArrayList<>();
+        for (String name : ALL_ATTRIBUTES) {
+            if ("class".equals(name) || wanted.contains(name)) {
+                kept.add(name);
+            }
+        }
+        this.attributes = kept.toArray(new String[kept.size()]);
+        return this;
+    }
+
+    /**
+     * @param maxDepth levels of descendants to dump, 0 for root only, negative for all
+     *
+     * @return this
+     */
+    WindowHierarchyDumper maxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * @param visibleOnly true to skip descendants not visible to user, as uiautomator dump does
+     *
+     * @return this
+     */
+    WindowHierarchyDumper visibleOnly(boolean visibleOnly) {
+        this.visibleOnly = visibleOnly;
+        return this;
+    }
+
+    void dump(AccessibilityNodeInfo root, int rotation) throws IOException {
+        out.write("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?><hierarchy rotation=\"");
+        out.write(Integer.toString(rotation));
+        out.write("\">");
+        if (root != null) {
+            node(root, 0, 0);
+        }
+        out.write("</hierarchy>");
+        out.flush();
+    }
+
+    private void node(AccessibilityNodeInfo node, int index, int depth) throws IOException {
+        out.write("<node index=\"");
+        out.write(Integer.toString(index));
+        for (String name : attributes) {
+            switch (name) {
+                case "text":
+                    attribute(name, node.getText());
+                    break;
+                case "resource-id":
+                    attribute(name, node.getViewIdResourceName());
+                    break;
+                case "class":
+                    attribute(name, node.getClassName());
+                    break;
+                case "package":
+                    attribute(name, node.getPackageName());
+                    break;
+                case "content-desc":
+                    attribute(name, node.getContentDescription());
+                    break;
+                case "checkable":
+                    attribute(name, node.isCheckable());
+                    break;
+                case "checked":
+                    attribute(name, node.isChecked());
+                    break;
+                case "clickable":
+                    attribute(name, node.isClickable());
+                    break;
+                case "enabled":
+                    attribute(name, node.isEnabled());
+                    break;
+                case "focusable":
+                    attribute(name, node.isFocusable());
+                    break;
+                case "focused":
+                    attribute(name, node.isFocused());
+                    break;
+                case "scrollable":
+                    attribute(name, node.isScrollable());
+                    break;
+                case "long-clickable":
+                    attribute(name, node.isLongClickable());
+                    break;
+                case "password":
+                    attribute(name, node.isPassword());
+                    break;
+                case "selected":
+                    attribute(name, node.isSelected());
+                    break;
+                case "bounds":
+                    node.getBoundsInScreen(rect);
+                    out.write("\" bounds=\"[");
+                    out.write(Integer.toString(clip(rect.left, width)));
+                    out.write(',');
+                    out.write(Integer.toString(clip(rect.top, height)));
+                    out.write("][");
+                    out.write(Integer.toString(clip(rect.right, width)));
+                    out.write(',');
+                    out.write(Integer.toString(clip(rect.bottom, height)));
+                    out.write(']');
+                    break;
+                default:
+                    break;
+            }
+        }
+        out.write("\">");
+        if (maxDepth < 0 || depth < maxDepth) {
+            for (int i = 0, n = node.getChildCount(); i < n; i++) {
+                AccessibilityNodeInfo child = node.getChild(i);
+                if (child == null) {
+                    continue;
+                }
+                try {
+                    if (!visibleOnly || child.isVisibleToUser()) {
+                        node(child, i, depth + 1);
+                    }
+                } finally {
+                    child.recycle();
+                }
+            }
+        }
+        out.write("</node>");
+    }
+
+    private void collect(AccessibilityNodeInfo node, String path, SortedMap<String, String[]> nodes) {
+        node.getBoundsInScreen(rect);
+        nodes.put(path, new String[]{
+            Integer.toString(path.charAt(path.length() - 1)),
+            string(node.getText()),
+            string(node.getViewIdResourceName()),
+            string(node.getClassName()),
+            string(node.getPackageName()),
+            string(node.getContentDescription()),
+            Boolean.toString(node.isCheckable()),
+            Boolean.toString(node.isChecked()),
+            Boolean.toString(node.isClickable()),
+            Boolean.toString(node.isEnabled()),
+            Boolean.toString(node.isFocusable()),
+            Boolean.toString(node.isFocused()),
+            Boolean.toString(node.isScrollable()),
+            Boolean.toString(node.isLongClickable()),
+            Boolean.toString(node.isPassword()),
+            Boolean.toString(node.isSelected()),
+            "[" + clip(rect.left, width) + "," + clip(rect.top, height) + "][" + clip(rect.right, width) + ","
+            + clip(rect.bottom, height) + "]"});
+        for (int i = 0, n = node.getChildCount(); i < n; i++) {
+            AccessibilityNodeInfo child = node.getChild(i);
+            if (child == null) {
+                continue;
+            }
+            try {
+                if (child.isVisibleToUser()) {
+                    collect(child, HierarchyDelta.path(path, i), nodes);
+                }
+            } finally {
+                child.recycle();
+            }
+        }
+    }
+
+    private static String string(CharSequence value) {
+        return value == null ? "" : value.toString();
+    }
+
+    private void attribute(String name, boolean value) throws IOException {
+        out.write("\" ");
+        out.write(name);
+        out.write(value ? "=\"true" : "=\"false");
+    }
+
+    private void attribute(String name, CharSequence value) throws IOException {
+        out.write("\" ");
+        out.write(name);
+        out.write("=\"");
+        if (value == null) {
+            return;
+        }
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '>':
+                    out.write("&gt;");
+                    break;
+                case '"':
+                    out.write("&quot;");
+                    break;
+                case '\n':
+                    out.write("&#10;");
+                    break;
+                default:
+                    if (c >= 0x20 || c == '\t') {
+                        out.write(c);
+                    }
+            }
+        }
+    }
+
+    private static int clip(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+}
@@ -22,18 +22,28 @@ import com.tascape.reactor.exception.EntityCommunicationException;
 import com.tascape.reactor.libx.DefaultExecutor;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecuteResultHandler;
+import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.exec.ExecuteStreamHandler;
 import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.exec.Executor;
@@ -52,12 +62,33 @@ public final class Adb extends EntityCommunication {
 
     public static final String SYSPROP_SERIALS = "reactor.comm.android.SERIALS";
 
+    /**
+     * Set to false to fork adb executable for every command, instead of talking to adb server directly.
+     */
+    public static final String SYSPROP_ADB_NATIVE = "reactor.comm.android.ADB_NATIVE";
+
     private static final List<String> SERIALS = new ArrayList<>();
 
     private static final Map<String, String> SERIAL_PRODUCT = new HashMap<>();
 
     private final static String ADB = locateAdb();
 
+    private final static boolean NATIVE = !"false".equalsIgnoreCase(
+        SystemConfiguration.getInstance().getProperty(SYSPROP_ADB_NATIVE));
+
+    private static final Object SERVER_LOCK = new Object();
+
+    private static boolean serverStarted = false;
+
+    private static boolean trackerListened = false;
+
+    private static final Map<String, AdbShell> SHELLS = new ConcurrentHashMap<>();
+
+    /**
+     * Characters which mean nothing to device shell, arguments of only these are sent without quotes.
+     */
+    private static final Pattern SHELL_SAFE = Pattern.compile("[\\w@%+=:,./-]+");
+
     private static String locateAdb() {
         String sysAdb = SystemConfiguration.getInstance().getProperty(SYSPROP_ADB_EXECUTABLE);
         if (sysAdb != null) {
@@ -96,6 +127,8 @@ public final class Adb extends EntityCommunication {
     private String serial = "";
 
     public static void reset() throws IOException {
+        SHELLS.values().forEach(AdbShell::close);
+        AdbServerClient.getInstance().reset();
         CommandLine cmdLine = new CommandLine(ADB);
         cmdLine.addArgument("kill-server");
         LOG.debug("{}", cmdLine.toString());
@@ -112,20 +145,75 @@ public final class Adb extends EntityCommunication {
         }
     }
 
+    /**
+     * Gets serials of online devices. With adb server talked to directly, this is a snapshot of the live device
+     * list kept by {@link AdbDeviceTracker}, so devices attached or detached later are seen by next call.
+     *
+     * @return device serials
+     */
     public static synchronized List<String> getAllSerials() {
+        if (isTracking()) {
+            return new ArrayList<>(getSerialProduct().keySet());
+        }
         if (SERIALS.isEmpty()) {
             loadAllSerials();
         }
         return SERIALS;
     }
 
+    /**
+     * Gets online devices, serial to product detail. See {@link #getAllSerials()}.
+     *
+     * @return serial to product detail
+     */
     public static synchronized Map<String, String> getSerialProduct() {
+        if (isTracking()) {
+            Map<String, String> devices = tracker().getOnlineDevices();
+            if (devices.isEmpty()) {
+                throw new RuntimeException("No device detected.");
+            }
+            return devices;
+        }
         if (SERIAL_PRODUCT.isEmpty()) {
             loadSerialProductMap();
         }
         return SERIAL_PRODUCT;
     }
 
+    /**
+     * Gets the device tracker, see {@link #tracker()}.
+     *
+     * @return device tracker, or null if adb server is not talked to directly
+     */
+    public static synchronized AdbDeviceTracker getDeviceTracker() {
+        return NATIVE ? tracker() : null;
+    }
+
+    /**
+     * Gets the device tracker, and drops the shell session and sockets of any device once it is detached.
+     */
+    private static AdbDeviceTracker tracker() {
+        AdbDeviceTracker tracker = AdbDeviceTracker.getInstance();
+        if (!trackerListened) {
+            tracker.addListener((change, device) -> {
+                if (change == AdbDeviceTracker.Change.ATTACHED && device.isOnline()) {
+                    return;
+                }
+                AdbShell shell = SHELLS.remove(device.getSerial());
+                if (shell != null) {
+                    CompletableFuture.runAsync(shell::close);
+                }
+                AdbServerClient.getInstance().reset(device.getSerial());
+            });
+            trackerListened = true;
+        }
+        return tracker;
+    }
+
+    private static boolean isTracking() {
+        return NATIVE && SystemConfiguration.getInstance().getProperty(SYSPROP_SERIALS) == null;
+    }
+
     private static void loadAllSerials() {
         SERIALS.clear();
         String serials = SystemConfiguration.getInstance().getProperty(SYSPROP_SERIALS);
@@ -133,19 +221,7 @@ public final class Adb extends EntityCommunication {
             LOG.info("Use specified devices from system property {}={}", SYSPROP_SERIALS, serials);
             SERIALS.addAll(Lists.newArrayList(serials.split(",")));
         } else {
-            CommandLine cmdLine = new CommandLine(ADB);
-            cmdLine.addArgument("devices");
-            LOG.debug("{}", cmdLine.toString());
-            List<String> output = new ArrayList<>();
-            Executor executor = new DefaultExecutor();
-            executor.setStreamHandler(new ESH(output));
-            try {
-                if (executor.execute(cmdLine) != 0) {
-                    throw new RuntimeException(cmdLine + " failed");
-                }
-            } catch (IOException ex) {
-                throw new RuntimeException(cmdLine + " failed", ex);
-            }
+            List<String> output = devices(false);
             output.stream().filter((line) -> (line.endsWith("device"))).forEach((line) -> {
                 String s = line.split("\\t")[0];
                 LOG.info("serial {}", s);
@@ -164,20 +240,7 @@ public final class Adb extends EntityCommunication {
             LOG.info("Use specified devices from system property {}={}", SYSPROP_SERIALS, serials);
             Lists.newArrayList(serials.split(",")).forEach(s -> SERIAL_PRODUCT.put(s, "na"));
         } else {
-            CommandLine cmdLine = new CommandLine(ADB);
-            cmdLine.addArgument("devices");
-            cmdLine.addArgument("-l");
-            LOG.debug("{}", cmdLine.toString());
-            List<String> output = new ArrayList<>();
-            Executor executor = new DefaultExecutor();
-            executor.setStreamHandler(new ESH(output));
-            try {
-                if (executor.execute(cmdLine) != 0) {
-                    throw new RuntimeException(cmdLine + " failed");
-                }
-            } catch (IOException ex) {
-                throw new RuntimeException(cmdLine + " failed", ex);
-            }
+            List<String> output = devices(true);
             output.stream()
                 .map(line -> StringUtils.split(line, " ", 3))
                 .filter(ss -> ss.length == 3 && ss[1].equals("device"))
@@ -192,6 +255,56 @@ public final class Adb extends EntityCommunication {
         SERIALS.addAll(SERIAL_PRODUCT.keySet());
     }
 
+    private static List<String> devices(boolean detail) {
+        if (NATIVE) {
+            try {
+                return server().devices(detail);
+            } catch (IOException ex) {
+                LOG.warn("Cannot list devices through adb server, {}", ex.getMessage());
+            }
+        }
+        CommandLine cmdLine = new CommandLine(ADB);
+        cmdLine.addArgument("devices");
+        if (detail) {
+            cmdLine.addArgument("-l");
+        }
+        LOG.debug("{}", cmdLine.toString());
+        List<String> output = new ArrayList<>();
+        Executor executor = new DefaultExecutor();
+        executor.setStreamHandler(new ESH(line -> output.add(line.toString())));
+        try {
+            if (executor.execute(cmdLine) != 0) {
+                throw new RuntimeException(cmdLine + " failed");
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(cmdLine + " failed", ex);
+        }
+        return output;
+    }
+
+    /**
+     * Gets the adb server client, and starts adb server with adb executable if it is not running yet.
+     */
+    static AdbServerClient server() throws IOException {
+        AdbServerClient server = AdbServerClient.getInstance();
+        synchronized (SERVER_LOCK) {
+            if (!serverStarted) {
+                try {
+                    LOG.debug("adb server version {}", server.query("host:version"));
+                } catch (ConnectException ex) {
+                    CommandLine cmdLine = new CommandLine(ADB);
+                    cmdLine.addArgument("start-server");
+                    LOG.debug("{}", cmdLine.toString());
+                    if (new DefaultExecutor().execute(cmdLine) != 0) {
+                        throw new IOException(cmdLine + " failed");
+                    }
+                }
+                serverStarted = true;
+            }
+        }
+        return server;
+    }
+
     public Adb() throws IOException, EntityCommunicationException {
         this("");
     }
@@ -212,6 +325,36 @@ public final class Adb extends EntityCommunication {
     }
 
     public List<String> adb(final List<Object> arguments) throws IOException {
+        List<String> output = new ArrayList<>();
+        this.adb(arguments, line -> output.add(line.toString()));
+        return output;
+    }
+
+    /**
+     * Runs an adb command, and streams its output lines to a handler as they come, instead of collecting them.
+     * Once the handler returns false, the command is stopped, and the rest of output is dropped.
+     *
+     * @param arguments adb command and its arguments
+     * @param handler   output line handler
+     *
+     * @return true if handler stopped the command early
+     *
+     * @throws IOException if command fails
+     */
+    public boolean adb(final List<Object> arguments, LineHandler handler) throws IOException {
+        if (NATIVE && arguments.size() > 1) {
+            String command = arguments.get(0) + "";
+            if (command.equals("shell")) {
+                String line = commandLine(arguments.subList(1, arguments.size()));
+                LOG.debug("[adb -s {} shell {}]", serial, line);
+                return server().shell(serial, line, handler);
+            } else if (command.equals("forward") && arguments.size() == 3 && !(arguments.get(1) + "").startsWith("-")) {
+                String prefix = serial.isEmpty() ? "host:" : "host-serial:" + serial + ":";
+                LOG.debug("[adb -s {} forward {} {}]", serial, arguments.get(1), arguments.get(2));
+                server().execute(prefix + "forward:" + arguments.get(1) + ";" + arguments.get(2));
+                return false;
+            }
+        }
         CommandLine cmdLine = new CommandLine(ADB);
         if (!this.serial.isEmpty()) {
             cmdLine.addArgument("-s");
@@ -221,13 +364,19 @@ public final class Adb extends EntityCommunication {
             cmdLine.addArgument(arg + "");
         });
         LOG.debug("[{} {}]", cmdLine.getExecutable(), StringUtils.join(cmdLine.getArguments(), " "));
-        List<String> output = new ArrayList<>();
+        ESH esh = new ESH(handler);
         Executor executor = new DefaultExecutor();
-        executor.setStreamHandler(new ESH(output));
-        if (executor.execute(cmdLine) != 0) {
-            throw new IOException(cmdLine + " failed");
+        executor.setStreamHandler(esh);
+        try {
+            if (executor.execute(cmdLine) != 0 && !esh.isStopped()) {
+                throw new IOException(cmdLine + " failed");
+            }
+        } catch (ExecuteException ex) {
+            if (!esh.isStopped()) {
+                throw ex;
+            }
         }
-        return output;
+        return esh.isStopped();
     }
 
     public List<String> shell(final List<Object> arguments) throws IOException {
@@ -236,6 +385,140 @@ public final class Adb extends EntityCommunication {
         return adb(args);
     }
 
+    /**
+     * Runs a shell command, and streams its output lines to a handler. See {@link #adb(List, LineHandler)}.
+     *
+     * @param arguments shell command and its arguments
+     * @param handler   output line handler
+     *
+     * @return true if handler stopped the command early
+     *
+     * @throws IOException if command fails
+     */
+    public boolean shell(final List<Object> arguments, LineHandler handler) throws IOException {
+        List<Object> args = new ArrayList<>(arguments);
+        args.add(0, "shell");
+        return adb(args, handler);
+    }
+
+    /**
+     * Runs a command on device, and streams its raw output, as adb exec-out does, with no pty, no file on device, and
+     * no file on host. This is for binary output, such as screencap raw frames.
+     *
+     * @param arguments command and its arguments
+     *
+     * @return output of command, to be closed by caller, which also ends the command
+     *
+     * @throws IOException if command cannot be started
+     */
+    public InputStream execOut(final List<Object> arguments) throws IOException {
+        String line = commandLine(arguments);
+        if (NATIVE) {
+            LOG.debug("[adb -s {} exec-out {}]", serial, line);
+            Socket socket = server().exec(serial, line);
+            return new FilterInputStream(socket.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    socket.close();
+                }
+            };
+        }
+        List<String> cmd = Lists.newArrayList(ADB);
+        if (!this.serial.isEmpty()) {
+            cmd.add("-s");
+            cmd.add(serial);
+        }
+        cmd.add("exec-out");
+        cmd.add(line);
+        LOG.debug("[{}]", StringUtils.join(cmd, " "));
+        Process process = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        return new FilterInputStream(process.getInputStream()) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                process.destroy();
+            }
+        };
+    }
+
+    /**
+     * Runs a shell command on the long-lived shell session of this device, instead of opening a new shell. This is
+     * for short commands, such as getprop, ls, rm, input. Each argument is quoted, see {@link #quote(Object)}.
+     *
+     * @param arguments command and its arguments
+     *
+     * @return command output lines
+     *
+     * @throws IOException in case of any issue, or command does not finish in default timeout
+     */
+    public List<String> shellInSession(final List<Object> arguments) throws IOException {
+        return shellInSession(arguments, AdbShell.DEFAULT_TIMEOUT_MILLIS).getLines();
+    }
+
+    public AdbShell.Result shellInSession(final List<Object> arguments, long timeoutMillis) throws IOException {
+        return getShellSession().run(commandLine(arguments), timeoutMillis);
+    }
+
+    public AdbShell getShellSession() {
+        return SHELLS.computeIfAbsent(serial, AdbShell::new);
+    }
+
+    /**
+     * Starts a batch of shell commands, which are sent to the shell session of this device in one round trip.
+     * <pre>
+     * List&lt;AdbShell.Result&gt; results = adb.batch().add("am", "force-stop", pkg).add("monkey", "-p", pkg, 1).run();
+     * </pre>
+     *
+     * @return batch builder
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * Shell commands to run in one round trip, see {@link AdbShell#run(List, long)}. Arguments are quoted, see
+     * {@link #quote(Object)}.
+     */
+    public class Batch {
+        private final List<String> commands = new ArrayList<>();
+
+        private Batch() {
+        }
+
+        public Batch add(Object... arguments) {
+            return add(Arrays.asList(arguments));
+        }
+
+        public Batch add(List<Object> arguments) {
+            commands.add(commandLine(arguments));
+            return this;
+        }
+
+        public int size() {
+            return commands.size();
+        }
+
+        public List<AdbShell.Result> run() throws IOException {
+            return run(AdbShell.DEFAULT_TIMEOUT_MILLIS);
+        }
+
+        /**
+         * Runs all commands, one after another, regardless of exit code of previous ones.
+         *
+         * @param timeoutMillis how long to wait for all commands to finish
+         *
+         * @return output and exit code of each command, in order
+         *
+         * @throws IOException in case of any issue, or commands do not finish in time
+         */
+        public List<AdbShell.Result> run(long timeoutMillis) throws IOException {
+            if (commands.isEmpty()) {
+                return new ArrayList<>();
+            }
+            return getShellSession().run(commands, timeoutMillis);
+        }
+    }
+
     public ExecuteWatchdog shellAsync(final List<Object> arguments, long timeoutMillis) throws IOException {
         List<Object> args = new ArrayList<>(arguments);
         args.add(0, "shell");
@@ -265,11 +548,78 @@ public final class Adb extends EntityCommunication {
         if (local.exists() && !local.delete()) {
             throw new IOException("Cannot delete existing local file");
         }
-        this.adb(Arrays.asList(new Object[]{"pull", device, local.getAbsolutePath()}));
-        if (!local.exists()) {
-            throw new IOException("Cannot pull file from device to local");
+        if (NATIVE) {
+            try (AdbSync sync = AdbSync.open(serial)) {
+                sync.pull(device, local);
+            }
+        } else {
+            this.adb(Arrays.asList(new Object[]{"pull", device, local.getAbsolutePath()}));
+            if (!local.exists()) {
+                throw new IOException("Cannot pull file from device to local");
+            }
+        }
+        this.shellInSession(Arrays.asList("rm", device));
+    }
+
+    /**
+     * Pulls a file from device into memory, and removes it from device.
+     *
+     * @param device full path in Android
+     *
+     * @return file content, ready to read
+     *
+     * @throws IOException in case of any issue
+     */
+    public ByteBuffer pull(String device) throws IOException {
+        ByteBuffer buffer;
+        if (NATIVE) {
+            try (AdbSync sync = AdbSync.open(serial)) {
+                buffer = sync.pull(device);
+            }
+        } else {
+            File local = File.createTempFile("adb-pull", ".tmp");
+            try {
+                this.adb(Arrays.asList(new Object[]{"pull", device, local.getAbsolutePath()}));
+                buffer = ByteBuffer.wrap(Files.readAllBytes(local.toPath()));
+            } finally {
+                local.delete();
+            }
+        }
+        this.shellInSession(Arrays.asList("rm", device));
+        return buffer;
+    }
+
+    public void push(File local, String device) throws IOException {
+        if (NATIVE) {
+            try (AdbSync sync = AdbSync.open(serial)) {
+                sync.push(local, device);
+            }
+        } else {
+            this.adb(Arrays.asList(new Object[]{"push", local.getAbsolutePath(), device}));
+        }
+    }
+
+    /**
+     * Pushes local files into a device directory, in one pipelined sync session.
+     *
+     * @param locals    local files
+     * @param deviceDir full path of directory in Android, such as /data/local/tmp/
+     *
+     * @throws IOException in case of any issue
+     */
+    public void push(List<File> locals, String deviceDir) throws IOException {
+        String dir = deviceDir.endsWith("/") ? deviceDir : deviceDir + "/";
+        if (NATIVE) {
+            Map<File, String> files = new LinkedHashMap<>();
+            locals.forEach(local -> files.put(local, dir + local.getName()));
+            try (AdbSync sync = AdbSync.open(serial)) {
+                sync.push(files);
+            }
+        } else {
+            for (File local : locals) {
+                this.push(local, dir);
+            }
         }
-        this.shell(Arrays.asList("rm", device));
     }
 
     public void setupAdbPortForward(int local, int remote) throws IOException, InterruptedException {
@@ -285,6 +635,43 @@ public final class Adb extends EntityCommunication {
         return serial;
     }
 
+    /**
+     * Quotes an argument for device shell, so that it is one word, and is taken as is, with its spaces, quotes, and
+     * characters such as ; &amp; $.
+     *
+     * @param argument command argument
+     *
+     * @return the argument, in single quotes unless it has only safe characters
+     */
+    public static String quote(Object argument) {
+        String arg = argument + "";
+        if (SHELL_SAFE.matcher(arg).matches()) {
+            return arg;
+        }
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Builds a device shell command line from a command and its arguments, see {@link #quote(Object)}.
+     *
+     * @param arguments command and its arguments
+     *
+     * @return command line
+     */
+    public static String commandLine(List<?> arguments) {
+        StringBuilder sb = new StringBuilder();
+        arguments.forEach(arg -> sb.append(sb.length() == 0 ? "" : " ").append(quote(arg)));
+        return sb.toString();
+    }
+
+    static boolean isNative() {
+        return NATIVE;
+    }
+
+    static String getExecutable() {
+        return ADB;
+    }
+
     /**
      * Checks if a file exists in Android.
      *
@@ -295,21 +682,40 @@ public final class Adb extends EntityCommunication {
      * @throws IOException when error
      */
     public boolean fileExists(String path) throws IOException {
-        List<String> lines = this.shell(Lists.newArrayList("ls", path));
+        List<String> lines = this.shellInSession(Lists.newArrayList("ls", path));
         return lines.stream().filter(l -> l.equals(path)).findAny().isPresent();
     }
 
+    /**
+     * Receives command output, one line at a time.
+     */
+    @FunctionalInterface
+    public interface LineHandler {
+        /**
+         * @param line output line, without line terminator
+         *
+         * @return true to get more lines, false to stop the command
+         */
+        boolean onLine(CharSequence line);
+    }
+
     private static class ESH implements ExecuteStreamHandler {
         private static final String PATTERN = ".+? KB/s \\(.+? bytes in .+?s\\)";
 
-        private final List<String> list;
+        private final LineHandler handler;
+
+        private volatile boolean stopped;
 
         ESH() {
-            this.list = null;
+            this.handler = null;
         }
 
-        ESH(List<String> list) {
-            this.list = list;
+        ESH(LineHandler handler) {
+            this.handler = handler;
+        }
+
+        boolean isStopped() {
+            return stopped;
         }
 
         @Override
@@ -333,6 +739,9 @@ public final class Adb extends EntityCommunication {
             }
         }
 
+        /**
+         * Once handler asks to stop, output pipe is closed, so the process ends on its next write.
+         */
         @Override
         public void setProcessOutputStream(InputStream in) throws IOException {
             BufferedReader bis = new BufferedReader(new InputStreamReader(in));
@@ -342,8 +751,10 @@ public final class Adb extends EntityCommunication {
                     break;
                 }
                 LOG.trace(line);
-                if (list != null) {
-                    list.add(line);
+                if (handler != null && !handler.onLine(line)) {
+                    stopped = true;
+                    bis.close();
+                    break;
                 }
             }
         }
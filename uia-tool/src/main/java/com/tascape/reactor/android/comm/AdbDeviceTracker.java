@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a live map of attached devices, driven by the host:track-devices-l stream of adb server (host:track-devices
+ * on older servers). The server sends the whole device list every time something changes, so each update is diffed
+ * against the current map, and listeners are told which devices are attached, detached, or changed state (offline,
+ * unauthorized, device, ...).
+ *
+ * The tracking socket is reopened when adb server restarts, and the first list on the new socket is diffed the same
+ * way, so devices that went away in between are reported as detached.
+ *
+ * @author linsong wang
+ */
+public final class AdbDeviceTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(AdbDeviceTracker.class);
+
+    public static final String STATE_DEVICE = "device";
+
+    private static final long FIRST_LIST_TIMEOUT_MILLIS = 10000;
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 5000;
+
+    private static AdbDeviceTracker instance;
+
+    private final Map<String, Device> devices = new ConcurrentHashMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Held while an update is applied and dispatched, and while a new listener is added and replayed, so a listener
+     * sees each change once, in order.
+     */
+    private final Object dispatchLock = new Object();
+
+    private final CountDownLatch firstList = new CountDownLatch(1);
+
+    private volatile Socket socket;
+
+    /**
+     * What happened to a device.
+     */
+    public enum Change {
+        ATTACHED, DETACHED, STATE_CHANGED
+    }
+
+    /**
+     * Gets notified on the tracker thread, or on the adding thread for devices replayed, so it should return quickly.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void deviceChanged(Change change, Device device);
+    }
+
+    /**
+     * A device as listed by adb server.
+     */
+    public static final class Device {
+        private final String serial;
+
+        private final String state;
+
+        private final String detail;
+
+        Device(String serial, String state, String detail) {
+            this.serial = serial;
+            this.state = state;
+            this.detail = detail;
+        }
+
+        public String getSerial() {
+            return serial;
+        }
+
+        /**
+         * @return device state, such as device, offline, unauthorized
+         */
+        public String getState() {
+            return state;
+        }
+
+        /**
+         * @return product, model and device details, such as 'product:bullhead model:Nexus_5X device:bullhead', or
+         *         empty if adb server does not support host:track-devices-l
+         */
+        public String getDetail() {
+            return detail;
+        }
+
+        public boolean isOnline() {
+            return STATE_DEVICE.equals(state);
+        }
+
+        @Override
+        public String toString() {
+            return serial + " " + state + " " + detail;
+        }
+    }
+
+    /**
+     * Gets the tracker, starts it on first call, and waits for the first device list.
+     *
+     * @return device tracker
+     */
+    public static synchronized AdbDeviceTracker getInstance() {
+        if (instance == null) {
+            instance = new AdbDeviceTracker();
+            Thread t = new Thread(instance::track, "adb-device-tracker");
+            t.setDaemon(true);
+            t.start();
+        }
+        instance.awaitFirstList();
+        return instance;
+    }
+
+    private AdbDeviceTracker() {
+    }
+
+    /**
+     * @return snapshot of all known devices, keyed by serial, in any state
+     */
+    public Map<String, Device> getDevices() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(devices));
+    }
+
+    /**
+     * @return snapshot of online devices, serial to product detail, in serial order
+     */
+    public Map<String, String> getOnlineDevices() {
+        Map<String, String> online = new LinkedHashMap<>();
+        devices.values().stream()
+            .filter(Device::isOnline)
+            .sorted((d1, d2) -> d1.getSerial().compareTo(d2.getSerial()))
+            .forEach(d -> online.put(d.getSerial(), d.getDetail()));
+        return online;
+    }
+
+    public Device getDevice(String serial) {
+        return devices.get(serial);
+    }
+
+    /**
+     * Adds a listener. Devices already known are replayed to the new listener as attached, before any change after.
+     *
+     * @param listener listener
+     */
+    public void addListener(Listener listener) {
+        synchronized (dispatchLock) {
+            devices.values().forEach(d -> notify(listener, Change.ATTACHED, d));
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void awaitFirstList() {
+        try {
+            if (!firstList.await(FIRST_LIST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("No device list from adb server in {} ms", FIRST_LIST_TIMEOUT_MILLIS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void track() {
+        boolean detail = true;
+        long delay = 100;
+        while (true) {
+            try {
+                Adb.server();
+                socket = AdbServerClient.getInstance().openHost(detail ? "host:track-devices-l" : "host:track-devices");
+                LOG.debug("tracking devices on adb server");
+                delay = 100;
+                InputStream in = socket.getInputStream();
+                while (true) {
+                    update(AdbServerClient.readString(in));
+                    firstList.countDown();
+                }
+            } catch (AdbServerClient.AdbFailException ex) {
+                if (detail) {
+                    LOG.debug("adb server does not support host:track-devices-l, {}", ex.getMessage());
+                    detail = false;
+                    continue;
+                }
+                LOG.warn("Cannot track devices, {}", ex.getMessage());
+            } catch (IOException | RuntimeException ex) {
+                LOG.debug("device tracking stopped, {}", ex.getMessage());
+            } finally {
+                close();
+            }
+            firstList.countDown();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                LOG.debug("device tracking interrupted");
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY_MILLIS);
+        }
+    }
+
+    private void update(String list) {
+        Map<String, Device> current = parse(list);
+        synchronized (dispatchLock) {
+            Set<String> gone = new HashSet<>(devices.keySet());
+            gone.removeAll(current.keySet());
+            gone.forEach(serial -> {
+                Device d = devices.remove(serial);
+                if (d != null) {
+                    fire(Change.DETACHED, d);
+                }
+            });
+            current.values().forEach(d -> {
+                Device old = devices.put(d.getSerial(), d);
+                if (old == null) {
+                    fire(Change.ATTACHED, d);
+                } else if (!old.getState().equals(d.getState())) {
+                    fire(Change.STATE_CHANGED, d);
+                }
+            });
+        }
+    }
+
+    /**
+     * Parses device list, each line is 'serial\tstate', or 'serial   state product:... model:... device:...'.
+     */
+    static Map<String, Device> parse(String list) {
+        Map<String, Device> map = new LinkedHashMap<>();
+        for (String line : StringUtils.split(list, "\n")) {
+            String[] ss = StringUtils.split(StringUtils.strip(line), null, 3);
+            if (ss.length < 2) {
+                continue;
+            }
+            map.put(ss[0], new Device(ss[0], ss[1], ss.length > 2 ? ss[2].trim() : ""));
+        }
+        return map;
+    }
+
+    private void fire(Change change, Device device) {
+        LOG.info("{} {}", change, device);
+        listeners.forEach(l -> notify(l, change, device));
+    }
+
+    private void notify(Listener listener, Change change, Device device) {
+        try {
+            listener.deviceChanged(change, device);
+        } catch (RuntimeException ex) {
+            LOG.warn("device listener failed on {} {}", change, device, ex);
+        }
+    }
+
+    private void close() {
+        Socket s = socket;
+        socket = null;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ex) {
+                LOG.trace("{}", ex.getMessage());
+            }
+        }
+    }
+}
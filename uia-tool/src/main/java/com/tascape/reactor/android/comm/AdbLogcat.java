@@ -0,0 +1,485 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.comm;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams 'logcat -v threadtime' of a device on a background thread, and keeps the latest lines in a fixed-size ring
+ * buffer, so memory stays bounded no matter how long the device runs.
+ *
+ * Callers can subscribe to lines matching a predicate, or wait for such a line with a timeout. Detectors look at
+ * every line as it arrives, and report problems, such as app crash and ANR, to problem listeners right away.
+ *
+ * Streaming starts with 'logcat -T 1', so lines already in the device log buffer, such as crashes of earlier runs,
+ * are not replayed.
+ *
+ * @author linsong wang
+ */
+public class AdbLogcat implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(AdbLogcat.class);
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /**
+     * Java crash, such as 'E AndroidRuntime: FATAL EXCEPTION: main'.
+     */
+    public static final Detector CRASH = entry -> entry.getLevel() == 'E'
+        && "AndroidRuntime".equals(entry.getTag()) && entry.getMessage().startsWith("FATAL EXCEPTION")
+        ? "app crash, pid " + entry.getPid() + ", " + entry.getMessage() : null;
+
+    /**
+     * Application not responding, such as 'E ActivityManager: ANR in com.android.settings'.
+     */
+    public static final Detector ANR = entry -> entry.getLevel() == 'E'
+        && "ActivityManager".equals(entry.getTag()) && entry.getMessage().startsWith("ANR in ")
+        ? entry.getMessage() : null;
+
+    /**
+     * Native crash, such as 'F libc: Fatal signal 11 (SIGSEGV)'.
+     */
+    public static final Detector NATIVE_CRASH = entry -> entry.getLevel() == 'F'
+        && "libc".equals(entry.getTag()) && entry.getMessage().startsWith("Fatal signal")
+        ? "native crash, pid " + entry.getPid() + ", " + entry.getMessage() : null;
+
+    private final String serial;
+
+    private final Entry[] ring;
+
+    private long next = 0;
+
+    private final Object lock = new Object();
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private final List<Detector> detectors = new CopyOnWriteArrayList<>();
+
+    private final List<Consumer<Problem>> problemListeners = new CopyOnWriteArrayList<>();
+
+    private volatile boolean running;
+
+    private volatile Closeable channel;
+
+    private Thread reader;
+
+    /**
+     * One logcat line.
+     */
+    public static final class Entry {
+        private final long sequence;
+
+        private final String time;
+
+        private final int pid;
+
+        private final int tid;
+
+        private final char level;
+
+        private final String tag;
+
+        private final String message;
+
+        Entry(long sequence, String time, int pid, int tid, char level, String tag, String message) {
+            this.sequence = sequence;
+            this.time = time;
+            this.pid = pid;
+            this.tid = tid;
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+        }
+
+        /**
+         * @return sequence number of this line since streaming started
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return device time, such as '10-17 12:34:56.789'
+         */
+        public String getTime() {
+            return time;
+        }
+
+        public int getPid() {
+            return pid;
+        }
+
+        public int getTid() {
+            return tid;
+        }
+
+        /**
+         * @return one of V, D, I, W, E, F, or '?' if the line is not in threadtime format
+         */
+        public char getLevel() {
+            return level;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %5d %5d %c %s: %s", time, pid, tid, level, tag, message);
+        }
+    }
+
+    /**
+     * Looks at one line, and describes the problem it indicates.
+     */
+    @FunctionalInterface
+    public interface Detector {
+        /**
+         * @param entry logcat line
+         *
+         * @return problem description, or null if there is no problem
+         */
+        String detect(Entry entry);
+    }
+
+    /**
+     * A problem reported by a detector.
+     */
+    public static final class Problem {
+        private final String serial;
+
+        private final String description;
+
+        private final Entry entry;
+
+        Problem(String serial, String description, Entry entry) {
+            this.serial = serial;
+            this.description = description;
+            this.entry = entry;
+        }
+
+        public String getSerial() {
+            return serial;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public Entry getEntry() {
+            return entry;
+        }
+
+        @Override
+        public String toString() {
+            return serial + ": " + description;
+        }
+    }
+
+    private static final class Subscription {
+        private final Predicate<Entry> filter;
+
+        private final Consumer<Entry> consumer;
+
+        Subscription(Predicate<Entry> filter, Consumer<Entry> consumer) {
+            this.filter = filter;
+            this.consumer = consumer;
+        }
+    }
+
+    public AdbLogcat(Adb adb) {
+        this(adb, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param adb      adb of the device
+     * @param capacity number of latest lines to keep
+     */
+    public AdbLogcat(Adb adb, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        }
+        this.serial = adb.getSerial();
+        this.ring = new Entry[capacity];
+    }
+
+    /**
+     * Adds crash, ANR and native crash detectors.
+     *
+     * @return this
+     */
+    public AdbLogcat withDefaultDetectors() {
+        detectors.add(CRASH);
+        detectors.add(ANR);
+        detectors.add(NATIVE_CRASH);
+        return this;
+    }
+
+    public AdbLogcat addDetector(Detector detector) {
+        detectors.add(detector);
+        return this;
+    }
+
+    /**
+     * Adds a problem listener, which is called on the logcat thread as soon as a detector reports a problem.
+     *
+     * @param listener problem listener
+     *
+     * @return this
+     */
+    public AdbLogcat addProblemListener(Consumer<Problem> listener) {
+        problemListeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Starts streaming on a daemon thread.
+     *
+     * @return this
+     *
+     * @throws IOException if logcat cannot be started
+     */
+    public synchronized AdbLogcat start() throws IOException {
+        if (running) {
+            return this;
+        }
+        String command = "logcat -v threadtime -T 1";
+        InputStream in;
+        if (Adb.isNative()) {
+            Socket socket = AdbServerClient.getInstance().open(serial, "shell:" + command);
+            channel = socket;
+            in = socket.getInputStream();
+        } else {
+            List<String> cmd = new ArrayList<>();
+            cmd.add(Adb.getExecutable());
+            if (!serial.isEmpty()) {
+                cmd.add("-s");
+                cmd.add(serial);
+            }
+            cmd.add("shell");
+            cmd.add(command);
+            Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            channel = process::destroy;
+            in = process.getInputStream();
+        }
+        running = true;
+        reader = new Thread(() -> read(in), "logcat-" + serial);
+        reader.setDaemon(true);
+        reader.start();
+        LOG.debug("logcat of '{}' started", serial);
+        return this;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Subscribes to new lines.
+     *
+     * @param filter   which lines to get
+     * @param consumer called on the logcat thread for each matching line, it should return quickly
+     *
+     * @return handle to unsubscribe
+     */
+    public Closeable subscribe(Predicate<Entry> filter, Consumer<Entry> consumer) {
+        Subscription s = new Subscription(filter, consumer);
+        subscriptions.add(s);
+        return () -> subscriptions.remove(s);
+    }
+
+    /**
+     * Waits for a new line matching a predicate.
+     *
+     * @param filter        which line to wait for
+     * @param timeoutMillis how long to wait
+     *
+     * @return matching line, or null if there is none in time
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Entry waitFor(Predicate<Entry> filter, long timeoutMillis) throws InterruptedException {
+        return waitFor(getSequence(), filter, timeoutMillis);
+    }
+
+    /**
+     * Waits for a line matching a predicate, starting from a sequence number. Lines still in the buffer are checked
+     * first, so nothing is missed between taking the sequence number and calling this.
+     *
+     * @param since         sequence number, from {@link #getSequence()}
+     * @param filter        which line to wait for
+     * @param timeoutMillis how long to wait
+     *
+     * @return matching line, or null if there is none in time
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Entry waitFor(long since, Predicate<Entry> filter, long timeoutMillis) throws InterruptedException {
+        CompletableFuture<Entry> future = new CompletableFuture<>();
+        Closeable s = subscribe(filter, future::complete);
+        try {
+            getEntries(since).stream().filter(filter).findFirst().ifPresent(future::complete);
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            return null;
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            unsubscribe(s);
+        }
+    }
+
+    /**
+     * @return sequence number of the next line
+     */
+    public long getSequence() {
+        synchronized (lock) {
+            return next;
+        }
+    }
+
+    /**
+     * @return all lines in buffer, oldest first
+     */
+    public List<Entry> getEntries() {
+        return getEntries(0);
+    }
+
+    /**
+     * @param since sequence number
+     *
+     * @return lines in buffer from the sequence number, oldest first
+     */
+    public List<Entry> getEntries(long since) {
+        synchronized (lock) {
+            long from = Math.max(since, next - ring.length);
+            List<Entry> entries = new ArrayList<>((int) Math.max(0, next - from));
+            for (long i = from; i < next; i++) {
+                entries.add(ring[(int) (i % ring.length)]);
+            }
+            return entries;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        Closeable c = channel;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                LOG.trace("{}", ex.getMessage());
+            }
+        }
+        LOG.debug("logcat of '{}' stopped", serial);
+    }
+
+    private void read(InputStream in) {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("--------- ") || line.trim().isEmpty()) {
+                    continue;
+                }
+                append(line);
+            }
+        } catch (IOException ex) {
+            if (running) {
+                LOG.warn("logcat of '{}' broken, {}", serial, ex.getMessage());
+            }
+        } finally {
+            running = false;
+        }
+    }
+
+    private void append(String line) {
+        Entry entry;
+        synchronized (lock) {
+            entry = parse(next, StringUtils.stripEnd(line, "\r"));
+            ring[(int) (next % ring.length)] = entry;
+            next++;
+        }
+        for (Subscription s : subscriptions) {
+            try {
+                if (s.filter.test(entry)) {
+                    s.consumer.accept(entry);
+                }
+            } catch (RuntimeException ex) {
+                LOG.warn("logcat subscriber failed on {}", entry, ex);
+            }
+        }
+        for (Detector d : detectors) {
+            String description = d.detect(entry);
+            if (description != null) {
+                Problem problem = new Problem(serial, description, entry);
+                LOG.error("{}", problem);
+                problemListeners.forEach(l -> l.accept(problem));
+            }
+        }
+    }
+
+    /**
+     * Parses one line in threadtime format, 'MM-dd HH:mm:ss.SSS  pid  tid L tag: message', without regex.
+     */
+    static Entry parse(long sequence, String line) {
+        String[] ss = StringUtils.split(line, null, 6);
+        if (ss.length == 6 && ss[4].length() == 1) {
+            try {
+                int pid = Integer.parseInt(ss[2]);
+                int tid = Integer.parseInt(ss[3]);
+                String rest = ss[5];
+                int i = rest.indexOf(": ");
+                String tag = i < 0 ? StringUtils.stripEnd(rest, ":") : rest.substring(0, i);
+                String message = i < 0 ? "" : rest.substring(i + 2);
+                return new Entry(sequence, ss[0] + " " + ss[1], pid, tid, ss[4].charAt(0), tag.trim(), message);
+            } catch (NumberFormatException ex) {
+                LOG.trace("not threadtime format {}", line);
+            }
+        }
+        return new Entry(sequence, "", 0, 0, '?', "", line);
+    }
+
+    private static void unsubscribe(Closeable s) {
+        try {
+            s.close();
+        } catch (IOException ex) {
+            LOG.trace("{}", ex.getMessage());
+        }
+    }
+}
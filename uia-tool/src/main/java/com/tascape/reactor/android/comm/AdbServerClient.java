@@ -0,0 +1,441 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.comm;
+
+import com.tascape.reactor.SystemConfiguration;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Talks to the host adb server (localhost:5037 by default) with its smart-socket protocol directly, instead of
+ * forking the adb executable for every command.
+ *
+ * A request is a 4-digit hex length followed by the payload, and the server replies with OKAY, or FAIL plus a
+ * length-prefixed message. Device services (shell:, exec:, ...) require the socket to be switched to a device
+ * first with host:transport:serial. Each service consumes its socket, so a small per-serial pool keeps sockets
+ * that are already switched to the device, and tops itself up in background.
+ *
+ * @author linsong wang
+ */
+public final class AdbServerClient {
+    private static final Logger LOG = LoggerFactory.getLogger(AdbServerClient.class);
+
+    public static final String SYSPROP_ADB_SERVER_HOST = "reactor.comm.android.ADB_SERVER_HOST";
+
+    public static final String SYSPROP_ADB_SERVER_PORT = "reactor.comm.android.ADB_SERVER_PORT";
+
+    public static final String SYSPROP_ADB_SOCKET_POOL_SIZE = "reactor.comm.android.ADB_SOCKET_POOL_SIZE";
+
+    public static final int DEFAULT_ADB_SERVER_PORT = 5037;
+
+    public static final int DEFAULT_POOL_SIZE = 2;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+    private static final String OKAY = "OKAY";
+
+    private static final String FAIL = "FAIL";
+
+    private static AdbServerClient instance;
+
+    private final String host;
+
+    private final int port;
+
+    private final int poolSize;
+
+    private final Map<String, Deque<Socket>> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Sockets of device services handed out, by serial, closed ones are dropped on next open.
+     */
+    private final Map<String, Set<Socket>> opened = new ConcurrentHashMap<>();
+
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "adb-socket-pool");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static synchronized AdbServerClient getInstance() {
+        if (instance == null) {
+            SystemConfiguration sysConfig = SystemConfiguration.getInstance();
+            String h = sysConfig.getProperty(SYSPROP_ADB_SERVER_HOST);
+            String p = sysConfig.getProperty(SYSPROP_ADB_SERVER_PORT);
+            if (StringUtils.isBlank(p)) {
+                p = System.getenv("ANDROID_ADB_SERVER_PORT");
+            }
+            String s = sysConfig.getProperty(SYSPROP_ADB_SOCKET_POOL_SIZE);
+            instance = new AdbServerClient(StringUtils.isBlank(h) ? "localhost" : h,
+                StringUtils.isBlank(p) ? DEFAULT_ADB_SERVER_PORT : Integer.parseInt(p.trim()),
+                StringUtils.isBlank(s) ? DEFAULT_POOL_SIZE : Integer.parseInt(s.trim()));
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the shared client, such as with one of a fake adb server in tests.
+     *
+     * @param client client to share
+     */
+    static synchronized void setInstance(AdbServerClient client) {
+        instance = client;
+    }
+
+    public AdbServerClient(String host, int port, int poolSize) {
+        this.host = host;
+        this.port = port;
+        this.poolSize = poolSize;
+        LOG.debug("adb server {}:{}, socket pool size {}", host, port, poolSize);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sends a host request, such as host:version, host:devices-l, and reads the length-prefixed reply.
+     *
+     * @param request host request
+     *
+     * @return reply payload
+     *
+     * @throws IOException if server is not reachable, or request fails
+     */
+    public String query(String request) throws IOException {
+        try (Socket socket = connect()) {
+            send(socket, request);
+            return readString(socket.getInputStream());
+        }
+    }
+
+    /**
+     * Sends a host request that only replies with OKAY, such as host-serial:serial:forward:tcp:1;tcp:2.
+     *
+     * @param request host request
+     *
+     * @throws IOException if server is not reachable, or request fails
+     */
+    public void execute(String request) throws IOException {
+        try (Socket socket = connect()) {
+            send(socket, request);
+        }
+    }
+
+    /**
+     * Lists attached devices with host:devices, or host:devices-l.
+     *
+     * @param detail true to include product, model and device details
+     *
+     * @return output lines, in the same format as 'adb devices [-l]', without the header line
+     *
+     * @throws IOException if server is not reachable
+     */
+    public List<String> devices(boolean detail) throws IOException {
+        return toLines(query(detail ? "host:devices-l" : "host:devices"));
+    }
+
+    /**
+     * Runs a shell command on device, with the shell: service.
+     *
+     * @param serial  device serial, empty for the only attached device
+     * @param command shell command line
+     *
+     * @return output lines
+     *
+     * @throws IOException if server is not reachable, or device is not available
+     */
+    public List<String> shell(String serial, String command) throws IOException {
+        List<String> lines = new ArrayList<>();
+        shell(serial, command, line -> lines.add(line.toString()));
+        return lines;
+    }
+
+    /**
+     * Runs a shell command on device, and streams output lines to a handler. The socket is closed as soon as the
+     * handler returns false, which ends the command on device.
+     *
+     * @param serial  device serial, empty for the only attached device
+     * @param command shell command line
+     * @param handler output line handler
+     *
+     * @return true if handler stopped the command early
+     *
+     * @throws IOException if server is not reachable, or device is not available
+     */
+    public boolean shell(String serial, String command, Adb.LineHandler handler) throws IOException {
+        try (Socket socket = open(serial, "shell:" + command)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                LOG.trace(line);
+                if (!handler.onLine(line)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Runs a command on device, with the exec: service. Output is not touched by the device pty, which makes it
+     * fit for binary data.
+     *
+     * @param serial  device serial, empty for the only attached device
+     * @param command command line
+     *
+     * @return socket with service output as its input stream, to be closed by caller
+     *
+     * @throws IOException if server is not reachable, or device is not available
+     */
+    public Socket exec(String serial, String command) throws IOException {
+        return open(serial, "exec:" + command);
+    }
+
+    /**
+     * Opens a device service, with a pooled socket switched to the device if there is one.
+     *
+     * @param serial  device serial, empty for the only attached device
+     * @param service device service, such as shell:ls, exec:screencap, sync:
+     *
+     * @return socket with service accepted, backed by a blocking SocketChannel, to be closed by caller
+     *
+     * @throws IOException if server is not reachable, or device is not available
+     */
+    public Socket open(String serial, String service) throws IOException {
+        Deque<Socket> pool = pool(serial);
+        Socket socket = pool.pollFirst();
+        refill(serial);
+        if (socket != null) {
+            try {
+                send(socket, service);
+                socket.setSoTimeout(0);
+                return opened(serial, socket);
+            } catch (AdbFailException ex) {
+                close(socket);
+                throw ex;
+            } catch (IOException ex) {
+                LOG.debug("pooled socket for '{}' is stale, {}", serial, ex.getMessage());
+                close(socket);
+            }
+        }
+        socket = transport(serial);
+        try {
+            send(socket, service);
+            socket.setSoTimeout(0);
+            return opened(serial, socket);
+        } catch (IOException ex) {
+            close(socket);
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens a long-running host service, such as host:track-devices, which keeps sending length-prefixed messages.
+     *
+     * @param request host request
+     *
+     * @return socket with request accepted, to be closed by caller
+     *
+     * @throws IOException if server is not reachable, or request fails
+     */
+    public Socket openHost(String request) throws IOException {
+        Socket socket = connect();
+        try {
+            send(socket, request);
+            socket.setSoTimeout(0);
+            return socket;
+        } catch (IOException ex) {
+            close(socket);
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes all pooled sockets.
+     */
+    public void reset() {
+        pools.values().forEach(pool -> {
+            Socket socket;
+            while ((socket = pool.pollFirst()) != null) {
+                close(socket);
+            }
+        });
+    }
+
+    /**
+     * Closes pooled sockets of a device, such as when it is detached or goes offline, and the sockets of its services
+     * still open, so threads blocked reading them fail at once.
+     *
+     * @param serial device serial
+     */
+    public void reset(String serial) {
+        Deque<Socket> pool = pools.remove(serial);
+        if (pool != null) {
+            Socket socket;
+            while ((socket = pool.pollFirst()) != null) {
+                close(socket);
+            }
+        }
+        Set<Socket> sockets = opened.remove(serial);
+        if (sockets != null) {
+            sockets.forEach(AdbServerClient::close);
+        }
+    }
+
+    private Deque<Socket> pool(String serial) {
+        return pools.computeIfAbsent(serial, s -> new ConcurrentLinkedDeque<>());
+    }
+
+    private Socket opened(String serial, Socket socket) {
+        Set<Socket> sockets = opened.computeIfAbsent(serial, s -> ConcurrentHashMap.newKeySet());
+        sockets.removeIf(Socket::isClosed);
+        sockets.add(socket);
+        return socket;
+    }
+
+    private void refill(String serial) {
+        if (poolSize <= 0) {
+            return;
+        }
+        refiller.execute(() -> {
+            Deque<Socket> pool = pool(serial);
+            while (pool.size() < poolSize) {
+                try {
+                    pool.offerLast(transport(serial));
+                } catch (IOException ex) {
+                    LOG.trace("cannot warm up socket for '{}', {}", serial, ex.getMessage());
+                    return;
+                }
+            }
+        });
+    }
+
+    private Socket transport(String serial) throws IOException {
+        Socket socket = connect();
+        try {
+            send(socket, StringUtils.isEmpty(serial) ? "host:transport-any" : "host:transport:" + serial);
+            return socket;
+        } catch (IOException ex) {
+            close(socket);
+            throw ex;
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = SocketChannel.open().socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            return socket;
+        } catch (IOException ex) {
+            close(socket);
+            throw ex;
+        }
+    }
+
+    static void send(Socket socket, String request) throws IOException {
+        byte[] payload = request.getBytes(StandardCharsets.UTF_8);
+        OutputStream out = socket.getOutputStream();
+        out.write(String.format("%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+        out.flush();
+        LOG.trace("> {}", request);
+        readStatus(socket.getInputStream(), request);
+    }
+
+    static void readStatus(InputStream in, String request) throws IOException {
+        String status = readAscii(in, 4);
+        if (OKAY.equals(status)) {
+            return;
+        }
+        if (FAIL.equals(status)) {
+            throw new AdbFailException(request + " failed: " + readString(in));
+        }
+        throw new IOException(request + " got unexpected status '" + status + "'");
+    }
+
+    static String readString(InputStream in) throws IOException {
+        int length = Integer.parseInt(readAscii(in, 4), 16);
+        byte[] bytes = new byte[length];
+        new DataInputStream(in).readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readAscii(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        new DataInputStream(in).readFully(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static List<String> toLines(String text) {
+        List<String> lines = new ArrayList<>();
+        for (String line : StringUtils.split(text, "\n")) {
+            if (StringUtils.isNotBlank(line)) {
+                lines.add(StringUtils.stripEnd(line, "\r"));
+            }
+        }
+        return lines;
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            LOG.trace("{}", ex.getMessage());
+        }
+    }
+
+    /**
+     * The adb server replied FAIL, which means the request reached the server and was rejected. There is no point
+     * to retry on another socket.
+     */
+    public static class AdbFailException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public AdbFailException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.comm;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long-lived interactive shell on device, which runs commands one after another on the same channel, instead of
+ * opening a new 'adb shell' per command.
+ *
+ * Each command is wrapped as
+ * <pre>
+ * echo 'TAG''TOKEN:S'; { command
+ * } &lt;/dev/null 2&gt;&amp;1; echo 'TAG''TOKEN:E:'$?
+ * </pre>
+ * so its output is whatever comes between the start and end markers, and the exit code follows the end marker.
+ * Quotes split the markers, so the pty echo of the command line itself never matches. Prompts and echo before the
+ * start marker are discarded. Several commands can be written at once, and their results are read back in order;
+ * pty echo of later commands that lands in the output of an earlier one is dropped.
+ *
+ * A command that does not finish in time closes the session, and the next command opens a new one. A command that
+ * fails before it starts (stale channel) is retried once on a new session.
+ *
+ * @author linsong wang
+ */
+public class AdbShell implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(AdbShell.class);
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    private static final String TAG = "__RXSH";
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "adb-shell-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String serial;
+
+    private final String token = UUID.randomUUID().toString().substring(0, 8);
+
+    private Socket socket;
+
+    private Process process;
+
+    private BufferedReader reader;
+
+    private OutputStream writer;
+
+    private volatile boolean timedOut;
+
+    /**
+     * Result of one command, output lines and exit code.
+     */
+    public static class Result {
+        private final List<String> lines;
+
+        private final int exitCode;
+
+        Result(List<String> lines, int exitCode) {
+            this.lines = lines;
+            this.exitCode = exitCode;
+        }
+
+        public List<String> getLines() {
+            return lines;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        @Override
+        public String toString() {
+            return "exit " + exitCode + ", " + lines;
+        }
+    }
+
+    AdbShell(String serial) {
+        this.serial = serial;
+    }
+
+    public String getSerial() {
+        return serial;
+    }
+
+    public Result run(String command) throws IOException {
+        return run(command, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Runs a command on the session, and waits for it to finish.
+     *
+     * @param command       shell command line
+     * @param timeoutMillis how long to wait for the command to finish
+     *
+     * @return command output and exit code
+     *
+     * @throws IOException if session cannot be opened, or command times out
+     */
+    public Result run(String command, long timeoutMillis) throws IOException {
+        return run(Collections.singletonList(command), timeoutMillis).get(0);
+    }
+
+    /**
+     * Runs commands on the session in one round trip. All commands are written at once, and run one after another
+     * on device, regardless of exit code of previous ones.
+     *
+     * @param commands      shell command lines
+     * @param timeoutMillis how long to wait for all commands to finish
+     *
+     * @return output and exit code of each command, in order
+     *
+     * @throws IOException if session cannot be opened, or commands time out
+     */
+    public synchronized List<Result> run(List<String> commands, long timeoutMillis) throws IOException {
+        if (commands.isEmpty() || commands.stream().anyMatch(StringUtils::isBlank)) {
+            throw new IllegalArgumentException("empty shell command");
+        }
+        boolean fresh = reader == null;
+        try {
+            return run0(commands, timeoutMillis);
+        } catch (NotStartedException ex) {
+            close();
+            if (fresh) {
+                throw ex;
+            }
+            LOG.debug("shell session of '{}' is stale, reconnect", serial);
+            return run0(commands, timeoutMillis);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                LOG.trace("{}", ex.getMessage());
+            }
+        }
+        if (process != null) {
+            process.destroy();
+        }
+        socket = null;
+        process = null;
+        reader = null;
+        writer = null;
+    }
+
+    private List<Result> run0(List<String> commands, long timeoutMillis) throws IOException {
+        if (reader == null) {
+            open();
+        }
+        String start = TAG + token + ":S";
+        String end = TAG + token + ":E:";
+        String echo = "'" + TAG + "''" + token;
+        StringBuilder script = new StringBuilder();
+        commands.forEach(command -> {
+            LOG.debug("[adb -s {} shell {}]", serial, command);
+            script.append("echo '").append(TAG).append("''").append(token).append(":S'; { ").append(command)
+                .append("\n} </dev/null 2>&1; echo '").append(TAG).append("''").append(token).append(":E:'$?\n");
+        });
+        String command = commands.size() == 1 ? commands.get(0) : commands.size() + " commands";
+
+        timedOut = false;
+        BufferedReader r = reader;
+        Closeable channel = socket != null ? socket : process::destroy;
+        ScheduledFuture<?> watchdog = WATCHDOG.schedule(() -> {
+            timedOut = true;
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOG.trace("{}", ex.getMessage());
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            try {
+                writer.write(script.toString().getBytes(StandardCharsets.UTF_8));
+                writer.flush();
+                readStart(r, start);
+            } catch (IOException ex) {
+                if (timedOut) {
+                    throw timeout(command, timeoutMillis);
+                }
+                throw new NotStartedException(ex);
+            }
+
+            List<Result> results = new ArrayList<>(commands.size());
+            for (int c = 0; c < commands.size(); c++) {
+                if (c > 0) {
+                    readStart(r, start);
+                }
+                List<String> lines = new ArrayList<>();
+                while (true) {
+                    String l = r.readLine();
+                    if (l == null) {
+                        throw new IOException("shell session closed while running '" + commands.get(c) + "'");
+                    }
+                    l = StringUtils.stripEnd(l, "\r");
+                    int i = l.indexOf(end);
+                    if (i < 0) {
+                        if (l.contains(echo)) {
+                            continue;
+                        }
+                        LOG.trace(l);
+                        lines.add(l);
+                        continue;
+                    }
+                    if (i > 0) {
+                        lines.add(l.substring(0, i));
+                    }
+                    int code = Integer.parseInt(l.substring(i + end.length()).trim());
+                    results.add(new Result(Collections.unmodifiableList(lines), code));
+                    break;
+                }
+            }
+            return results;
+        } catch (IOException ex) {
+            if (!(ex instanceof NotStartedException)) {
+                close();
+            }
+            if (timedOut) {
+                throw timeout(command, timeoutMillis);
+            }
+            throw ex;
+        } finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    /**
+     * Skips prompt and echo, up to the start marker of next command.
+     */
+    private static void readStart(BufferedReader r, String start) throws IOException {
+        String l;
+        do {
+            l = r.readLine();
+            if (l == null) {
+                throw new IOException("shell session closed");
+            }
+        } while (!StringUtils.stripEnd(l, "\r").endsWith(start));
+    }
+
+    private void open() throws IOException {
+        InputStream in;
+        if (Adb.isNative()) {
+            socket = AdbServerClient.getInstance().open(serial, "shell:");
+            in = socket.getInputStream();
+            writer = socket.getOutputStream();
+        } else {
+            List<String> cmd = new ArrayList<>();
+            cmd.add(Adb.getExecutable());
+            if (!serial.isEmpty()) {
+                cmd.add("-s");
+                cmd.add(serial);
+            }
+            cmd.add("shell");
+            process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            in = process.getInputStream();
+            writer = process.getOutputStream();
+        }
+        reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        LOG.debug("shell session of '{}' is open", serial);
+    }
+
+    private IOException timeout(String command, long timeoutMillis) {
+        return new InterruptedIOException("'" + command + "' did not finish in " + timeoutMillis + " ms");
+    }
+
+    private static class NotStartedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NotStartedException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
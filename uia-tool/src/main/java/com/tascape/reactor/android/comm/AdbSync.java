@@ -0,0 +1,448 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client of the adb file sync protocol (the 'sync:' device service), which is what 'adb push/pull' use underneath.
+ *
+ * Every request and reply is a 4-byte id plus a 4-byte little-endian length. File content is moved in chunks of at
+ * most 64k, straight between the socket channel and a FileChannel (with sendfile for push), or a ByteBuffer for
+ * in-memory transfers. Multi-file push and pull are pipelined: all requests go out before the first reply is read.
+ * The device closes the sync session on the first failure.
+ *
+ * @author linsong wang
+ */
+public class AdbSync implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(AdbSync.class);
+
+    public static final int DEFAULT_FILE_MODE = 0644;
+
+    private static final int MAX_DATA = 64 * 1024;
+
+    private static final String STAT = "STAT";
+
+    private static final String LIST = "LIST";
+
+    private static final String DENT = "DENT";
+
+    private static final String RECV = "RECV";
+
+    private static final String SEND = "SEND";
+
+    private static final String DATA = "DATA";
+
+    private static final String DONE = "DONE";
+
+    private static final String OKAY = "OKAY";
+
+    private static final String FAIL = "FAIL";
+
+    private static final String QUIT = "QUIT";
+
+    private final Socket socket;
+
+    private final SocketChannel channel;
+
+    private final ByteBuffer header = ByteBuffer.allocateDirect(20).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final ByteBuffer chunk = ByteBuffer.allocateDirect(MAX_DATA).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * File mode, size and modification time, as reported by device.
+     */
+    public static class Entry {
+        private final String name;
+
+        private final int mode;
+
+        private final long size;
+
+        private final long mtime;
+
+        Entry(String name, int mode, long size, long mtime) {
+            this.name = name;
+            this.mode = mode;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMode() {
+            return mode;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getMtime() {
+            return mtime;
+        }
+
+        public boolean exists() {
+            return mode != 0;
+        }
+
+        public boolean isDirectory() {
+            return (mode & 0170000) == 0040000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %o %d %d", name, mode, size, mtime);
+        }
+    }
+
+    /**
+     * Opens a sync session on device.
+     *
+     * @param serial device serial, empty for the only attached device
+     *
+     * @return sync session, to be closed by caller
+     *
+     * @throws IOException if adb server is not reachable, or device is not available
+     */
+    public static AdbSync open(String serial) throws IOException {
+        return new AdbSync(AdbServerClient.getInstance().open(serial, "sync:"));
+    }
+
+    AdbSync(Socket socket) throws IOException {
+        this.socket = socket;
+        this.channel = socket.getChannel();
+        if (this.channel == null) {
+            throw new IOException("socket has no channel");
+        }
+    }
+
+    public Entry stat(String remote) throws IOException {
+        request(STAT, remote);
+        readHeader(16);
+        String id = id();
+        if (!STAT.equals(id)) {
+            throw new IOException("unexpected reply " + id + " to STAT " + remote);
+        }
+        return new Entry(remote, header.getInt(), header.getInt() & 0xFFFFFFFFL, header.getInt() & 0xFFFFFFFFL);
+    }
+
+    public List<Entry> list(String remote) throws IOException {
+        request(LIST, remote);
+        List<Entry> entries = new ArrayList<>();
+        while (true) {
+            readHeader(20);
+            String id = id();
+            int mode = header.getInt();
+            long size = header.getInt() & 0xFFFFFFFFL;
+            long mtime = header.getInt() & 0xFFFFFFFFL;
+            int length = header.getInt();
+            if (DONE.equals(id)) {
+                return entries;
+            }
+            if (!DENT.equals(id)) {
+                throw new IOException("unexpected reply " + id + " to LIST " + remote);
+            }
+            String name = readString(length);
+            if (!".".equals(name) && !"..".equals(name)) {
+                entries.add(new Entry(name, mode, size, mtime));
+            }
+        }
+    }
+
+    /**
+     * Pulls a remote file into a local file.
+     *
+     * @param remote device file path
+     * @param local  local file, will be overwritten
+     *
+     * @return number of bytes pulled
+     *
+     * @throws IOException if remote file cannot be read, or local file cannot be written
+     */
+    public long pull(String remote, File local) throws IOException {
+        try (FileChannel fc = FileChannel.open(local.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            return pull(remote, fc);
+        }
+    }
+
+    public long pull(String remote, FileChannel local) throws IOException {
+        request(RECV, remote);
+        return receive(remote, local, null);
+    }
+
+    /**
+     * Pulls a remote file into a caller-supplied buffer, starting at its current position.
+     *
+     * @param remote device file path
+     * @param buffer destination, with enough room for the whole file
+     *
+     * @return number of bytes pulled
+     *
+     * @throws IOException              if remote file cannot be read
+     * @throws BufferOverflowException if remote file does not fit
+     */
+    public long pull(String remote, ByteBuffer buffer) throws IOException {
+        request(RECV, remote);
+        return receive(remote, null, buffer);
+    }
+
+    /**
+     * Pulls a remote file into memory. The buffer grows with the data received, since the file can change after any
+     * STAT.
+     *
+     * @param remote device file path
+     *
+     * @return file content, flipped for reading
+     *
+     * @throws IOException if remote file cannot be read
+     */
+    public ByteBuffer pull(String remote) throws IOException {
+        Content content = new Content();
+        request(RECV, remote);
+        receive(remote, Channels.newChannel(content), null);
+        return content.toByteBuffer();
+    }
+
+    /**
+     * Pulls multiple remote files in one pipelined round, all RECV requests are sent before the first reply is read.
+     *
+     * @param files device file path to local file, in order
+     *
+     * @throws IOException on first failure, files after the failed one are not pulled
+     */
+    public void pull(Map<String, File> files) throws IOException {
+        List<FileChannel> fcs = new ArrayList<>();
+        try {
+            for (File local : files.values()) {
+                fcs.add(FileChannel.open(local.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING));
+            }
+            for (String remote : files.keySet()) {
+                request(RECV, remote);
+            }
+            int i = 0;
+            for (String remote : files.keySet()) {
+                receive(remote, fcs.get(i++), null);
+            }
+        } finally {
+            for (FileChannel fc : fcs) {
+                fc.close();
+            }
+        }
+    }
+
+    public void push(File local, String remote) throws IOException {
+        Map<File, String> files = new LinkedHashMap<>();
+        files.put(local, remote);
+        push(files);
+    }
+
+    /**
+     * Pushes multiple local files in one pipelined round, every file is sent before the first status is read.
+     *
+     * @param files local file to device file path, in order
+     *
+     * @throws IOException on first failure
+     */
+    public void push(Map<File, String> files) throws IOException {
+        for (Map.Entry<File, String> entry : files.entrySet()) {
+            File local = entry.getKey();
+            try (FileChannel fc = FileChannel.open(local.toPath(), StandardOpenOption.READ)) {
+                send(fc, entry.getValue(), DEFAULT_FILE_MODE, local.lastModified() / 1000);
+            }
+        }
+        for (String remote : files.values()) {
+            readStatus(remote);
+        }
+    }
+
+    /**
+     * Pushes in-memory content, from buffer position to limit, into a device file.
+     *
+     * @param data   content
+     * @param remote device file path
+     * @param mode   device file mode, such as 0644
+     *
+     * @throws IOException if device file cannot be written
+     */
+    public void push(ByteBuffer data, String remote, int mode) throws IOException {
+        request(SEND, remote + "," + mode);
+        while (data.hasRemaining()) {
+            int n = Math.min(MAX_DATA, data.remaining());
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + n);
+            writeHeader(DATA, n);
+            writeFully(slice);
+            data.position(data.position() + n);
+        }
+        writeHeader(DONE, (int) (System.currentTimeMillis() / 1000));
+        readStatus(remote);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeHeader(QUIT, 0);
+        } catch (IOException ex) {
+            LOG.trace("{}", ex.getMessage());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void send(FileChannel local, String remote, int mode, long mtime) throws IOException {
+        LOG.debug("push {} bytes into {}", local.size(), remote);
+        request(SEND, remote + "," + mode);
+        long position = 0;
+        long size = local.size();
+        while (position < size) {
+            int n = (int) Math.min(MAX_DATA, size - position);
+            writeHeader(DATA, n);
+            long end = position + n;
+            while (position < end) {
+                position += local.transferTo(position, end - position, channel);
+            }
+        }
+        writeHeader(DONE, (int) mtime);
+    }
+
+    private long receive(String remote, WritableByteChannel file, ByteBuffer buffer) throws IOException {
+        long total = 0;
+        while (true) {
+            readHeader(8);
+            String id = id();
+            int length = header.getInt();
+            switch (id) {
+                case DATA:
+                    if (length > MAX_DATA) {
+                        throw new IOException("invalid data chunk size " + length);
+                    }
+                    chunk.clear().limit(length);
+                    readFully(chunk);
+                    chunk.flip();
+                    if (file != null) {
+                        while (chunk.hasRemaining()) {
+                            file.write(chunk);
+                        }
+                    } else {
+                        buffer.put(chunk);
+                    }
+                    total += length;
+                    break;
+                case DONE:
+                    LOG.debug("pull {} bytes from {}", total, remote);
+                    return total;
+                case FAIL:
+                    throw new IOException("cannot pull " + remote + ", " + readString(length));
+                default:
+                    throw new IOException("unexpected reply " + id + " to RECV " + remote);
+            }
+        }
+    }
+
+    private void readStatus(String remote) throws IOException {
+        readHeader(8);
+        String id = id();
+        int length = header.getInt();
+        if (OKAY.equals(id)) {
+            return;
+        }
+        if (FAIL.equals(id)) {
+            throw new IOException("cannot push " + remote + ", " + readString(length));
+        }
+        throw new IOException("unexpected reply " + id + " to SEND " + remote);
+    }
+
+    private void request(String id, String path) throws IOException {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 1024) {
+            throw new IOException("path too long " + path);
+        }
+        writeHeader(id, bytes.length);
+        writeFully(ByteBuffer.wrap(bytes));
+    }
+
+    private void writeHeader(String id, int value) throws IOException {
+        header.clear();
+        header.put(id.getBytes(StandardCharsets.US_ASCII)).putInt(value).flip();
+        writeFully(header);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void readHeader(int length) throws IOException {
+        header.clear().limit(length);
+        readFully(header);
+        header.flip();
+    }
+
+    private String id() {
+        byte[] id = new byte[4];
+        header.get(id);
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+
+    private String readString(int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(buffer);
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("sync session closed");
+            }
+        }
+    }
+
+    /**
+     * Growable in-memory file content, handed out without a copy.
+     */
+    private static class Content extends ByteArrayOutputStream {
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -16,8 +16,12 @@
 package com.tascape.reactor.android.driver;
 
 import com.android.uiautomator.stub.IUiDevice;
+import com.android.uiautomator.stub.Rect;
 import com.google.common.collect.Lists;
 import com.tascape.reactor.android.comm.Adb;
+import com.tascape.reactor.android.comm.AdbDeviceTracker;
+import com.tascape.reactor.android.comm.AdbLogcat;
+import com.tascape.reactor.android.model.UIAException;
 import com.tascape.reactor.driver.EntityDriver;
 import com.tascape.reactor.exception.EntityDriverException;
 import java.awt.image.BufferedImage;
@@ -26,13 +30,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,10 +51,28 @@ class AdbDevice extends EntityDriver {
 
     private Adb adb;
 
+    private DeviceProperties properties;
+
     private String version;
 
+    private AdbLogcat logcat;
+
+    private volatile AdbLogcat.Problem problem;
+
+    private volatile Thread failFastThread;
+
+    private AdbDeviceTracker.Listener deviceListener;
+
+    /**
+     * The device as last listed by adb server once it is detached or goes offline, null while it is online.
+     */
+    private volatile AdbDeviceTracker.Device disconnected;
+
     public void setAdb(Adb adb) throws IOException {
         this.adb = adb;
+        this.properties = new DeviceProperties(adb);
+        this.version = null;
+        this.trackDevice();
     }
 
     public Adb getAdb() {
@@ -70,17 +93,24 @@ class AdbDevice extends EntityDriver {
     public String getVersion() {
         if (StringUtils.isBlank(version)) {
             try {
-                return getPropValue("ro.build.version.release") + "-" + getPropValue("ro.build.version.sdk ");
+                version = getPropValue("ro.build.version.release") + "-" + getPropValue("ro.build.version.sdk");
             } catch (IOException ex) {
                 LOG.warn(ex.getMessage());
-                version = "";
+                return "";
             }
         }
         return version;
     }
 
+    /**
+     * @return device properties, cached, see {@link DeviceProperties}
+     */
+    public DeviceProperties getProperties() {
+        return properties;
+    }
+
     public List<String> getProp() throws IOException {
-        List<String> props = this.adb.shell(Lists.newArrayList("getprop"));
+        List<String> props = this.adb.shellInSession(Lists.newArrayList("getprop"));
         props.forEach(p -> LOG.debug(p));
         return props;
     }
@@ -102,51 +132,63 @@ class AdbDevice extends EntityDriver {
     }
 
     public String getAppVersion(String packageName) throws IOException, EntityDriverException {
-        List<String> res = this.adb.shell(Lists.newArrayList("dumpsys", "package", packageName));
-        res.forEach(l -> LOG.debug(l));
-        String versionName = "";
-        String versionCode = "";
-        for (int i = 0, j = res.size(); i < j; i++) {
-            String line = res.get(i);
-            if (line.contains("versionName")) {
-                versionName = line.trim().split("=")[1];
-            } else if (line.contains("versionCode")) {
-                versionCode = line.trim().split(" ")[0].split("=")[1];
+        String[] version = {"", ""};
+        this.adb.shell(Lists.newArrayList("dumpsys", "package", packageName), line -> {
+            LOG.debug("{}", line);
+            String l = line.toString();
+            if (l.contains("versionName")) {
+                version[0] = l.trim().split("=")[1];
+            } else if (l.contains("versionCode")) {
+                version[1] = l.trim().split(" ")[0].split("=")[1];
             }
-            if (!versionName.isEmpty() && !versionCode.isEmpty()) {
-                break;
-            }
-        }
-        if (versionName.isEmpty() || versionCode.isEmpty()) {
+            return version[0].isEmpty() || version[1].isEmpty();
+        });
+        if (version[0].isEmpty() || version[1].isEmpty()) {
             throw new EntityDriverException("Cannot find app version");
         }
-        return versionName + "-" + versionCode;
+        return version[0] + "-" + version[1];
     }
 
     public String getSystemLanguage() throws IOException {
-        List<String> res = this.getProp("persist.sys.language");
-        res.addAll(this.getProp("ro.product.locale.language"));
-        return res.stream().filter(s -> StringUtils.isNotBlank(s)).findFirst().get();
+        String language = getPropValue("persist.sys.language");
+        return StringUtils.isNotBlank(language) ? language : getPropValue("ro.product.locale.language");
     }
 
     public List<String> getProp(String name) throws IOException {
-        List<String> res = this.adb.shell(Lists.newArrayList("getprop", name));
+        List<String> res = this.adb.shellInSession(Lists.newArrayList("getprop", name));
         LOG.debug("{}", res);
         return res;
     }
 
+    /**
+     * Gets a property value from the cached property snapshot.
+     *
+     * @param name property name
+     *
+     * @return property value, empty if there is no such property
+     *
+     * @throws IOException if properties cannot be loaded
+     */
     public String getPropValue(String name) throws IOException {
-        List<String> res = this.getProp(name);
-        return res.stream().filter(s -> !(s.startsWith("*") && s.endsWith("*"))).findFirst().get();
+        return properties.get(name);
     }
 
     public List<String> getInstalledPackages() throws IOException {
-        List<String> res = this.adb.shell(Lists.newArrayList("pm", "list", "packages", "-f"));
-        return res.stream().map(l -> l.split("=")[1]).collect(Collectors.toList());
+        List<String> packages = new ArrayList<>();
+        this.adb.shell(Lists.newArrayList("pm", "list", "packages", "-f"), line -> {
+            String l = line.toString();
+            int i = l.lastIndexOf('=');
+            if (i >= 0) {
+                packages.add(l.substring(i + 1));
+            }
+            return true;
+        });
+        return packages;
     }
 
     public void runWithMonkey(String pkgName, int events) throws IOException {
         adb.shell(Lists.newArrayList("am", "force-stop", pkgName));
+        this.uiActionSent();
         adb.shell(Lists.newArrayList("monkey", "-v", "-p", pkgName,
             "--throttle", 200,
             "--pct-touch", 80,
@@ -159,7 +201,11 @@ class AdbDevice extends EntityDriver {
             "--kill-process-after-error",
             "--ignore-security-exceptions",
             "--ignore-crashes",
-            events));
+            events), line -> {
+                LOG.trace("{}", line);
+                return true;
+            });
+        this.uiActionSent();
     }
 
     /**
@@ -175,6 +221,18 @@ class AdbDevice extends EntityDriver {
         return this.adb.shell(Arrays.asList(new Object[]{"getevent", "-lt", device}));
     }
 
+    /**
+     * Streams event output lines, until handler returns false.
+     *
+     * @param device  such as /dev/input/event0
+     * @param handler event log line handler
+     *
+     * @throws IOException in case of IO issue
+     */
+    public void logTouchEvents(String device, Adb.LineHandler handler) throws IOException {
+        this.adb.shell(Arrays.asList(new Object[]{"getevent", "-lt", device}), handler);
+    }
+
     public String recordScreen(int seconds, int bitRate) throws IOException {
         String mp4 = "sr-" + UUID.randomUUID() + ".mp4";
         this.adb.shellAsync(Arrays.asList(new Object[]{"screenrecord", "--time-limit", seconds, IUiDevice.TMP_DIR + mp4,
@@ -242,7 +300,11 @@ class AdbDevice extends EntityDriver {
     public List<String> input(final List<Object> arguments) throws IOException {
         List<Object> args = new ArrayList<>(arguments);
         args.add(0, "input");
-        return adb.shell(args);
+        try {
+            return adb.shellInSession(args);
+        } finally {
+            this.uiActionSent();
+        }
     }
 
     /**
@@ -309,7 +371,8 @@ class AdbDevice extends EntityDriver {
      * @throws IOException in case of any issue
      */
     public void sendEvent(String device, int type, int code, int value) throws IOException {
-        this.adb.shell(Lists.newArrayList("sendevent", "" + type, "" + code, "" + value));
+        this.adb.shellInSession(Lists.newArrayList("sendevent", "" + type, "" + code, "" + value));
+        this.uiActionSent();
     }
 
     /**
@@ -361,10 +424,165 @@ class AdbDevice extends EntityDriver {
         return events;
     }
 
+    /**
+     * Starts streaming logcat of this device, with crash, ANR and native crash detectors. A detected problem is
+     * thrown by the next {@link #checkProblem()}, and interrupts the thread set by {@link #failFast(Thread)}.
+     *
+     * @return logcat streamer
+     *
+     * @throws IOException if logcat cannot be started
+     */
+    public synchronized AdbLogcat startLogcat() throws IOException {
+        if (logcat == null || !logcat.isRunning()) {
+            logcat = new AdbLogcat(adb).withDefaultDetectors().addProblemListener(p -> {
+                problem = p;
+                this.failFast(false);
+            }).start();
+        }
+        return logcat;
+    }
+
+    public synchronized void stopLogcat() {
+        if (logcat != null) {
+            logcat.close();
+        }
+    }
+
+    /**
+     * @return logcat streamer, or null if not started
+     */
+    public AdbLogcat getLogcat() {
+        return logcat;
+    }
+
+    /**
+     * Sets the thread, usually the one running current test case, to be interrupted as soon as logcat detects a
+     * problem, or device is disconnected, so it does not have to wait for next UI timeout. Calls to device in
+     * progress are failed too, see {@link #abortCalls(boolean)}, since a thread blocked reading a socket does not
+     * see interrupts.
+     *
+     * @param thread thread to interrupt, null to not interrupt any
+     */
+    public void failFast(Thread thread) {
+        this.failFastThread = thread;
+    }
+
+    private void failFast(boolean disconnected) {
+        Thread t = failFastThread;
+        if (t != null) {
+            t.interrupt();
+        }
+        if (t != null || disconnected) {
+            this.abortCalls(disconnected);
+        }
+    }
+
+    /**
+     * Called when logcat detects a problem with a fail-fast thread set, or when device is disconnected. Subclasses
+     * fail their calls to device in progress here, such as by closing sockets.
+     *
+     * @param disconnected true if device is detached or offline, false if it is still online
+     */
+    protected void abortCalls(boolean disconnected) {
+    }
+
+    /**
+     * Listens to device tracker for this device going away, when adb server is talked to directly. Adb sockets of
+     * the device are closed by {@link Adb} then.
+     */
+    private synchronized void trackDevice() {
+        AdbDeviceTracker tracker = Adb.getDeviceTracker();
+        if (tracker == null) {
+            return;
+        }
+        if (deviceListener != null) {
+            tracker.removeListener(deviceListener);
+            deviceListener = null;
+        }
+        disconnected = null;
+        String serial = adb.getSerial();
+        if (StringUtils.isEmpty(serial)) {
+            return;
+        }
+        deviceListener = (change, device) -> {
+            if (!serial.equals(device.getSerial())) {
+                return;
+            }
+            if (change != AdbDeviceTracker.Change.DETACHED && device.isOnline()) {
+                disconnected = null;
+            } else if (disconnected == null) {
+                LOG.warn("Device {} is disconnected ({})", serial, change);
+                disconnected = device;
+                this.failFast(true);
+            }
+        };
+        tracker.addListener(deviceListener);
+    }
+
+    /**
+     * Called after an action sent through adb, which may change UI, such as input, or app launch. Subclasses keeping
+     * UI state drop it here.
+     */
+    protected void uiActionSent() {
+    }
+
+    /**
+     * Throws the problem detected by logcat since last check, if there is any.
+     *
+     * @throws UIAException if app crashed, or ANR happened, or device is disconnected
+     */
+    public void checkProblem() {
+        AdbDeviceTracker.Device d = disconnected;
+        if (d != null) {
+            throw new UIAException("Device is disconnected (" + d + ")");
+        }
+        AdbLogcat.Problem p = problem;
+        if (p != null) {
+            problem = null;
+            throw new UIAException(p.toString() + " (" + p.getEntry() + ")");
+        }
+    }
+
+    /**
+     * Saves lines in logcat buffer into a file in log directory.
+     *
+     * @return log file, or null if logcat is not started
+     *
+     * @throws IOException if file cannot be written
+     */
+    public File saveLogcat() throws IOException {
+        if (logcat == null) {
+            return null;
+        }
+        File log = this.getLogPath().resolve("logcat-" + System.currentTimeMillis() + ".txt").toFile();
+        FileUtils.writeLines(log, logcat.getEntries());
+        LOG.debug("Save logcat as {}", log.getAbsolutePath());
+        return log;
+    }
+
     @Override
     public void reset() throws Exception {
     }
 
+    /**
+     * Captures screen as raw pixels, streamed from screencap through exec-out, with no PNG encoding, no temp file,
+     * and no image decoding.
+     *
+     * @param region region of screen to keep, null for whole screen
+     *
+     * @return ARGB pixels of region
+     *
+     * @throws IOException if screencap fails
+     */
+    public RawImage captureRaw(Rect region) throws IOException {
+        long start = System.currentTimeMillis();
+        try (InputStream in = adb.execOut(Lists.newArrayList("screencap"))) {
+            RawImage image = RawImage.read(in, region);
+            LOG.debug("{} in {} ms", image, System.currentTimeMillis() - start);
+            return image;
+        }
+    }
+
     public String getSerial() {
         return this.adb.getSerial();
     }
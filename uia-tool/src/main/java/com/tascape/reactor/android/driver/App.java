@@ -20,7 +20,12 @@ import com.android.uiautomator.stub.IUiDevice;
 import com.android.uiautomator.stub.IUiObject;
 import com.android.uiautomator.stub.IUiScrollable;
 import com.android.uiautomator.stub.Rect;
+import com.android.uiautomator.stub.UiScript;
+import com.android.uiautomator.stub.UiScriptResult;
+import com.android.uiautomator.stub.UiSelector;
 import com.google.common.collect.Lists;
+import com.tascape.reactor.android.comm.Adb;
+import com.tascape.reactor.android.comm.AdbShell;
 import com.tascape.reactor.android.model.UIANode;
 import com.tascape.reactor.android.model.WindowHierarchy;
 import com.tascape.reactor.Utils;
@@ -39,11 +44,9 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import javax.imageio.ImageIO;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -135,40 +138,50 @@ public abstract class App extends EntityDriver {
         if (StringUtils.isBlank(this.getPackageName())) {
             return;
         }
+        device.waitForIdle();
+        Adb.Batch batch = device.getAdb().batch();
         if (killExisting) {
-            device.getAdb().shell(Lists.newArrayList("am", "force-stop", this.getPackageName()));
+            batch.add("am", "force-stop", this.getPackageName());
+        }
+        List<AdbShell.Result> results;
+        try {
+            results = batch.add("monkey", "-p", this.getPackageName(), "1").run();
+        } finally {
+            device.uiActionSent();
+        }
+        AdbShell.Result monkey = results.get(results.size() - 1);
+        if (monkey.getExitCode() != 0) {
+            LOG.warn("Cannot launch {}, {}", this.getPackageName(), monkey.getLines());
         }
-        device.waitForIdle();
-        device.getAdb().shell(Lists.newArrayList("monkey", "-p", this.getPackageName(), "1"));
         Utils.sleep(this.getLaunchDelayMillis(), "wait for app to launch");
     }
 
     public void launchFromUi(boolean killExisting) throws IOException, InterruptedException {
         if (killExisting) {
             device.getAdb().shell(Lists.newArrayList("am", "force-stop", this.getPackageName()));
+            device.uiActionSent();
         }
         device.backToHome();
         device.waitForIdle();
-        if (device.descriptionExists("Apps")) {
-            device.clickByDescription("Apps");
-        }
 
         String name = getName();
-        if (!device.textExists(name)) {
-            int w = device.getScreenDimension().width;
-            int h = device.getScreenDimension().height;
-            device.dragHorizontally(w * NUMBER_OF_HOME_PAGE);
-            for (int i = 0; i < NUMBER_OF_HOME_PAGE; i++) {
-                if (device.textExists(name)) {
-                    break;
-                } else {
-                    LOG.debug("swipe to next screen");
-                    device.swipe(w / 2, h / 2, 0, h / 2, 5);
-                    device.takeDeviceScreenshot();
-                }
-            }
+        UiSelector apps = new UiSelector().description("Apps");
+        UiSelector app = new UiSelector().text(name);
+        UiScript.Step notFound = UiScript.Step.not(UiScript.Step.exists(app));
+        int w = device.getScreenDimension().width;
+        int h = device.getScreenDimension().height;
+        int drag = w * NUMBER_OF_HOME_PAGE;
+        UiScriptResult result = device.runScript(new UiScript()
+            .when(UiScript.Step.exists(apps), new UiScript().click(apps))
+            .when(notFound, new UiScript()
+                .swipe(w / 2, h / 2, w / 2 + drag, h / 2, Math.abs(drag / 20 + 5)).waitForIdle()
+                .whileTrue(notFound, NUMBER_OF_HOME_PAGE, new UiScript()
+                    .swipe(w / 2, h / 2, 0, h / 2, 5).waitForIdle()))
+            .click(app));
+        if (!result.isOk()) {
+            device.takeDeviceScreenshot();
+            LOG.warn("Cannot launch app {} from UI - {}", name, result);
         }
-        device.clickByText(name);
         Utils.sleep(this.getLaunchDelayMillis(), "wait for app to launch");
         device.waitForIdle();
     }
@@ -305,8 +318,7 @@ public abstract class App extends EntityDriver {
                                 jtaJson.append(wh.root.toJson().toString(2));
                                 jtaJson.append("\n");
 
-                                File png = device.takeDeviceScreenshot();
-                                BufferedImage image = ImageIO.read(png);
+                                BufferedImage image = device.captureScreen(null, 1.0f);
 
                                 int w = device.getDisplayWidth();
                                 int h = device.getDisplayHeight();
@@ -326,7 +338,10 @@ public abstract class App extends EntityDriver {
                                 jLabel.addMouseListener(new MouseAdapter() {
                                     @Override
                                     public void mouseClicked(MouseEvent e) {
-                                        LOG.debug("clicked at {},{}", e.getPoint().getX(), e.getPoint().getY());
+                                        UIANode node = wh.findDeepestAt(e.getPoint().x, e.getPoint().y);
+                                        LOG.debug("clicked at {},{} on {}", e.getPoint().getX(), e.getPoint().getY(),
+                                            node == null ? "nothing" : node.getKlass() + " " + node.getResourceId()
+                                                + " '" + node.getText() + "'");
                                         if (jcbTap.isSelected()) {
                                             device.click(e.getPoint().x, e.getPoint().y);
                                             device.waitForIdle();
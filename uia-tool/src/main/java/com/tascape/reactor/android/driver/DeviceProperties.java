@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.driver;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.tascape.reactor.SystemConfiguration;
+import com.tascape.reactor.android.comm.Adb;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Snapshot of device system properties, loaded with one 'getprop' dump, instead of one getprop per property.
+ *
+ * Read-only properties (ro.*) do not change until reboot, so they are pinned once loaded. Other properties are
+ * served from the snapshot until it is older than a time-to-live, and then the whole dump is loaded again.
+ *
+ * @author linsong wang
+ */
+public final class DeviceProperties {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceProperties.class);
+
+    public static final String SYSPROP_PROP_TTL = "reactor.comm.android.PROP_TTL_MILLIS";
+
+    public static final long DEFAULT_TTL_MILLIS = 5000;
+
+    private static final String PINNED_PREFIX = "ro.";
+
+    private final Adb adb;
+
+    private final long ttlMillis;
+
+    private volatile Map<String, String> pinned = ImmutableMap.of();
+
+    private volatile Map<String, String> snapshot;
+
+    private volatile long loadedAt;
+
+    public DeviceProperties(Adb adb) {
+        this(adb, getDefaultTtl());
+    }
+
+    /**
+     * @param adb       adb of the device
+     * @param ttlMillis how long non-pinned properties are served from snapshot
+     */
+    public DeviceProperties(Adb adb, long ttlMillis) {
+        this.adb = adb;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Gets the value of a property.
+     *
+     * @param name property name, such as ro.product.model
+     *
+     * @return property value, empty if there is no such property, same as getprop
+     *
+     * @throws IOException if properties cannot be loaded
+     */
+    public String get(String name) throws IOException {
+        if (name.startsWith(PINNED_PREFIX)) {
+            String value = pinned.get(name);
+            if (value != null) {
+                return value;
+            }
+        }
+        String value = getAll().get(name);
+        return value == null ? "" : value;
+    }
+
+    /**
+     * @return all properties, loaded again if snapshot is older than time-to-live
+     *
+     * @throws IOException if properties cannot be loaded
+     */
+    public Map<String, String> getAll() throws IOException {
+        Map<String, String> props = snapshot;
+        if (props == null || System.currentTimeMillis() - loadedAt > ttlMillis) {
+            props = load();
+        }
+        return props;
+    }
+
+    /**
+     * Drops the snapshot and pinned properties, such as after reboot, or setprop.
+     */
+    public synchronized void invalidate() {
+        pinned = ImmutableMap.of();
+        snapshot = null;
+    }
+
+    private synchronized Map<String, String> load() throws IOException {
+        if (snapshot != null && System.currentTimeMillis() - loadedAt <= ttlMillis) {
+            return snapshot;
+        }
+        Map<String, String> props = parse(adb.shellInSession(Lists.newArrayList("getprop")));
+        if (pinned.isEmpty()) {
+            ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+            props.entrySet().stream().filter(e -> e.getKey().startsWith(PINNED_PREFIX)).forEach(builder::put);
+            pinned = builder.build();
+        }
+        snapshot = props;
+        loadedAt = System.currentTimeMillis();
+        LOG.debug("loaded {} properties of '{}'", props.size(), adb.getSerial());
+        return props;
+    }
+
+    /**
+     * Parses getprop dump, each property is '[name]: [value]', and a value may span multiple lines.
+     */
+    static Map<String, String> parse(List<String> lines) {
+        Map<String, String> props = new LinkedHashMap<>();
+        String name = null;
+        StringBuilder value = new StringBuilder();
+        for (String line : lines) {
+            if (name == null) {
+                int i = line.indexOf("]: [");
+                if (!line.startsWith("[") || i < 0) {
+                    continue;
+                }
+                name = line.substring(1, i);
+                value.setLength(0);
+                line = line.substring(i + 4);
+            } else {
+                value.append('\n');
+            }
+            if (line.endsWith("]")) {
+                value.append(line, 0, line.length() - 1);
+                props.put(name, value.toString());
+                name = null;
+            } else {
+                value.append(line);
+            }
+        }
+        return ImmutableMap.copyOf(props);
+    }
+
+    private static long getDefaultTtl() {
+        String ttl = SystemConfiguration.getInstance().getProperty(SYSPROP_PROP_TTL);
+        return StringUtils.isBlank(ttl) ? DEFAULT_TTL_MILLIS : Long.parseLong(ttl.trim());
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.driver;
+
+import com.android.uiautomator.stub.Rect;
+import java.awt.image.BufferedImage;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A region of screen as ARGB pixels, read from raw screencap output, with no PNG encoding on device and no decoding
+ * on host, see {@link AdbDevice#captureRaw(Rect)}.
+ *
+ * Raw screencap output is a header of width, height and pixel format, as little-endian ints, plus a color space int
+ * on newer Android versions, and then the pixel rows.
+ *
+ * @author linsong wang
+ */
+public class RawImage {
+
+    public static final int FORMAT_RGBA_8888 = 1;
+
+    public static final int FORMAT_RGBX_8888 = 2;
+
+    public static final int FORMAT_RGB_888 = 3;
+
+    public static final int FORMAT_RGB_565 = 4;
+
+    public static final int FORMAT_BGRA_8888 = 5;
+
+    private final int screenWidth;
+
+    private final int screenHeight;
+
+    private final int x;
+
+    private final int y;
+
+    private final int width;
+
+    private final int height;
+
+    private final int[] pixels;
+
+    private RawImage(int screenWidth, int screenHeight, int x, int y, int width, int height, int[] pixels) {
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Reads raw screencap output, and keeps pixels of a region.
+     *
+     * @param in     raw screencap output
+     * @param region region of screen to keep, clipped to screen, null for whole screen
+     *
+     * @return image of region
+     *
+     * @throws IOException if output is truncated, or of an unknown format
+     */
+    public static RawImage read(InputStream in, Rect region) throws IOException {
+        byte[] header = new byte[12];
+        readFully(in, header, header.length);
+        int w = intLE(header, 0);
+        int h = intLE(header, 4);
+        int format = intLE(header, 8);
+        int bpp = bytesPerPixel(format);
+        if (w <= 0 || h <= 0) {
+            throw new IOException("Invalid screencap size " + w + "x" + h);
+        }
+
+        // room for the color space int of newer versions
+        int frame = w * h * bpp;
+        byte[] data = new byte[frame + 4];
+        int n = readFully(in, data, data.length);
+        int offset;
+        if (n == frame + 4) {
+            offset = 4;
+        } else if (n == frame) {
+            offset = 0;
+        } else {
+            throw new IOException("Unexpected screencap size " + n + ", " + w + "x" + h + " format " + format);
+        }
+
+        int left = 0;
+        int top = 0;
+        int right = w;
+        int bottom = h;
+        if (region != null) {
+            left = Math.max(0, Math.min(region.left, w));
+            top = Math.max(0, Math.min(region.top, h));
+            right = Math.max(left, Math.min(region.right, w));
+            bottom = Math.max(top, Math.min(region.bottom, h));
+        }
+        int rw = right - left;
+        int rh = bottom - top;
+        int[] pixels = new int[rw * rh];
+        for (int row = 0; row < rh; row++) {
+            int p = offset + ((top + row) * w + left) * bpp;
+            int q = row * rw;
+            for (int col = 0; col < rw; col++, p += bpp) {
+                pixels[q + col] = argb(data, p, format);
+            }
+        }
+        return new RawImage(w, h, left, top, rw, rh, pixels);
+    }
+
+    public int getScreenWidth() {
+        return screenWidth;
+    }
+
+    public int getScreenHeight() {
+        return screenHeight;
+    }
+
+    /**
+     * @return region of screen kept
+     */
+    public Rect getRegion() {
+        return new Rect(x, y, x + width, y + height);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return ARGB pixels of region, row by row, not a copy
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @param screenX x on screen
+     * @param screenY y on screen
+     *
+     * @return ARGB pixel
+     *
+     * @throws IndexOutOfBoundsException if point is not in region
+     */
+    public int getPixel(int screenX, int screenY) {
+        int px = screenX - x;
+        int py = screenY - y;
+        if (px < 0 || py < 0 || px >= width || py >= height) {
+            throw new IndexOutOfBoundsException(screenX + "," + screenY + " is not in " + getRegion());
+        }
+        return pixels[py * width + px];
+    }
+
+    /**
+     * Counts pixels that differ from another image of the same size by more than a tolerance in any color channel.
+     *
+     * @param other     image to compare
+     * @param tolerance maximal difference of a color channel, 0 for exact match
+     *
+     * @return number of different pixels, or -1 if sizes differ
+     */
+    public int countDifferentPixels(RawImage other, int tolerance) {
+        if (other.width != width || other.height != height) {
+            return -1;
+        }
+        int count = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            int a = pixels[i];
+            int b = other.pixels[i];
+            if (a != b && (Math.abs((a >> 16 & 0xff) - (b >> 16 & 0xff)) > tolerance
+                || Math.abs((a >> 8 & 0xff) - (b >> 8 & 0xff)) > tolerance
+                || Math.abs((a & 0xff) - (b & 0xff)) > tolerance)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public BufferedImage toBufferedImage() {
+        BufferedImage image = new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        return image;
+    }
+
+    @Override
+    public String toString() {
+        return "RawImage[" + getRegion() + " of " + screenWidth + "x" + screenHeight + "]";
+    }
+
+    private static int bytesPerPixel(int format) throws IOException {
+        switch (format) {
+            case FORMAT_RGBA_8888:
+            case FORMAT_RGBX_8888:
+            case FORMAT_BGRA_8888:
+                return 4;
+            case FORMAT_RGB_888:
+                return 3;
+            case FORMAT_RGB_565:
+                return 2;
+            default:
+                throw new IOException("Unknown screencap pixel format " + format);
+        }
+    }
+
+    private static int argb(byte[] data, int p, int format) {
+        switch (format) {
+            case FORMAT_RGBA_8888:
+                return (data[p + 3] & 0xff) << 24 | (data[p] & 0xff) << 16 | (data[p + 1] & 0xff) << 8
+                    | (data[p + 2] & 0xff);
+            case FORMAT_BGRA_8888:
+                return (data[p + 3] & 0xff) << 24 | (data[p + 2] & 0xff) << 16 | (data[p + 1] & 0xff) << 8
+                    | (data[p] & 0xff);
+            case FORMAT_RGB_565: {
+                int v = (data[p] & 0xff) | (data[p + 1] & 0xff) << 8;
+                int r = v >> 11 & 0x1f;
+                int g = v >> 5 & 0x3f;
+                int b = v & 0x1f;
+                return 0xff000000 | (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8 | (b << 3 | b >> 2);
+            }
+            default:
+                return 0xff000000 | (data[p] & 0xff) << 16 | (data[p + 1] & 0xff) << 8 | (data[p + 2] & 0xff);
+        }
+    }
+
+    private static int intLE(byte[] b, int p) {
+        return (b[p] & 0xff) | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16 | (b[p + 3] & 0xff) << 24;
+    }
+
+    /**
+     * @return number of bytes read, less than length only at end of stream
+     */
+    private static int readFully(InputStream in, byte[] buf, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            int r = in.read(buf, n, length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        if (n == 0 && length > 0) {
+            throw new EOFException("No screencap output");
+        }
+        return n;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.driver;
+
+import com.android.uiautomator.stub.Rect;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.imageio.ImageIO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Continuous screen capture in memory, see {@link UiAutomatorDevice#streamScreenshots}. Capture and decoding run on
+ * two threads, so the next frame is taken on device while the last one is decoded and consumed on host. When the
+ * consumer falls behind, the oldest waiting frame is dropped.
+ *
+ * @author linsong wang
+ */
+public class ScreenshotStream implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ScreenshotStream.class);
+
+    private final UiAutomatorDevice device;
+
+    private final Rect crop;
+
+    private final float scale;
+
+    private final int quality;
+
+    private final long interval;
+
+    private final Consumer<BufferedImage> consumer;
+
+    private final BlockingQueue<byte[]> frames = new ArrayBlockingQueue<>(2);
+
+    private final AtomicLong captured = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread capture;
+
+    private final Thread decode;
+
+    private volatile boolean running = true;
+
+    ScreenshotStream(UiAutomatorDevice device, Rect crop, float scale, int quality, long interval,
+        Consumer<BufferedImage> consumer) {
+        this.device = device;
+        this.crop = crop;
+        this.scale = scale;
+        this.quality = quality;
+        this.interval = interval;
+        this.consumer = consumer;
+        this.capture = new Thread(this::capture, "screenshot-capture");
+        this.decode = new Thread(this::decode, "screenshot-decode");
+        capture.setDaemon(true);
+        decode.setDaemon(true);
+        capture.start();
+        decode.start();
+    }
+
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        capture.interrupt();
+        decode.interrupt();
+        LOG.debug("{} screenshots captured, {} dropped", captured.get(), dropped.get());
+    }
+
+    private void capture() {
+        try {
+            while (running) {
+                long start = System.currentTimeMillis();
+                byte[] jpeg = device.getScreenshot(crop, scale, false, quality);
+                captured.incrementAndGet();
+                while (!frames.offer(jpeg)) {
+                    if (frames.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                long wait = interval - (System.currentTimeMillis() - start);
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.trace("capture interrupted");
+        } catch (RuntimeException ex) {
+            LOG.warn("Cannot capture screenshot - {}", ex.getMessage());
+            this.close();
+        }
+    }
+
+    private void decode() {
+        try {
+            while (running) {
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(frames.take()));
+                if (image != null) {
+                    consumer.accept(image);
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.trace("decode interrupted");
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Cannot decode screenshot - {}", ex.getMessage());
+            this.close();
+        }
+    }
+}
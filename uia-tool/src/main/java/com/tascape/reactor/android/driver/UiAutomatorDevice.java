@@ -15,25 +15,48 @@
  */
 package com.tascape.reactor.android.driver;
 
+import com.android.uiautomator.stub.HierarchyDelta;
 import com.android.uiautomator.stub.IUiCollection;
 import com.android.uiautomator.stub.IUiDevice;
 import com.android.uiautomator.stub.IUiObject;
+import com.android.uiautomator.stub.IUiObjectRegistry;
 import com.android.uiautomator.stub.IUiScrollable;
+import com.android.uiautomator.stub.IdleStats;
+import com.android.uiautomator.stub.IdleSync;
 import com.android.uiautomator.stub.Point;
+import com.android.uiautomator.stub.Rect;
+import com.android.uiautomator.stub.RpcClient;
+import com.android.uiautomator.stub.UiEvent;
+import com.android.uiautomator.stub.UiEventClient;
+import com.android.uiautomator.stub.UiEventListener;
+import com.android.uiautomator.stub.UiObjectNotFoundException;
+import com.android.uiautomator.stub.UiObjectResult;
+import com.android.uiautomator.stub.UiScript;
+import com.android.uiautomator.stub.UiScriptResult;
+import com.android.uiautomator.stub.UiScriptRunner;
 import com.android.uiautomator.stub.UiSelector;
 import com.android.uiautomator.stub.UiWatcher;
 import com.google.common.collect.Lists;
 import com.tascape.reactor.android.comm.Adb;
+import com.tascape.reactor.android.comm.AdbShell;
 import com.tascape.reactor.android.model.UIA;
 import com.tascape.reactor.android.model.UIAException;
 import com.tascape.reactor.android.model.WindowHierarchy;
+import com.tascape.reactor.SystemConfiguration;
 import com.tascape.reactor.Utils;
 import com.tascape.reactor.exception.EntityCommunicationException;
 import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -41,13 +64,24 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import javax.imageio.ImageIO;
 import net.sf.lipermi.exception.LipeRMIException;
 import net.sf.lipermi.handler.CallHandler;
 import net.sf.lipermi.net.Client;
 import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -72,8 +106,66 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
 
     public static final long WAIT_FOR_EXISTS = 30000;
 
+    public static final int SCREENSHOT_QUALITY = 80;
+
+    /**
+     * Set to false to call uiautomator stubs with LipeRMI only, instead of the binary rpc.
+     */
+    public static final String SYSPROP_BINARY_RPC = "reactor.android.UIA_BINARY_RPC";
+
+    private static final boolean BINARY_RPC = !"false".equalsIgnoreCase(
+        SystemConfiguration.getInstance().getProperty(SYSPROP_BINARY_RPC));
+
+    /**
+     * Number of binary rpc connections to device, which is the number of calls at the same time, default is 4.
+     * Calls run at the same time on device, only the input they inject is serialized.
+     */
+    public static final String SYSPROP_RPC_CHANNELS = "reactor.android.UIA_RPC_CHANNELS";
+
+    public static final int DEFAULT_RPC_CHANNELS = 4;
+
+    /**
+     * How actions wait for UI idle on device, one of none, device, window_update, and adaptive, default is device.
+     * Needs binary rpc. See {@link IdleSync}.
+     */
+    public static final String SYSPROP_IDLE_SYNC = "reactor.android.UIA_IDLE_SYNC";
+
+    /**
+     * Maximal time in milliseconds that actions wait for UI idle on device, default is 10 seconds.
+     */
+    public static final String SYSPROP_IDLE_TIMEOUT = "reactor.android.UIA_IDLE_TIMEOUT";
+
+    /**
+     * Set to false to not receive accessibility events pushed from device. Events need binary rpc.
+     */
+    public static final String SYSPROP_UI_EVENTS = "reactor.android.UIA_UI_EVENTS";
+
+    private static final boolean UI_EVENTS = !"false".equalsIgnoreCase(
+        SystemConfiguration.getInstance().getProperty(SYSPROP_UI_EVENTS));
+
+    /**
+     * Set to true to save each window hierarchy loaded in memory to log directory, in background.
+     */
+    public static final String SYSPROP_SAVE_HIERARCHY = "reactor.android.UIA_SAVE_HIERARCHY";
+
+    private static final boolean SAVE_HIERARCHY = "true".equalsIgnoreCase(
+        SystemConfiguration.getInstance().getProperty(SYSPROP_SAVE_HIERARCHY));
+
+    /**
+     * Set to false to always transfer full window hierarchy, instead of changes since the one loaded last. Changes
+     * need binary rpc, and are not saved by {@link #SYSPROP_SAVE_HIERARCHY}.
+     */
+    public static final String SYSPROP_HIERARCHY_DELTA = "reactor.android.UIA_HIERARCHY_DELTA";
+
+    private static final boolean HIERARCHY_DELTA = !"false".equalsIgnoreCase(
+        SystemConfiguration.getInstance().getProperty(SYSPROP_HIERARCHY_DELTA));
+
     private static final AtomicInteger LOCAL_RMI_PORT = new AtomicInteger(IUiDevice.UIAUTOMATOR_RMI_PORT + 10000);
 
+    private static final AtomicInteger LOCAL_RPC_PORT = new AtomicInteger(IUiDevice.UIAUTOMATOR_RPC_PORT + 20000);
+
+    private static final AtomicInteger LOCAL_EVENT_PORT = new AtomicInteger(IUiDevice.UIAUTOMATOR_EVENT_PORT + 30000);
+
     private static final List<UiAutomatorDevice> DEVICES = new ArrayList<>();
 
     static {
@@ -96,22 +188,35 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
         }
     }
 
+    /**
+     * Gets all online devices. Devices attached since last call are added, and devices detached are dropped, based
+     * on the live device list of adb server. Devices already in the list are the same instances as before.
+     *
+     * @return online devices
+     */
     public static synchronized List<UiAutomatorDevice> getAllDevices() {
-        if (DEVICES.isEmpty()) {
-            Adb.getSerialProduct().entrySet().stream().forEach((serial) -> {
-                try {
-                    Adb adb = new Adb(serial.getKey());
-                    UiAutomatorDevice device = new UiAutomatorDevice();
-                    device.setAdb(adb);
-                    device.setProductDetail(serial.getValue());
-                    DEVICES.add(device);
-                } catch (IOException | EntityCommunicationException ex) {
-                    LOG.warn("Cannnot debug device {}", serial, ex);
-                }
-            });
-            if (DEVICES.isEmpty()) {
-                throw new UIAException("Cannot debug any attached device");
+        Map<String, String> serials = Adb.getSerialProduct();
+        DEVICES.removeIf(device -> {
+            boolean detached = !serials.containsKey(device.getAdb().getSerial());
+            if (detached) {
+                LOG.info("Device {} is detached", device.getAdb().getSerial());
+            }
+            return detached;
+        });
+        Set<String> known = DEVICES.stream().map(device -> device.getAdb().getSerial()).collect(Collectors.toSet());
+        serials.entrySet().stream().filter(serial -> !known.contains(serial.getKey())).forEach((serial) -> {
+            try {
+                Adb adb = new Adb(serial.getKey());
+                UiAutomatorDevice device = new UiAutomatorDevice();
+                device.setAdb(adb);
+                device.setProductDetail(serial.getValue());
+                DEVICES.add(device);
+            } catch (IOException | EntityCommunicationException ex) {
+                LOG.warn("Cannnot debug device {}", serial, ex);
             }
+        });
+        if (DEVICES.isEmpty()) {
+            throw new UIAException("Cannot debug any attached device");
         }
         return DEVICES;
     }
@@ -120,7 +225,38 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
 
     private ExecuteWatchdog uiautomatorDog;
 
-    private Client client;
+    private volatile Client client;
+
+    private volatile RpcClient rpcClient;
+
+    private UiEventClient uiEventClient;
+
+    /**
+     * Window hierarchy loaded last, valid till next action or window or content change event.
+     */
+    private volatile WindowHierarchy hierarchy;
+
+    private volatile boolean hierarchyStale = true;
+
+    private final Object deltaLock = new Object();
+
+    private long deltaSession;
+
+    private long deltaVersion;
+
+    /**
+     * Nodes of window hierarchy by path, of delta version, see {@link HierarchyDelta}.
+     */
+    private final SortedMap<String, String[]> deltaNodes = new TreeMap<>();
+
+    private WindowHierarchy deltaHierarchy;
+
+    /**
+     * True once the binary rpc server on device is connected, see {@link #setupBinaryRpc()}. Only the uia server with
+     * binary rpc has one-shot selector operations such as exists(UiSelector), scripts, in-memory screenshots, idle
+     * sync, partial and delta hierarchy dumps, and the UI object registry, older ones are driven the LipeRMI way.
+     */
+    private boolean binaryRpc;
 
     private IUiDevice uiDevice;
 
@@ -130,6 +266,8 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
 
     private IUiScrollable uiScrollable;
 
+    private IUiObjectRegistry uiObjectRegistry;
+
     private final Set<App> apps = new HashSet<>();
 
     private final Dimension screenDimension = new Dimension(0, 0);
@@ -144,6 +282,9 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
         this.uiObject = IUiObject.class.cast(client.getGlobal(IUiObject.class));
         this.uiCollection = IUiCollection.class.cast(client.getGlobal(IUiCollection.class));
         this.uiScrollable = IUiScrollable.class.cast(client.getGlobal(IUiScrollable.class));
+        if (BINARY_RPC) {
+            this.setupBinaryRpc();
+        }
         LOG.debug("Device product name '{}'", this.uiDevice.getProductName());
 
         screenDimension.width = uiDevice.getDisplayWidth();
@@ -162,7 +303,15 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
         if (uiautomatorDog != null) {
             uiautomatorDog.destroyProcess();
         }
+        this.stopLogcat();
         try {
+            if (uiEventClient != null) {
+                uiEventClient.close();
+            }
+            if (rpcClient != null) {
+                LOG.debug("{}", this.getIdleStats());
+                rpcClient.close();
+            }
             client.close();
         } catch (IOException ex) {
             LOG.warn("{}", ex.getMessage());
@@ -204,6 +353,18 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
         return uiScrollable;
     }
 
+    /**
+     * Opens a session of UI objects by handle, for one host thread. Needs a uia server with binary rpc.
+     *
+     * @return new session, close it when done
+     */
+    public UiObjectSession openUiObjectSession() {
+        if (uiObjectRegistry == null) {
+            throw new UIAException("uia server does not support object handles");
+        }
+        return new UiObjectSession(uiObjectRegistry);
+    }
+
     public UiAutomatorDevice install(String apkPath) throws IOException, InterruptedException {
         this.backToHome();
         ExecuteWatchdog dog = this.getAdb().adbAsync(Lists.newArrayList("install", "-rg", apkPath), 60000);
@@ -213,16 +374,12 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
         String pkg = uiDevice.getCurrentPackageName();
         if (pkg.equals("com.android.packageinstaller")) {
             Utils.sleep(10000, "wait for allow");
-            if (this.resourceIdExists("android:id/button1")) {
-                this.clickByResourceId("android:id/button1");
-            }
+            this.clickIfExists(new UiSelector().resourceId("android:id/button1"));
         }
         pkg = uiDevice.getCurrentPackageName();
         if (pkg.equals("com.android.packageinstaller")) {
             Utils.sleep(10000, "wait for OK");
-            if (this.resourceIdExists("com.android.packageinstaller:id/ok_button")) {
-                this.clickByResourceId("com.android.packageinstaller:id/ok_button");
-            }
+            this.clickIfExists(new UiSelector().resourceId("com.android.packageinstaller:id/ok_button"));
         }
         if (dog.isWatching()) {
             dog.killedProcess();
@@ -305,104 +462,94 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
 
     public boolean resourceIdExists(String resouceId) {
         LOG.debug("look for {}", resouceId);
-        uiObject.useUiObjectSelector(new UiSelector().resourceId(resouceId));
-        return uiObject.exists();
+        return exists(new UiSelector().resourceId(resouceId));
     }
 
     public boolean textExists(String text) {
         LOG.debug("look for {}", text);
-        uiObject.useUiObjectSelector(new UiSelector().text(text));
-        return uiObject.exists();
+        return exists(new UiSelector().text(text));
     }
 
     public boolean descriptionExists(String text) {
         LOG.debug("look for {}", text);
-        uiObject.useUiObjectSelector(new UiSelector().description(text));
-        return uiObject.exists();
+        return exists(new UiSelector().description(text));
     }
 
     public boolean waitForResourceId(String resouceId) {
         LOG.debug("wait {} for {} ms", resouceId, WAIT_FOR_EXISTS);
-        uiObject.useUiObjectSelector(new UiSelector().resourceId(resouceId));
-        uiObject.waitForExists(WAIT_FOR_EXISTS);
-        return uiObject.exists();
+        return waitForExists(new UiSelector().resourceId(resouceId), WAIT_FOR_EXISTS);
     }
 
     public boolean waitForText(String text) {
         LOG.debug("wait {} for {} ms", text, WAIT_FOR_EXISTS);
-        uiObject.useUiObjectSelector(new UiSelector().text(text));
-        uiObject.waitForExists(WAIT_FOR_EXISTS);
-        return uiObject.exists();
+        return waitForExists(new UiSelector().text(text), WAIT_FOR_EXISTS);
     }
 
     public boolean waitForTextContains(String text) {
         LOG.debug("wait {} for {} ms", text, WAIT_FOR_EXISTS);
-        uiObject.useUiObjectSelector(new UiSelector().textContains(text));
-        uiObject.waitForExists(WAIT_FOR_EXISTS);
-        return uiObject.exists();
+        return waitForExists(new UiSelector().textContains(text), WAIT_FOR_EXISTS);
     }
 
     public void clickByResourceId(String resouceId) {
         LOG.debug("click {}", resouceId);
-        uiObject.useUiObjectSelector(new UiSelector().resourceId(resouceId));
-        uiObject.click();
-        uiDevice.waitForIdle();
+        click(new UiSelector().resourceId(resouceId));
     }
 
     public UiAutomatorDevice clickByText(String text) {
         LOG.debug("click {}", text);
-        uiObject.useUiObjectSelector(new UiSelector().text(text));
-        uiObject.click();
-        uiDevice.waitForIdle();
+        click(new UiSelector().text(text));
         return this;
     }
 
     public UiAutomatorDevice clickByTextContains(String text) {
         LOG.debug("click {}", text);
-        uiObject.useUiObjectSelector(new UiSelector().textContains(text));
-        uiObject.click();
-        uiDevice.waitForIdle();
+        click(new UiSelector().textContains(text));
         return this;
     }
 
     public UiAutomatorDevice clickByDescription(String text) {
         LOG.debug("click {}", text);
-        uiObject.useUiObjectSelector(new UiSelector().description(text));
-        uiObject.click();
-        uiDevice.waitForIdle();
+        click(new UiSelector().description(text));
         return this;
     }
 
     public UiAutomatorDevice clearTextByResourceId(String resouceId) {
         LOG.debug("clear {}", resouceId);
-        uiObject.useUiObjectSelector(new UiSelector().resourceId(resouceId));
-        uiObject.clearTextField();
-        String text = uiObject.getText();
-        if (text.isEmpty()) {
+        UiSelector selector = new UiSelector().resourceId(resouceId);
+        String text = this.runScript(new UiScript().failFast(true).clearText(selector).getText(selector))
+            .getLastValue();
+        if (text == null || text.isEmpty()) {
             return this;
         }
-        uiObject.clickBottomRight();
-        for (int i = 0; i < text.length(); i++) {
-            uiDevice.pressDPadRight();
-        }
-        for (int i = 0; i < text.length(); i++) {
-            uiDevice.pressDelete();
-        }
+        this.runScript(new UiScript()
+            .clickBottomRight(selector)
+            .repeat(text.length(), new UiScript().pressKey(UiScript.KEYCODE_DPAD_RIGHT))
+            .repeat(text.length(), new UiScript().pressKey(UiScript.KEYCODE_DEL)));
         return this;
     }
 
     public UiAutomatorDevice setTextByResourceId(String resouceId, String text) {
         LOG.debug("type {} into {}", text, resouceId);
-        uiObject.useUiObjectSelector(new UiSelector().resourceId(resouceId));
-        uiObject.setText(text);
-        uiObject.click();
+        UiSelector selector = new UiSelector().resourceId(resouceId);
+        if (binaryRpc) {
+            uiObject.setText(selector, text);
+            uiObject.click(selector);
+        } else {
+            uiObject.useUiObjectSelector(selector);
+            uiObject.setText(text);
+            uiObject.click();
+        }
         this.back();
         return this;
     }
 
     public String getTextByResourceId(String resouceId) {
+        UiSelector selector = new UiSelector().resourceId(resouceId);
+        if (binaryRpc) {
+            return uiObject.getText(selector).getString();
+        }
         if (resourceIdExists(resouceId)) {
-            uiObject.useUiObjectSelector(new UiSelector().resourceId(resouceId));
+            uiObject.useUiObjectSelector(selector);
             return uiObject.getText();
         }
         return null;
@@ -422,6 +569,27 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
         }
     }
 
+    /**
+     * Gets window hierarchy, the one loaded last if there has been no action sent, through stubs or adb, such as
+     * input, or app launch, and no window or content change event, since, otherwise loads a new one. Without events
+     * from device, it always loads.
+     *
+     * @return UI view hierarchy node tree
+     *
+     * @throws Exception cannot dump window hierarchy
+     */
+    public WindowHierarchy getWindowHierarchy() throws Exception {
+        WindowHierarchy wh = this.hierarchy;
+        if (wh != null && !hierarchyStale && this.isUiEventsConnected()) {
+            LOG.debug("Use cached WindowHierarchy");
+            return wh;
+        }
+        hierarchyStale = false;
+        wh = this.loadWindowHierarchy();
+        this.hierarchy = wh;
+        return wh;
+    }
+
     /**
      * Loads window hierarchy as an in-memory node tree.
      *
@@ -438,6 +606,31 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
         }
     }
 
+    /**
+     * Loads part of window hierarchy, dumped on device with the object of a selector as root node. Needs binary rpc.
+     *
+     * @param selector    selector of root object, null for root of window
+     * @param maxDepth    levels of descendants to load, 0 for root object only, negative for all
+     * @param attributes  names of attributes to load, such as text and bounds, null for all; index and class are
+     *                    always loaded
+     * @param visibleOnly true to skip descendants not visible to user
+     *
+     * @return UI view hierarchy node tree of the object
+     *
+     * @throws UIAException if uia server does not support partial window hierarchy
+     * @throws Exception    if there is no such object, or cannot dump window hierarchy
+     */
+    public WindowHierarchy loadWindowHierarchy(UiSelector selector, int maxDepth, String[] attributes,
+        boolean visibleOnly) throws Exception {
+        if (!binaryRpc) {
+            throw new UIAException("uia server does not support partial window hierarchy");
+        }
+        byte[] gz = uiDevice.dumpWindowHierarchy(selector, maxDepth, attributes, visibleOnly, true);
+        byte[] bytes = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gz)));
+        LOG.debug("Transfer partial WindowHierarchy, {} bytes, {} compressed", bytes.length, gz.length);
+        return UIA.parseHierarchy(new ByteArrayInputStream(bytes), this);
+    }
+
     @Override
     public void clearLastTraversedText() {
         this.uiDevice.clearLastTraversedText();
@@ -447,7 +640,7 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     public boolean click(int x, int y) {
         LOG.debug("click {}, {}", x, y);
         boolean ok = this.uiDevice.click(x, y);
-        this.waitForIdle();
+        this.checkProblem();
         return ok;
     }
 
@@ -456,6 +649,22 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
         this.uiDevice.dumpWindowHierarchy(fileName);
     }
 
+    @Override
+    public byte[] dumpWindowHierarchy(boolean gzip) {
+        return this.uiDevice.dumpWindowHierarchy(gzip);
+    }
+
+    @Override
+    public byte[] dumpWindowHierarchy(UiSelector selector, int maxDepth, String[] attributes, boolean visibleOnly,
+        boolean gzip) throws UiObjectNotFoundException {
+        return this.uiDevice.dumpWindowHierarchy(selector, maxDepth, attributes, visibleOnly, gzip);
+    }
+
+    @Override
+    public byte[] dumpWindowHierarchyDelta(long session, long base, boolean gzip) {
+        return this.uiDevice.dumpWindowHierarchyDelta(session, base, gzip);
+    }
+
     @Override
     public void freezeRotation() throws LipeRMIException {
         this.uiDevice.freezeRotation();
@@ -535,7 +744,7 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     public boolean pressBack() {
         LOG.debug("press back");
         boolean ok = this.uiDevice.pressBack();
-        this.waitForIdle();
+        this.checkProblem();
         return ok;
     }
 
@@ -568,7 +777,7 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     public boolean pressDelete() {
         LOG.debug("press delete");
         boolean ok = this.uiDevice.pressDelete();
-        this.waitForIdle();
+        this.checkProblem();
         return ok;
     }
 
@@ -576,7 +785,7 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     public boolean pressEnter() {
         LOG.debug("press enter");
         boolean ok = this.uiDevice.pressEnter();
-        this.waitForIdle();
+        this.checkProblem();
         return ok;
     }
 
@@ -584,7 +793,7 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     public boolean pressHome() {
         LOG.debug("press home");
         boolean ok = this.uiDevice.pressHome();
-        this.waitForIdle();
+        this.checkProblem();
         return ok;
     }
 
@@ -592,7 +801,7 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     public boolean pressKeyCode(int keyCode) {
         LOG.debug("press key {}", keyCode);
         boolean ok = this.uiDevice.pressKeyCode(keyCode);
-        this.waitForIdle();
+        this.checkProblem();
         return ok;
     }
 
@@ -605,7 +814,7 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     public boolean pressMenu() {
         LOG.debug("press menu");
         boolean ok = this.uiDevice.pressMenu();
-        this.waitForIdle();
+        this.checkProblem();
         return ok;
     }
 
@@ -613,7 +822,7 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     public boolean pressRecentApps() throws LipeRMIException {
         LOG.debug("press recent apps");
         boolean ok = this.uiDevice.pressRecentApps();
-        this.waitForIdle();
+        this.checkProblem();
         return ok;
     }
 
@@ -621,7 +830,7 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     public boolean pressSearch() {
         LOG.debug("press search");
         boolean ok = this.uiDevice.pressSearch();
-        this.waitForIdle();
+        this.checkProblem();
         return ok;
     }
 
@@ -669,14 +878,14 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     @Override
     public boolean swipe(int startX, int startY, int endX, int endY, int steps) {
         boolean ok = this.uiDevice.swipe(startX, startY, endX, endY, steps);
-        this.waitForIdle();
+        this.waitForIdleOnHost();
         return ok;
     }
 
     @Override
     public boolean swipe(Point[] segments, int segmentSteps) {
         boolean ok = this.uiDevice.swipe(segments, segmentSteps);
-        this.waitForIdle();
+        this.waitForIdleOnHost();
         return ok;
     }
 
@@ -690,6 +899,70 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
         return this.uiDevice.takeScreenshot(name, scale, quality);
     }
 
+    @Override
+    public byte[] getScreenshot(Rect crop, float scale, boolean png, int quality) {
+        return this.uiDevice.getScreenshot(crop, scale, png, quality);
+    }
+
+    /**
+     * Captures screen as an image in memory. Without binary rpc, takes a screenshot file, and crops and scales it
+     * here.
+     *
+     * @param crop  region of screen to keep, null for whole screen
+     * @param scale scale of image, applied after crop; 1.0f for original size
+     *
+     * @return image of screen
+     *
+     * @throws IOException if screenshot cannot be taken, or read
+     */
+    public BufferedImage captureScreen(Rect crop, float scale) throws IOException {
+        if (binaryRpc) {
+            try {
+                byte[] jpeg = uiDevice.getScreenshot(crop, scale, false, SCREENSHOT_QUALITY);
+                return ImageIO.read(new ByteArrayInputStream(jpeg));
+            } catch (UnsupportedOperationException ex) {
+                LOG.debug("{}", ex.getMessage());
+            }
+        }
+        BufferedImage image = ImageIO.read(this.takeDeviceScreenshot());
+        if (crop != null) {
+            int left = Math.max(0, Math.min(crop.left, image.getWidth() - 1));
+            int top = Math.max(0, Math.min(crop.top, image.getHeight() - 1));
+            image = image.getSubimage(left, top, Math.max(1, Math.min(crop.right, image.getWidth()) - left),
+                Math.max(1, Math.min(crop.bottom, image.getHeight()) - top));
+        }
+        if (scale > 0 && scale != 1.0f) {
+            int w = Math.max(1, Math.round(image.getWidth() * scale));
+            int h = Math.max(1, Math.round(image.getHeight() * scale));
+            BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2 = scaled.createGraphics();
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.drawImage(image, 0, 0, w, h, null);
+            g2.dispose();
+            image = scaled;
+        }
+        return image;
+    }
+
+    /**
+     * Starts capturing screen continuously, as JPEG, decoded on host. Needs binary rpc.
+     *
+     * @param crop     region of screen to keep, null for whole screen
+     * @param scale    scale of image, such as 0.5f, to cut transfer and decoding time
+     * @param quality  JPEG quality, range 0-100
+     * @param interval minimal time between captures in milliseconds, 0 for as fast as possible
+     * @param consumer called with each image, on a thread of stream
+     *
+     * @return stream, close it to stop
+     */
+    public ScreenshotStream streamScreenshots(Rect crop, float scale, int quality, long interval,
+        Consumer<BufferedImage> consumer) {
+        if (!binaryRpc) {
+            throw new UIAException("uia server does not support in-memory screenshot");
+        }
+        return new ScreenshotStream(this, crop, scale, quality, interval, consumer);
+    }
+
     @Override
     public void unfreezeRotation() throws LipeRMIException {
         this.uiDevice.unfreezeRotation();
@@ -698,11 +971,173 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     @Override
     public void waitForIdle() {
         this.uiDevice.waitForIdle();
+        this.checkProblem();
+    }
+
+    /**
+     * Waits for idle after an action, unless uia server does so with the strategy of device or script, which is
+     * known only with binary rpc; a prebuilt uia server does not.
+     */
+    private void waitForIdleOnHost() {
+        if (binaryRpc) {
+            this.checkProblem();
+        } else {
+            this.waitForIdle();
+        }
     }
 
     @Override
     public void waitForIdle(long time) {
         this.uiDevice.waitForIdle(time);
+        this.checkProblem();
+    }
+
+    /**
+     * Sets how actions wait for UI idle on device, for all following actions. Needs binary rpc; otherwise, actions
+     * keep waiting with {@link IdleSync#DEVICE}.
+     *
+     * @param sync    idle sync strategy
+     * @param timeout maximal time to wait in milliseconds, 0 for default
+     */
+    @Override
+    public void setIdleSync(IdleSync sync, long timeout) {
+        if (!binaryRpc) {
+            LOG.warn("Idle sync {} needs binary rpc, keep {}", sync, IdleSync.DEVICE);
+            return;
+        }
+        LOG.debug("Idle sync {}, timeout {} ms", sync, timeout);
+        this.uiDevice.setIdleSync(sync, timeout);
+    }
+
+    /**
+     * Runs a script with an idle sync strategy, such as {@link IdleSync#NONE} for a series of quick key presses.
+     * The strategy applies to actions of this script only; other calls keep the strategy of device. Needs binary
+     * rpc; otherwise, actions keep waiting with {@link IdleSync#DEVICE}.
+     *
+     * @param sync    idle sync strategy
+     * @param timeout maximal time to wait in milliseconds, 0 for default
+     * @param script  steps to run
+     *
+     * @return result and time of each step
+     */
+    public UiScriptResult withIdleSync(IdleSync sync, long timeout, UiScript script) {
+        if (!binaryRpc) {
+            LOG.warn("Idle sync {} needs binary rpc, keep {}", sync, IdleSync.DEVICE);
+        }
+        return this.runScript(script.idleSync(sync, timeout));
+    }
+
+    @Override
+    public IdleStats getIdleStats() {
+        return binaryRpc ? this.uiDevice.getIdleStats() : new IdleStats();
+    }
+
+    @Override
+    public void resetIdleStats() {
+        if (binaryRpc) {
+            this.uiDevice.resetIdleStats();
+        }
+    }
+
+    /**
+     * @return true if accessibility events are pushed from device
+     */
+    public boolean isUiEventsConnected() {
+        return uiEventClient != null && uiEventClient.isConnected();
+    }
+
+    /**
+     * Adds a listener of accessibility events pushed from device, see {@link UiEvent}.
+     *
+     * @param listener listener called on event reader thread
+     *
+     * @return false if events are not available
+     */
+    public boolean addUiEventListener(UiEventListener listener) {
+        if (uiEventClient == null) {
+            return false;
+        }
+        uiEventClient.addListener(listener);
+        return true;
+    }
+
+    public void removeUiEventListener(UiEventListener listener) {
+        if (uiEventClient != null) {
+            uiEventClient.removeListener(listener);
+        }
+    }
+
+    /**
+     * Gets a future of the next event of types, so the caller can trigger an action, and then block on the future,
+     * instead of polling.
+     *
+     * <pre>
+     * CompletableFuture&lt;UiEvent&gt; f = device.nextUiEvent(UiEvent.TYPE_WINDOW_STATE_CHANGED, null);
+     * device.clickByText("Settings");
+     * UiEvent e = f.get(10, TimeUnit.SECONDS);
+     * </pre>
+     *
+     * @param types       mask of event types, such as {@link UiEvent#TYPES_WINDOW}
+     * @param packageName package name, or null for any package
+     *
+     * @return future of event, failed with UIAException if events are not available
+     */
+    public CompletableFuture<UiEvent> nextUiEvent(int types, String packageName) {
+        CompletableFuture<UiEvent> future = new CompletableFuture<>();
+        if (!this.isUiEventsConnected()) {
+            future.completeExceptionally(new UIAException("accessibility events are not available"));
+            return future;
+        }
+        UiEventListener listener = event -> {
+            if (event.matches(types, packageName)) {
+                future.complete(event);
+            }
+        };
+        uiEventClient.addListener(listener);
+        future.whenComplete((e, t) -> uiEventClient.removeListener(listener));
+        return future;
+    }
+
+    /**
+     * Waits for the next event of types.
+     *
+     * @param types       mask of event types
+     * @param packageName package name, or null for any package
+     * @param timeout     time to wait in milliseconds
+     *
+     * @return event, or null if there is none within timeout
+     *
+     * @throws InterruptedException if interrupted
+     */
+    public UiEvent waitForUiEvent(int types, String packageName, long timeout) throws InterruptedException {
+        CompletableFuture<UiEvent> future = this.nextUiEvent(types, packageName);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(false);
+            return null;
+        } catch (ExecutionException ex) {
+            throw new UIAException(ex.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Runs a script on device in one call. With a uia server without script support, runs it here step by step.
+     *
+     * @param script steps to run
+     *
+     * @return result and time of each step
+     */
+    @Override
+    public UiScriptResult runScript(UiScript script) {
+        UiScriptResult result = binaryRpc ? uiDevice.runScript(script)
+            : new UiScriptRunner(uiDevice, uiObject).run(script);
+        LOG.debug("{} steps in {} ms, idle {} ms", result.getResults().size(), result.getMillis(),
+            result.getIdleMillis());
+        if (LOG.isTraceEnabled()) {
+            result.getResults().forEach(r -> LOG.trace("{}", r));
+        }
+        return result;
     }
 
     @Override
@@ -713,7 +1148,7 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     @Override
     public void wakeUp() throws LipeRMIException {
         this.uiDevice.wakeUp();
-        this.waitForIdle();
+        this.waitForIdleOnHost();
     }
 
     @Override
@@ -749,27 +1184,27 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
 
     private File ss() throws IOException {
         String name = "ss-" + UUID.randomUUID() + ".png";
-        this.uiDevice.takeScreenshot(name, 1.0f, 68);
         File png = this.getLogPath().resolve(name).toFile();
+        if (binaryRpc) {
+            try {
+                FileUtils.writeByteArrayToFile(png, uiDevice.getScreenshot(null, 1.0f, true, 100));
+                LOG.debug("Save screenshot as {}", png.getAbsolutePath());
+                return png;
+            } catch (UnsupportedOperationException ex) {
+                LOG.debug("{}", ex.getMessage());
+            }
+        }
+        this.uiDevice.takeScreenshot(name, 1.0f, 68);
         this.getAdb().pull(IUiDevice.TMP_DIR + name, png);
         LOG.debug("Save screenshot as {}", png.getAbsolutePath());
         return png;
     }
 
     private ExecuteWatchdog setupUiAutomatorRmiServer() throws IOException, InterruptedException {
+        this.getAdb().push(Lists.newArrayList(new File(UIA_SERVER_PATH), new File(UIA_BUNDLE_PATH)),
+            IUiDevice.TMP_DIR_V6);
+
         List<Object> cmdLine = new ArrayList<>();
-        cmdLine.add("push");
-        cmdLine.add(UIA_SERVER_PATH);
-        cmdLine.add("/data/local/tmp/");
-        this.getAdb().adb(cmdLine);
-
-        cmdLine = new ArrayList<>();
-        cmdLine.add("push");
-        cmdLine.add(UIA_BUNDLE_PATH);
-        cmdLine.add("/data/local/tmp/");
-        this.getAdb().adb(cmdLine);
-
-        cmdLine = new ArrayList<>();
         cmdLine.add("uiautomator");
         cmdLine.add("runtest");
         cmdLine.add(UIA_SERVER_JAR);
@@ -789,6 +1224,157 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
         return local;
     }
 
+    /**
+     * Switches stubs to the binary rpc, LipeRMI stubs are kept for calls which cannot be encoded. Stays with LipeRMI
+     * if uia server on device does not support the binary rpc.
+     */
+    private void setupBinaryRpc() throws IOException, InterruptedException {
+        int local = LOCAL_RPC_PORT.getAndIncrement();
+        this.getAdb().setupAdbPortForward(local, IUiDevice.UIAUTOMATOR_RPC_PORT);
+        try {
+            String channels = SystemConfiguration.getInstance().getProperty(SYSPROP_RPC_CHANNELS);
+            this.rpcClient = new RpcClient("localhost", local, 5000,
+                StringUtils.isBlank(channels) ? DEFAULT_RPC_CHANNELS : Integer.parseInt(channels.trim()));
+        } catch (IOException ex) {
+            LOG.info("Binary rpc is not available, use LipeRMI - {}", ex.getMessage());
+            return;
+        }
+        this.uiDevice = rpcClient.getService(IUiDevice.class, uiDevice);
+        this.uiObject = rpcClient.getService(IUiObject.class, uiObject);
+        this.uiCollection = rpcClient.getService(IUiCollection.class, uiCollection);
+        this.uiScrollable = rpcClient.getService(IUiScrollable.class, uiScrollable);
+        this.uiObjectRegistry = rpcClient.getService(IUiObjectRegistry.class, null);
+        this.binaryRpc = true;
+        LOG.debug("Use binary rpc on port {}", local);
+        if (UI_EVENTS) {
+            this.setupUiEvents();
+        }
+
+        SystemConfiguration sysConfig = SystemConfiguration.getInstance();
+        String sync = sysConfig.getProperty(SYSPROP_IDLE_SYNC);
+        String timeout = sysConfig.getProperty(SYSPROP_IDLE_TIMEOUT);
+        if (StringUtils.isNotBlank(sync) || StringUtils.isNotBlank(timeout)) {
+            this.setIdleSync(StringUtils.isBlank(sync) ? IdleSync.DEVICE : IdleSync.valueOf(sync.trim().toUpperCase()),
+                StringUtils.isBlank(timeout) ? 0 : Long.parseLong(timeout.trim()));
+        }
+    }
+
+    private void setupUiEvents() throws IOException, InterruptedException {
+        int local = LOCAL_EVENT_PORT.getAndIncrement();
+        this.getAdb().setupAdbPortForward(local, IUiDevice.UIAUTOMATOR_EVENT_PORT);
+        try {
+            this.uiEventClient = new UiEventClient("localhost", local, 5000, UiEvent.TYPES_ALL);
+        } catch (IOException ex) {
+            LOG.info("Accessibility events are not available - {}", ex.getMessage());
+            return;
+        }
+        uiEventClient.addListener(event -> {
+            if (event.matches(UiEvent.TYPES_WINDOW, null)) {
+                hierarchyStale = true;
+            }
+        });
+        this.uiDevice = this.staleOnAction(IUiDevice.class, uiDevice);
+        this.uiObject = this.staleOnAction(IUiObject.class, uiObject);
+        this.uiCollection = this.staleOnAction(IUiCollection.class, uiCollection);
+        this.uiScrollable = this.staleOnAction(IUiScrollable.class, uiScrollable);
+        this.uiObjectRegistry = this.staleOnAction(IUiObjectRegistry.class, uiObjectRegistry);
+        LOG.debug("Receive accessibility events on port {}", local);
+    }
+
+    /**
+     * Wraps a stub, so that each call which may change UI, anything but get, is, has, exists, waitFor, and dump, marks
+     * the cached window hierarchy stale, before and after the call. Events of the change come later, on another
+     * connection.
+     */
+    private <T> T staleOnAction(Class<T> type, T stub) {
+        if (stub == null) {
+            return null;
+        }
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            String name = method.getName();
+            boolean action = method.getDeclaringClass() != Object.class && !name.startsWith("get")
+                && !name.startsWith("is") && !name.startsWith("has") && !name.equals("exists")
+                && !name.startsWith("waitFor") && !name.startsWith("dump");
+            if (action) {
+                hierarchyStale = true;
+            }
+            try {
+                return method.invoke(stub, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            } finally {
+                if (action) {
+                    hierarchyStale = true;
+                }
+            }
+        }));
+    }
+
+    /**
+     * Marks the cached window hierarchy stale, as {@link #staleOnAction(Class, Object)} does for stub calls.
+     */
+    @Override
+    protected void uiActionSent() {
+        hierarchyStale = true;
+    }
+
+    /**
+     * Fails binary rpc calls in progress by closing their channels, which reconnect on next calls. LipeRMI calls
+     * cannot be failed one by one, its client is closed only once device is disconnected.
+     */
+    @Override
+    protected void abortCalls(boolean disconnected) {
+        RpcClient rpc = rpcClient;
+        if (rpc != null) {
+            rpc.abort();
+        }
+        Client rmi = client;
+        if (disconnected && rmi != null) {
+            try {
+                rmi.close();
+            } catch (IOException ex) {
+                LOG.debug("{}", ex.getMessage());
+            }
+        }
+    }
+
+    private void clickIfExists(UiSelector selector) {
+        LOG.debug("click {} if exists", selector);
+        this.runScript(new UiScript().when(UiScript.Step.exists(selector), new UiScript().click(selector)));
+    }
+
+    private boolean exists(UiSelector selector) {
+        if (binaryRpc) {
+            return uiObject.exists(selector);
+        }
+        uiObject.useUiObjectSelector(selector);
+        return uiObject.exists();
+    }
+
+    private boolean waitForExists(UiSelector selector, long timeout) {
+        if (binaryRpc) {
+            return uiObject.waitForExists(selector, timeout);
+        }
+        uiObject.useUiObjectSelector(selector);
+        uiObject.waitForExists(timeout);
+        return uiObject.exists();
+    }
+
+    /**
+     * Clicks, stub waits for idle on device.
+     */
+    private void click(UiSelector selector) {
+        if (binaryRpc) {
+            UiObjectResult result = uiObject.click(selector);
+            if (result.hasUiObjectNotFoundException()) {
+                LOG.debug("{}", result.getUiObjectNotFoundException().getMessage());
+            }
+            return;
+        }
+        uiObject.useUiObjectSelector(selector);
+        uiObject.click();
+    }
+
     private void killUiAutomatorProcess() throws IOException {
         Optional<String> line = getAdb().shell(Lists.newArrayList("ps")).stream()
             .filter(l -> (l.startsWith("shell") && l.endsWith("uiautomator"))).findFirst();
@@ -799,25 +1385,93 @@ public class UiAutomatorDevice extends AdbDevice implements IUiDevice {
     }
 
     private WindowHierarchy wh() throws Exception {
+        if (binaryRpc) {
+            return HIERARCHY_DELTA ? this.whDelta() : this.whInMemory();
+        }
         String name = "uidump-" + UUID.randomUUID() + ".xml";
         uiDevice.dumpWindowHierarchy(name);
         File xml = this.getLogPath().resolve(name).toFile();
 
-        String path = IUiDevice.TMP_DIR + name;
-        if (!this.getAdb().fileExists(path)) {
-            path = IUiDevice.TMP_DIR_V6 + name;
-            if (!this.getAdb().fileExists(path)) {
-                throw new UIAException("Cannot find file " + xml);
+        List<String> paths = Lists.newArrayList(IUiDevice.TMP_DIR + name, IUiDevice.TMP_DIR_V6 + name);
+        List<AdbShell.Result> found = this.getAdb().batch().add("ls", paths.get(0)).add("ls", paths.get(1)).run();
+        String path = null;
+        for (int i = 0; i < paths.size() && path == null; i++) {
+            if (found.get(i).getLines().contains(paths.get(i))) {
+                path = paths.get(i);
             }
         }
+        if (path == null) {
+            throw new UIAException("Cannot find file " + xml);
+        }
 
-        this.getAdb().pull(path, xml);
+        ByteBuffer buffer = this.getAdb().pull(path);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        FileUtils.writeByteArrayToFile(xml, bytes);
         LOG.debug("Save WindowHierarchy as {}", xml.getAbsolutePath());
 
-        WindowHierarchy hierarchy = UIA.parseHierarchy(xml, this);
+        WindowHierarchy hierarchy = UIA.parseHierarchy(new ByteArrayInputStream(bytes), this);
         return hierarchy;
     }
 
+    /**
+     * Transfers window hierarchy in the rpc reply, gzip-compressed, with no file on device, and no adb call.
+     */
+    private WindowHierarchy whInMemory() throws Exception {
+        byte[] gz = uiDevice.dumpWindowHierarchy(true);
+        byte[] bytes = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gz)));
+        LOG.debug("Transfer WindowHierarchy, {} bytes, {} compressed", bytes.length, gz.length);
+        if (SAVE_HIERARCHY) {
+            File xml = this.getLogPath().resolve("uidump-" + UUID.randomUUID() + ".xml").toFile();
+            CompletableFuture.runAsync(() -> {
+                try {
+                    FileUtils.writeByteArrayToFile(xml, bytes);
+                    LOG.debug("Save WindowHierarchy as {}", xml.getAbsolutePath());
+                } catch (IOException ex) {
+                    LOG.warn("Cannot save WindowHierarchy - {}", ex.getMessage());
+                }
+            });
+        }
+        return UIA.parseHierarchy(new ByteArrayInputStream(bytes), this);
+    }
+
+    /**
+     * Transfers changes since the window hierarchy loaded last, and applies them to the nodes kept from then. Nodes
+     * are built from kept values, with no XML. Falls back to full hierarchy if there is no root node on device.
+     */
+    private WindowHierarchy whDelta() throws Exception {
+        synchronized (deltaLock) {
+            byte[] gz;
+            try {
+                gz = uiDevice.dumpWindowHierarchyDelta(deltaSession, deltaVersion, true);
+            } catch (UnsupportedOperationException ex) {
+                LOG.debug("Cannot transfer WindowHierarchy delta - {}", ex.getMessage());
+                return this.whInMemory();
+            }
+            HierarchyDelta delta = HierarchyDelta.read(IOUtils.toByteArray(new GZIPInputStream(
+                new ByteArrayInputStream(gz))));
+            LOG.debug("Transfer {}, {} bytes compressed", delta, gz.length);
+            if (!delta.isFull() && delta.getBase() != deltaVersion) {
+                UIAException ex = new UIAException("Unexpected " + delta + ", have version " + deltaVersion);
+                deltaVersion = 0;
+                throw ex;
+            }
+            if (delta.getVersion() == deltaVersion && deltaHierarchy != null) {
+                return deltaHierarchy;
+            }
+            try {
+                delta.applyTo(deltaNodes);
+                deltaHierarchy = UIA.buildHierarchy(deltaNodes, delta.getRotation(), this);
+                deltaSession = delta.getSession();
+                deltaVersion = delta.getVersion();
+                return deltaHierarchy;
+            } catch (RuntimeException ex) {
+                deltaVersion = 0;
+                throw ex;
+            }
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         Map.Entry<String, String> entry = Adb.getSerialProduct().entrySet().iterator().next();
         Adb adb = new Adb(entry.getKey());
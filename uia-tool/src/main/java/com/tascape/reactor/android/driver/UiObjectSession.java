@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.driver;
+
+import com.android.uiautomator.stub.IUiObjectRegistry;
+import com.android.uiautomator.stub.Rect;
+import com.android.uiautomator.stub.UiObjectResult;
+import com.android.uiautomator.stub.UiSelector;
+import java.io.Closeable;
+
+/**
+ * A session of UI objects by handle on device, see {@link IUiObjectRegistry}. Each host thread working with objects
+ * of the same device opens its own session, so threads do not overwrite each other's selection.
+ *
+ * <pre>
+ * try (UiObjectSession session = device.openUiObjectSession()) {
+ *     long button = session.find(new UiSelector().resourceId("com.example:id/login"));
+ *     session.click(button);
+ * }
+ * </pre>
+ *
+ * @author linsong wang
+ */
+public class UiObjectSession implements Closeable {
+
+    private final IUiObjectRegistry registry;
+
+    private final long session;
+
+    UiObjectSession(IUiObjectRegistry registry) {
+        this.registry = registry;
+        this.session = registry.openSession();
+    }
+
+    public long getSession() {
+        return session;
+    }
+
+    /**
+     * @param selector selector of object
+     *
+     * @return handle of object, 0 if session is dropped
+     */
+    public long find(UiSelector selector) {
+        return registry.find(session, selector);
+    }
+
+    /**
+     * @param handle   handle of parent object
+     * @param selector selector of child
+     *
+     * @return handle of child, 0 if not found
+     */
+    public long getChild(long handle, UiSelector selector) {
+        return registry.getChild(session, handle, selector);
+    }
+
+    /**
+     * @param handle   handle of object
+     * @param selector selector of sibling, or child of sibling
+     *
+     * @return handle of sibling, 0 if not found
+     */
+    public long getFromParent(long handle, UiSelector selector) {
+        return registry.getFromParent(session, handle, selector);
+    }
+
+    public boolean exists(long handle) {
+        return registry.exists(session, handle);
+    }
+
+    public boolean waitForExists(long handle, long timeout) {
+        return registry.waitForExists(session, handle, timeout);
+    }
+
+    public boolean click(long handle) {
+        return registry.click(session, handle).getBoolean();
+    }
+
+    /**
+     * @param handle handle of object
+     *
+     * @return text, null if object is not found
+     */
+    public String getText(long handle) {
+        return registry.getText(session, handle).getString();
+    }
+
+    public boolean setText(long handle, String text) {
+        return registry.setText(session, handle, text).getBoolean();
+    }
+
+    /**
+     * @param handle handle of object
+     *
+     * @return bounds, null if object is not found
+     */
+    public Rect getBounds(long handle) {
+        UiObjectResult result = registry.getBounds(session, handle);
+        return result.hasUiObjectNotFoundException() ? null : result.getRect();
+    }
+
+    public void release(long handle) {
+        registry.release(session, handle);
+    }
+
+    @Override
+    public void close() {
+        registry.closeSession(session);
+    }
+}
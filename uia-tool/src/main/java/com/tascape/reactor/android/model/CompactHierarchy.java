@@ -0,0 +1,583 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.model;
+
+import com.android.uiautomator.stub.Rect;
+import com.tascape.reactor.android.driver.UiAutomatorDevice;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Window hierarchy kept as arrays instead of node objects, to hold many hierarchies, or big ones, with little heap.
+ * Nodes are numbered in pre-order, root is 0. Tree links, bounds and flags are int arrays, and strings are ids of a
+ * dictionary shared by all nodes, -1 for none.
+ *
+ * Nodes are read by number, and {@link #getNode(int, UiAutomatorDevice)} builds UIANode objects of a subtree only
+ * when needed, such as for UI actions.
+ *
+ * <pre>
+ * CompactHierarchy ch = device.loadWindowHierarchy().toCompact();
+ * int n = ch.findByResourceId("com.example:id/login");
+ * if (n &gt;= 0 &amp;&amp; ch.isEnabled(n)) {
+ *     ch.getNode(n, device).click();
+ * }
+ * </pre>
+ *
+ * @author linsong wang
+ */
+public final class CompactHierarchy {
+
+    public static final int NONE = -1;
+
+    private static final int CHECKABLE = 1;
+
+    private static final int CHECKED = 1 << 1;
+
+    private static final int CLICKABLE = 1 << 2;
+
+    private static final int ENABLED = 1 << 3;
+
+    private static final int FOCUSABLE = 1 << 4;
+
+    private static final int FOCUSED = 1 << 5;
+
+    private static final int SCROLLABLE = 1 << 6;
+
+    private static final int LONG_CLICKABLE = 1 << 7;
+
+    private static final int PASSWORD = 1 << 8;
+
+    private static final int SELECTED = 1 << 9;
+
+    private static final int NO_BOUNDS = 1 << 10;
+
+    private final String rotation;
+
+    private final int size;
+
+    private final int[] parent;
+
+    private final int[] firstChild;
+
+    private final int[] nextSibling;
+
+    private final int[] index;
+
+    private final int[] flags;
+
+    /**
+     * left, top, right, bottom of each node.
+     */
+    private final int[] bounds;
+
+    private final int[] text;
+
+    private final int[] resourceId;
+
+    private final int[] klass;
+
+    private final int[] pakkage;
+
+    private final int[] contentDesc;
+
+    private final String[] strings;
+
+    /**
+     * Id of each string in {@link #strings}.
+     */
+    private final Map<String, Integer> ids;
+
+    private CompactHierarchy(Builder builder) {
+        this.rotation = builder.rotation;
+        this.size = builder.size;
+        this.parent = Arrays.copyOf(builder.parent, size);
+        this.firstChild = Arrays.copyOf(builder.firstChild, size);
+        this.nextSibling = Arrays.copyOf(builder.nextSibling, size);
+        this.index = Arrays.copyOf(builder.index, size);
+        this.flags = Arrays.copyOf(builder.flags, size);
+        this.bounds = Arrays.copyOf(builder.bounds, size * 4);
+        this.text = Arrays.copyOf(builder.text, size);
+        this.resourceId = Arrays.copyOf(builder.resourceId, size);
+        this.klass = Arrays.copyOf(builder.klass, size);
+        this.pakkage = Arrays.copyOf(builder.pakkage, size);
+        this.contentDesc = Arrays.copyOf(builder.contentDesc, size);
+        this.strings = new String[builder.strings.size()];
+        for (Map.Entry<String, Integer> entry : builder.strings.entrySet()) {
+            this.strings[entry.getValue()] = entry.getKey();
+        }
+        this.ids = new HashMap<>(builder.strings);
+    }
+
+    /**
+     * Copies an object tree into arrays.
+     *
+     * @param hierarchy window hierarchy
+     *
+     * @return compact copy
+     */
+    public static CompactHierarchy of(WindowHierarchy hierarchy) {
+        Builder builder = new Builder();
+        builder.setRotation(hierarchy.getRotation());
+        copy(builder, NONE, hierarchy.getRoot());
+        return builder.build();
+    }
+
+    private static void copy(Builder builder, int parent, UIANode node) {
+        int n = builder.add(parent);
+        builder.index[n] = node.getIndex();
+        builder.text[n] = builder.id(node.getText());
+        builder.resourceId[n] = builder.id(node.getResourceId());
+        builder.klass[n] = builder.id(node.getKlass());
+        builder.pakkage[n] = builder.id(node.getPakkage());
+        builder.contentDesc[n] = builder.id(node.getContentDesc());
+        int f = (node.isCheckable() ? CHECKABLE : 0) | (node.isChecked() ? CHECKED : 0)
+            | (node.isClickable() ? CLICKABLE : 0) | (node.isEnabled() ? ENABLED : 0)
+            | (node.isFocusable() ? FOCUSABLE : 0) | (node.isFocused() ? FOCUSED : 0)
+            | (node.isScrollable() ? SCROLLABLE : 0) | (node.isLongClickable() ? LONG_CLICKABLE : 0)
+            | (node.isPassword() ? PASSWORD : 0) | (node.isSelected() ? SELECTED : 0);
+        Rect r = node.getBounds();
+        if (r == null) {
+            f |= NO_BOUNDS;
+        } else {
+            builder.setBounds(n, r.left, r.top, r.right, r.bottom);
+        }
+        builder.flags[n] = f;
+        for (UIANode child : node.nodes()) {
+            copy(builder, n, child);
+        }
+    }
+
+    public String getRotation() {
+        return rotation;
+    }
+
+    /**
+     * @return number of nodes
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    /**
+     * @param node node number
+     *
+     * @return first child, or {@link #NONE}
+     */
+    public int getFirstChild(int node) {
+        return firstChild[node];
+    }
+
+    /**
+     * @param node node number
+     *
+     * @return next sibling, or {@link #NONE}
+     */
+    public int getNextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    public int getChildCount(int node) {
+        int count = 0;
+        for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param node node number
+     *
+     * @return number after the last descendant of node, nodes of a subtree are numbered one after another
+     */
+    public int getSubtreeEnd(int node) {
+        for (int n = node; n != NONE; n = parent[n]) {
+            if (nextSibling[n] != NONE) {
+                return nextSibling[n];
+            }
+        }
+        return size;
+    }
+
+    public int getIndex(int node) {
+        return index[node];
+    }
+
+    public String getText(int node) {
+        return string(text[node]);
+    }
+
+    public String getResourceId(int node) {
+        return string(resourceId[node]);
+    }
+
+    public String getKlass(int node) {
+        return string(klass[node]);
+    }
+
+    public String getPakkage(int node) {
+        return string(pakkage[node]);
+    }
+
+    public String getContentDesc(int node) {
+        return string(contentDesc[node]);
+    }
+
+    public boolean isCheckable(int node) {
+        return (flags[node] & CHECKABLE) != 0;
+    }
+
+    public boolean isChecked(int node) {
+        return (flags[node] & CHECKED) != 0;
+    }
+
+    public boolean isClickable(int node) {
+        return (flags[node] & CLICKABLE) != 0;
+    }
+
+    public boolean isEnabled(int node) {
+        return (flags[node] & ENABLED) != 0;
+    }
+
+    public boolean isFocusable(int node) {
+        return (flags[node] & FOCUSABLE) != 0;
+    }
+
+    public boolean isFocused(int node) {
+        return (flags[node] & FOCUSED) != 0;
+    }
+
+    public boolean isScrollable(int node) {
+        return (flags[node] & SCROLLABLE) != 0;
+    }
+
+    public boolean isLongClickable(int node) {
+        return (flags[node] & LONG_CLICKABLE) != 0;
+    }
+
+    public boolean isPassword(int node) {
+        return (flags[node] & PASSWORD) != 0;
+    }
+
+    public boolean isSelected(int node) {
+        return (flags[node] & SELECTED) != 0;
+    }
+
+    /**
+     * @param node node number
+     *
+     * @return new bounds, or null if node has none
+     */
+    public Rect getBounds(int node) {
+        if ((flags[node] & NO_BOUNDS) != 0) {
+            return null;
+        }
+        int b = node * 4;
+        return new Rect(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3]);
+    }
+
+    public boolean contains(int node, int x, int y) {
+        int b = node * 4;
+        return (flags[node] & NO_BOUNDS) == 0 && x >= bounds[b] && x < bounds[b + 2] && y >= bounds[b + 1]
+            && y < bounds[b + 3];
+    }
+
+    /**
+     * @param resourceId resource id
+     *
+     * @return first node in pre-order of the resource id, or {@link #NONE}
+     */
+    public int findByResourceId(String resourceId) {
+        return find(this.resourceId, resourceId);
+    }
+
+    /**
+     * @param text text
+     *
+     * @return first node in pre-order of the text, or {@link #NONE}
+     */
+    public int findByText(String text) {
+        return find(this.text, text);
+    }
+
+    /**
+     * Builds UIANode objects of a node and its descendants.
+     *
+     * @param node   node number
+     * @param device device for UI actions of nodes, can be null
+     *
+     * @return node object, without parent
+     */
+    public UIANode getNode(int node, UiAutomatorDevice device) {
+        UIANode uiNode = node(node);
+        uiNode.setUiAutomatorDevice(device);
+        return uiNode;
+    }
+
+    /**
+     * @param device device for UI actions of nodes, can be null
+     *
+     * @return window hierarchy of node objects
+     */
+    public WindowHierarchy toWindowHierarchy(UiAutomatorDevice device) {
+        WindowHierarchy hierarchy = new WindowHierarchy(node(0));
+        hierarchy.setRotation(rotation);
+        hierarchy.setUiAutomatorDevice(device);
+        return hierarchy;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactHierarchy[" + size + " nodes, " + strings.length + " strings]";
+    }
+
+    private UIANode node(int n) {
+        String k = getKlass(n);
+        UIANode uiNode = UIA.newNode(k == null ? "" : k);
+        uiNode.setIndex(index[n]);
+        uiNode.setTextOf(getText(n));
+        uiNode.setResourceId(getResourceId(n));
+        uiNode.setKlass(k);
+        uiNode.setPakkage(getPakkage(n));
+        uiNode.setContentDesc(getContentDesc(n));
+        uiNode.setCheckable(isCheckable(n));
+        uiNode.setChecked(isChecked(n));
+        uiNode.setClickable(isClickable(n));
+        uiNode.setEnabled(isEnabled(n));
+        uiNode.setFocusable(isFocusable(n));
+        uiNode.setFocused(isFocused(n));
+        uiNode.setScrollable(isScrollable(n));
+        uiNode.setLongClickable(isLongClickable(n));
+        uiNode.setPassword(isPassword(n));
+        uiNode.setSelected(isSelected(n));
+        uiNode.setBounds(getBounds(n));
+        for (int c = firstChild[n]; c != NONE; c = nextSibling[c]) {
+            uiNode.addNode(node(c));
+        }
+        return uiNode;
+    }
+
+    /**
+     * Looks up the id of value once, then compares string ids instead of strings.
+     */
+    private int find(int[] column, String value) {
+        int id = ids.getOrDefault(value, NONE);
+        if (id == NONE) {
+            return NONE;
+        }
+        for (int n = 0; n < size; n++) {
+            if (column[n] == id) {
+                return n;
+            }
+        }
+        return NONE;
+    }
+
+    private String string(int id) {
+        return id == NONE ? null : strings[id];
+    }
+
+    /**
+     * Collects nodes in pre-order, parent before children.
+     */
+    static final class Builder {
+        private String rotation;
+
+        private int size;
+
+        private int[] parent = new int[256];
+
+        private int[] lastChild = new int[256];
+
+        private int[] firstChild = new int[256];
+
+        private int[] nextSibling = new int[256];
+
+        private int[] index = new int[256];
+
+        private int[] flags = new int[256];
+
+        private int[] bounds = new int[256 * 4];
+
+        private int[] text = new int[256];
+
+        private int[] resourceId = new int[256];
+
+        private int[] klass = new int[256];
+
+        private int[] pakkage = new int[256];
+
+        private int[] contentDesc = new int[256];
+
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        void setRotation(String rotation) {
+            this.rotation = rotation;
+        }
+
+        int getParent(int n) {
+            return parent[n];
+        }
+
+        /**
+         * @param p parent node number, {@link #NONE} for root
+         *
+         * @return number of new node, with no attributes
+         */
+        int add(int p) {
+            if (p == NONE && size > 0) {
+                throw new UIAException("Only one root node is allowed");
+            }
+            if (size == parent.length) {
+                int capacity = size * 2;
+                parent = Arrays.copyOf(parent, capacity);
+                lastChild = Arrays.copyOf(lastChild, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                index = Arrays.copyOf(index, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+                bounds = Arrays.copyOf(bounds, capacity * 4);
+                text = Arrays.copyOf(text, capacity);
+                resourceId = Arrays.copyOf(resourceId, capacity);
+                klass = Arrays.copyOf(klass, capacity);
+                pakkage = Arrays.copyOf(pakkage, capacity);
+                contentDesc = Arrays.copyOf(contentDesc, capacity);
+            }
+            int n = size++;
+            parent[n] = p;
+            firstChild[n] = NONE;
+            lastChild[n] = NONE;
+            nextSibling[n] = NONE;
+            text[n] = NONE;
+            resourceId[n] = NONE;
+            klass[n] = NONE;
+            pakkage[n] = NONE;
+            contentDesc[n] = NONE;
+            flags[n] = NO_BOUNDS;
+            if (p != NONE) {
+                if (lastChild[p] == NONE) {
+                    firstChild[p] = n;
+                } else {
+                    nextSibling[lastChild[p]] = n;
+                }
+                lastChild[p] = n;
+            }
+            return n;
+        }
+
+        /**
+         * Sets an attribute of uiautomator dump.
+         */
+        void set(int n, String name, String value) {
+            switch (name) {
+                case "index":
+                    index[n] = Integer.parseInt(value);
+                    break;
+                case "text":
+                    text[n] = id(value);
+                    break;
+                case "resource-id":
+                    resourceId[n] = id(value);
+                    break;
+                case "class":
+                    klass[n] = id(value);
+                    break;
+                case "package":
+                    pakkage[n] = id(value);
+                    break;
+                case "content-desc":
+                    contentDesc[n] = id(value);
+                    break;
+                case "checkable":
+                    flag(n, CHECKABLE, value);
+                    break;
+                case "checked":
+                    flag(n, CHECKED, value);
+                    break;
+                case "clickable":
+                    flag(n, CLICKABLE, value);
+                    break;
+                case "enabled":
+                    flag(n, ENABLED, value);
+                    break;
+                case "focusable":
+                    flag(n, FOCUSABLE, value);
+                    break;
+                case "focused":
+                    flag(n, FOCUSED, value);
+                    break;
+                case "scrollable":
+                    flag(n, SCROLLABLE, value);
+                    break;
+                case "long-clickable":
+                    flag(n, LONG_CLICKABLE, value);
+                    break;
+                case "password":
+                    flag(n, PASSWORD, value);
+                    break;
+                case "selected":
+                    flag(n, SELECTED, value);
+                    break;
+                case "bounds":
+                    Rect r = UIA.parseBounds(value);
+                    setBounds(n, r.left, r.top, r.right, r.bottom);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        void setBounds(int n, int left, int top, int right, int bottom) {
+            int b = n * 4;
+            bounds[b] = left;
+            bounds[b + 1] = top;
+            bounds[b + 2] = right;
+            bounds[b + 3] = bottom;
+            flags[n] &= ~NO_BOUNDS;
+        }
+
+        private void flag(int n, int flag, String value) {
+            if (Boolean.parseBoolean(value)) {
+                flags[n] |= flag;
+            } else {
+                flags[n] &= ~flag;
+            }
+        }
+
+        int id(String value) {
+            if (value == null) {
+                return NONE;
+            }
+            Integer id = strings.get(value);
+            if (id == null) {
+                id = strings.size();
+                strings.put(value, id);
+            }
+            return id;
+        }
+
+        CompactHierarchy build() {
+            if (size == 0) {
+                throw new UIAException("Cannot build empty view hierarchy");
+            }
+            return new CompactHierarchy(this);
+        }
+    }
+}
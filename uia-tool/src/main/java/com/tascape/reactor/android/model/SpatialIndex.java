@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.model;
+
+import com.android.uiautomator.stub.Rect;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * R-tree of node bounds of a window hierarchy, bulk-loaded with sort-tile-recursive packing, for hit-testing and
+ * region queries. Bounds are half-open, a node contains x if left &lt;= x &lt; right.
+ *
+ * @author linsong wang
+ */
+final class SpatialIndex {
+
+    private static final int FANOUT = 16;
+
+    /**
+     * Nodes with bounds, in document order.
+     */
+    private final UIANode[] nodes;
+
+    private final int[] depths;
+
+    private final Box root;
+
+    SpatialIndex(UIANode root) {
+        List<UIANode> ns = new ArrayList<>();
+        List<Integer> ds = new ArrayList<>();
+        collect(root, 0, ns, ds);
+        this.nodes = ns.toArray(new UIANode[ns.size()]);
+        this.depths = new int[ds.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = ds.get(i);
+        }
+
+        Box[] level = new Box[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            Rect r = nodes[i].getBounds();
+            level[i] = new Box(r.left, r.top, r.right, r.bottom, i, null);
+        }
+        while (level.length > 1) {
+            level = pack(level);
+        }
+        this.root = level.length == 0 ? null : level[0];
+    }
+
+    /**
+     * @param x      x on screen
+     * @param y      y on screen
+     * @param filter filter of nodes, null for all
+     *
+     * @return the deepest node at the point, the last one in document order if more than one, which is drawn on top;
+     *         or null
+     */
+    UIANode findDeepestAt(int x, int y, Predicate<UIANode> filter) {
+        List<Integer> hits = new ArrayList<>();
+        search(root, x, y, x + 1, y + 1, false, hits);
+        int best = -1;
+        for (int hit : hits) {
+            if ((filter == null || filter.test(nodes[hit]))
+                && (best < 0 || depths[hit] > depths[best] || depths[hit] == depths[best] && hit > best)) {
+                best = hit;
+            }
+        }
+        return best < 0 ? null : nodes[best];
+    }
+
+    /**
+     * @param rect   region on screen
+     * @param inside true for nodes inside region only, false for nodes overlapping region
+     *
+     * @return nodes in document order
+     */
+    List<UIANode> find(Rect rect, boolean inside) {
+        List<Integer> hits = new ArrayList<>();
+        search(root, rect.left, rect.top, rect.right, rect.bottom, inside, hits);
+        hits.sort(null);
+        List<UIANode> found = new ArrayList<>(hits.size());
+        for (int hit : hits) {
+            found.add(nodes[hit]);
+        }
+        return found;
+    }
+
+    private static void collect(UIANode node, int depth, List<UIANode> nodes, List<Integer> depths) {
+        Rect r = node.getBounds();
+        if (r != null) {
+            nodes.add(node);
+            depths.add(depth);
+        }
+        for (UIANode child : node.nodes()) {
+            collect(child, depth + 1, nodes, depths);
+        }
+    }
+
+    /**
+     * Packs boxes into parent boxes: sorts by center x into vertical slices, then each slice by center y, then takes
+     * runs of {@link #FANOUT}.
+     */
+    private static Box[] pack(Box[] boxes) {
+        int n = boxes.length;
+        int parents = (n + FANOUT - 1) / FANOUT;
+        int slices = (int) Math.ceil(Math.sqrt(parents));
+        int sliceSize = slices * FANOUT;
+        Arrays.sort(boxes, Comparator.comparingInt(b -> b.left + b.right));
+        List<Box> packed = new ArrayList<>(parents);
+        for (int s = 0; s < n; s += sliceSize) {
+            int end = Math.min(s + sliceSize, n);
+            Arrays.sort(boxes, s, end, Comparator.comparingInt(b -> b.top + b.bottom));
+            for (int i = s; i < end; i += FANOUT) {
+                packed.add(Box.of(Arrays.copyOfRange(boxes, i, Math.min(i + FANOUT, end))));
+            }
+        }
+        return packed.toArray(new Box[packed.size()]);
+    }
+
+    /**
+     * A node overlaps the region if it reaches past the edges into the region. A node is inside the region if it is
+     * within the edges, so boxes only touching the region are searched too, for nodes of zero width or height.
+     */
+    private void search(Box box, int left, int top, int right, int bottom, boolean inside, List<Integer> hits) {
+        if (box == null) {
+            return;
+        }
+        if (inside ? box.left > right || box.right < left || box.top > bottom || box.bottom < top
+            : box.left >= right || box.right <= left || box.top >= bottom || box.bottom <= top) {
+            return;
+        }
+        if (box.children == null) {
+            if (!inside || box.left >= left && box.top >= top && box.right <= right && box.bottom <= bottom) {
+                hits.add(box.node);
+            }
+            return;
+        }
+        for (Box child : box.children) {
+            search(child, left, top, right, bottom, inside, hits);
+        }
+    }
+
+    /**
+     * Bounds of a node, or of child boxes.
+     */
+    private static final class Box {
+        final int left;
+
+        final int top;
+
+        final int right;
+
+        final int bottom;
+
+        final int node;
+
+        final Box[] children;
+
+        Box(int left, int top, int right, int bottom, int node, Box[] children) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.node = node;
+            this.children = children;
+        }
+
+        static Box of(Box[] children) {
+            int l = Integer.MAX_VALUE;
+            int t = Integer.MAX_VALUE;
+            int r = Integer.MIN_VALUE;
+            int b = Integer.MIN_VALUE;
+            for (Box c : children) {
+                l = Math.min(l, c.left);
+                t = Math.min(t, c.top);
+                r = Math.max(r, c.right);
+                b = Math.max(b, c.bottom);
+            }
+            return new Box(l, t, r, b, -1, children);
+        }
+    }
+}
@@ -15,25 +15,25 @@
  */
 package com.tascape.reactor.android.model;
 
+import com.android.uiautomator.stub.HierarchyDelta;
 import com.android.uiautomator.stub.Rect;
 import com.tascape.reactor.android.driver.UiAutomatorDevice;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 /**
  *
@@ -42,34 +42,126 @@ import org.xml.sax.SAXException;
 public class UIA {
     private static final Logger LOG = LoggerFactory.getLogger(UIA.class);
 
-    public static WindowHierarchy parseHierarchy(File file, UiAutomatorDevice device) throws IOException,
-        SAXException,
-        ParserConfigurationException {
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, false);
+    }
+
+    public static WindowHierarchy parseHierarchy(File file, UiAutomatorDevice device) throws IOException {
         try (InputStream in = FileUtils.openInputStream(file)) {
             return parseHierarchy(in, device);
         }
     }
 
-    public static WindowHierarchy parseHierarchy(InputStream in, UiAutomatorDevice device) throws SAXException,
-        ParserConfigurationException, IOException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document document = builder.parse(in);
+    /**
+     * Parses window hierarchy XML in one pass with a StAX reader, with no DOM. Repeated values of class, package and
+     * resource-id share one string in the parsed hierarchy.
+     *
+     * @param in     XML of window hierarchy
+     * @param device device of nodes
+     *
+     * @return UI view hierarchy node tree
+     *
+     * @throws IOException if XML cannot be read or parsed
+     */
+    public static WindowHierarchy parseHierarchy(InputStream in, UiAutomatorDevice device) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            Map<String, String> strings = new HashMap<>();
+            String rotation = null;
+            UIANode root = null;
+            UIANode current = null;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        String name = reader.getLocalName();
+                        if (UIANode.TAG_NAME.equals(name)) {
+                            UIANode uiNode = parseNode(reader, strings);
+                            if (current != null) {
+                                current.addNode(uiNode);
+                            } else if (root == null) {
+                                root = uiNode;
+                            } else {
+                                // only the first node under hierarchy is kept
+                                skip(reader);
+                                break;
+                            }
+                            current = uiNode;
+                        } else if (WindowHierarchy.TAG_NAME.equals(name)) {
+                            rotation = reader.getAttributeValue(null, "rotation");
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (current != null && UIANode.TAG_NAME.equals(reader.getLocalName())) {
+                            current = current.getParent();
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (root == null) {
+                throw new UIAException("Cannot parse view hierarchy");
+            }
+            WindowHierarchy hierarchy = new WindowHierarchy(root);
+            hierarchy.setRotation(rotation == null ? "" : rotation);
+            LOG.debug("{}", hierarchy);
+            hierarchy.setUiAutomatorDevice(device);
+            return hierarchy;
+        } catch (XMLStreamException ex) {
+            throw new IOException("Cannot parse view hierarchy", ex);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ex) {
+                    LOG.trace("", ex);
+                }
+            }
+        }
+    }
 
-        Element doc = document.getDocumentElement();
-        NodeList nl = doc.getChildNodes();
-        for (int i = 0; i < nl.getLength(); i++) {
-            Node node = nl.item(i);
-            UIANode uiNode = parseNode(node);
-            if (uiNode != null) {
-                WindowHierarchy hierarchy = new WindowHierarchy(uiNode);
-                hierarchy.setRotation(doc.getAttribute("rotation"));
-                LOG.debug("{}", hierarchy);
-                hierarchy.setUiAutomatorDevice(device);
-                return hierarchy;
+    /**
+     * Builds window hierarchy from nodes by path, such as the ones kept from {@link HierarchyDelta}, with no XML.
+     *
+     * @param nodes    nodes by path, in pre-order
+     * @param rotation display rotation
+     * @param device   device of nodes
+     *
+     * @return UI view hierarchy node tree
+     */
+    public static WindowHierarchy buildHierarchy(SortedMap<String, String[]> nodes, String rotation,
+        UiAutomatorDevice device) {
+        Map<String, UIANode> built = new HashMap<>(nodes.size() * 2);
+        UIANode root = null;
+        for (Map.Entry<String, String[]> entry : nodes.entrySet()) {
+            String[] values = entry.getValue();
+            UIANode uiNode = newNode(values[HierarchyDelta.INDEX_CLASS]);
+            for (int i = 0; i < values.length; i++) {
+                uiNode.setAttribute(HierarchyDelta.ATTRIBUTES[i], values[i]);
+            }
+            String path = entry.getKey();
+            UIANode parent = built.get(HierarchyDelta.parent(path));
+            if (parent != null) {
+                parent.addNode(uiNode);
+            } else if (root == null) {
+                root = uiNode;
+            } else {
+                throw new UIAException("Cannot find parent of node " + HierarchyDelta.toString(path));
             }
+            built.put(path, uiNode);
         }
-        throw new UIAException("Cannot parse view hierarchy");
+        if (root == null) {
+            throw new UIAException("Cannot build view hierarchy");
+        }
+        WindowHierarchy hierarchy = new WindowHierarchy(root);
+        hierarchy.setRotation(rotation);
+        hierarchy.setUiAutomatorDevice(device);
+        return hierarchy;
     }
 
     public static UIANode parseNode(Node node) {
@@ -98,7 +190,98 @@ public class UIA {
         return uiNode;
     }
 
-    private static UIANode newNode(String klass) {
+    /**
+     * Parses window hierarchy XML in one pass straight into arrays, with no node objects, see
+     * {@link CompactHierarchy}.
+     *
+     * @param in XML of window hierarchy
+     *
+     * @return compact window hierarchy
+     *
+     * @throws IOException if XML cannot be read or parsed
+     */
+    public static CompactHierarchy parseCompactHierarchy(InputStream in) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            CompactHierarchy.Builder builder = new CompactHierarchy.Builder();
+            int current = CompactHierarchy.NONE;
+            boolean done = false;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        String name = reader.getLocalName();
+                        if (UIANode.TAG_NAME.equals(name)) {
+                            if (done) {
+                                // only the first node under hierarchy is kept
+                                skip(reader);
+                                break;
+                            }
+                            current = builder.add(current);
+                            for (int i = 0, j = reader.getAttributeCount(); i < j; i++) {
+                                builder.set(current, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                            }
+                        } else if (WindowHierarchy.TAG_NAME.equals(name)) {
+                            String rotation = reader.getAttributeValue(null, "rotation");
+                            builder.setRotation(rotation == null ? "" : rotation);
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (current != CompactHierarchy.NONE && UIANode.TAG_NAME.equals(reader.getLocalName())) {
+                            current = builder.getParent(current);
+                            done = current == CompactHierarchy.NONE;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return builder.build();
+        } catch (XMLStreamException ex) {
+            throw new IOException("Cannot parse view hierarchy", ex);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ex) {
+                    LOG.trace("", ex);
+                }
+            }
+        }
+    }
+
+    private static UIANode parseNode(XMLStreamReader reader, Map<String, String> strings) {
+        String klass = reader.getAttributeValue(null, "class");
+        UIANode uiNode = newNode(klass == null ? "" : klass);
+        for (int i = 0, j = reader.getAttributeCount(); i < j; i++) {
+            String name = reader.getAttributeLocalName(i);
+            String value = reader.getAttributeValue(i);
+            switch (name) {
+                case "class":
+                case "package":
+                case "resource-id":
+                    String shared = strings.putIfAbsent(value, value);
+                    uiNode.setAttribute(name, shared == null ? value : shared);
+                    break;
+                default:
+                    uiNode.setAttribute(name, value);
+            }
+        }
+        return uiNode;
+    }
+
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        for (int depth = 1; depth > 0;) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    static UIANode newNode(String klass) {
         switch (klass) {
             case ActionMenuView.CLASS_ANME:
                 return new ActionMenuView();
@@ -216,19 +399,44 @@ public class UIA {
         }
     }
 
+    /**
+     * Parses bounds in the format of uiautomator dump, such as [0,0][1080,1812].
+     *
+     * @param bounds bounds text
+     *
+     * @return bounds
+     *
+     * @throws UIAException if bounds text is not valid
+     */
     public static Rect parseBounds(String bounds) {
-        Pattern pattern = Pattern.compile("\\[(\\d+?),(\\d+?)\\]\\[(\\d+?),(\\d+?)\\]");
-        Matcher matcher = pattern.matcher(bounds);
-        if (matcher.matches()) {
-            Rect rect = new Rect();
-            rect.left = Integer.parseInt(matcher.group(1));
-            rect.top = Integer.parseInt(matcher.group(2));
-            rect.right = Integer.parseInt(matcher.group(3));
-            rect.bottom = Integer.parseInt(matcher.group(4));
-
-            return rect;
+        int[] values = new int[4];
+        int p = 0;
+        int n = bounds.length();
+        for (int i = 0; i < 4; i++) {
+            if (p >= n || bounds.charAt(p) != (i % 2 == 0 ? '[' : ',')) {
+                throw new UIAException("Cannot parse bounds " + bounds);
+            }
+            p++;
+            int start = p;
+            int value = 0;
+            while (p < n && bounds.charAt(p) >= '0' && bounds.charAt(p) <= '9') {
+                value = value * 10 + bounds.charAt(p++) - '0';
+            }
+            if (p == start) {
+                throw new UIAException("Cannot parse bounds " + bounds);
+            }
+            values[i] = value;
+            if (i % 2 == 1) {
+                if (p >= n || bounds.charAt(p) != ']') {
+                    throw new UIAException("Cannot parse bounds " + bounds);
+                }
+                p++;
+            }
+        }
+        if (p != n) {
+            throw new UIAException("Cannot parse bounds " + bounds);
         }
-        throw new UIAException("Cannot parse bounds " + bounds);
+        return new Rect(values[0], values[1], values[2], values[3]);
     }
 
     public static void main(String[] args) throws Exception {
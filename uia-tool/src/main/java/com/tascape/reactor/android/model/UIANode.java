@@ -20,6 +20,7 @@ import com.android.uiautomator.stub.Point;
 import com.android.uiautomator.stub.PointerCoords;
 import com.android.uiautomator.stub.Rect;
 import com.android.uiautomator.stub.UiObjectNotFoundException;
+import com.android.uiautomator.stub.UiObjectResult;
 import com.android.uiautomator.stub.UiSelector;
 import com.tascape.reactor.android.driver.UiAutomatorDevice;
 import java.util.ArrayList;
@@ -161,8 +162,15 @@ public class UIANode implements IUiObject {
         return nodes.toArray(new UIANode[0]);
     }
 
+    /**
+     * Searches this node and descendants, see {@link WindowHierarchy#findByResourceId(String)} for repeated lookups.
+     *
+     * @param resourceId resource id
+     *
+     * @return first node in document order, or null
+     */
     public UIANode findByResourceId(String resourceId) {
-        if (this.resourceId.equals(resourceId)) {
+        if (Objects.equals(this.resourceId, resourceId)) {
             return this;
         }
         for (UIANode n : nodes) {
@@ -174,8 +182,15 @@ public class UIANode implements IUiObject {
         return null;
     }
 
+    /**
+     * Searches this node and descendants, see {@link WindowHierarchy#findByText(String)} for repeated lookups.
+     *
+     * @param text text
+     *
+     * @return first node in document order, or null
+     */
     public UIANode findByResourceText(String text) {
-        if (this.text.equals(text)) {
+        if (Objects.equals(this.text, text)) {
             return this;
         }
         for (UIANode n : nodes) {
@@ -204,7 +219,8 @@ public class UIANode implements IUiObject {
             .put("long-clickable", isLongClickable())
             .put("password", isPassword())
             .put("selected", isSelected())
-            .put("bounds", String.format("[%d,%d][%d,%d]", bounds.left, bounds.top, bounds.right, bounds.bottom))
+            .put("bounds", bounds == null ? null
+                : String.format("[%d,%d][%d,%d]", bounds.left, bounds.top, bounds.right, bounds.bottom))
             .put("index", getIndex());
 
         if (!nodes.isEmpty()) {
@@ -338,6 +354,71 @@ public class UIANode implements IUiObject {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    /**
+     * Not supported yet.
+     * @param selector selector
+     */
+    @Override
+    public boolean exists(UiSelector selector) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    /**
+     * Not supported yet.
+     * @param selector selector
+     * @param timeout timeout
+     */
+    @Override
+    public boolean waitForExists(UiSelector selector, long timeout) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    /**
+     * Not supported yet.
+     * @param selector selector
+     */
+    @Override
+    public UiObjectResult click(UiSelector selector) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    /**
+     * Not supported yet.
+     * @param selector selector
+     */
+    @Override
+    public UiObjectResult getText(UiSelector selector) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    /**
+     * Not supported yet.
+     * @param selector selector
+     * @param text text
+     */
+    @Override
+    public UiObjectResult setText(UiSelector selector, String text) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    /**
+     * Not supported yet.
+     * @param selector selector
+     */
+    @Override
+    public UiObjectResult clearTextField(UiSelector selector) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    /**
+     * Not supported yet.
+     * @param selector selector
+     */
+    @Override
+    public UiObjectResult getBounds(UiSelector selector) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     /**
      * Not supported yet.
      */
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * CSS-like query of nodes, evaluated on a {@link WindowHierarchy} snapshot on host, with no call to device. A query
+ * is compiled once, with regular expressions compiled then, and can be run on many snapshots.
+ *
+ * A query is steps separated by a space for descendant, or by &gt; for child. A step is a class name, simple or
+ * full, or * for any class, followed by predicates in brackets:
+ * <ul>
+ * <li>[resource-id=value], exact match, also for text, content-desc, class, package and index</li>
+ * <li>[text~=regex], whole value matches a regular expression</li>
+ * <li>[text*=value], value contains a string</li>
+ * <li>[text^=value], value starts with a string</li>
+ * <li>[clickable] or [clickable=false], also for the other boolean attributes</li>
+ * </ul>
+ * Values with spaces or brackets are quoted, such as [text~="Item \\d+"].
+ *
+ * <pre>
+ * UIAQuery items = UIAQuery.compile("ListView &gt; LinearLayout[clickable] TextView[text~='Item \\d+']");
+ * List&lt;UIANode&gt; nodes = items.find(device.getWindowHierarchy());
+ * </pre>
+ *
+ * Exact matches of resource-id, text, content-desc, full class name and package in the last step are looked up in
+ * the attribute indexes of the hierarchy, instead of checking all nodes.
+ *
+ * @author linsong wang
+ */
+public final class UIAQuery {
+
+    private static final int MAX_CACHED = 256;
+
+    private static final Map<String, UIAQuery> CACHE = Collections.synchronizedMap(
+        new LinkedHashMap<String, UIAQuery>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, UIAQuery> eldest) {
+                return size() > MAX_CACHED;
+            }
+        });
+
+    /**
+     * Indexed attributes, in order of preference when a step has more than one.
+     */
+    private static final List<String> INDEXED = Collections.unmodifiableList(Arrays.asList(
+        "resource-id", "text", "content-desc", "class", "package"));
+
+    private final String query;
+
+    private final Step[] steps;
+
+    private UIAQuery(String query, Step[] steps) {
+        this.query = query;
+        this.steps = steps;
+    }
+
+    /**
+     * Compiles a query, or gets it from the cache of queries compiled recently.
+     *
+     * @param query query text
+     *
+     * @return compiled query
+     *
+     * @throws UIAException if query is not valid
+     */
+    public static UIAQuery compile(String query) {
+        UIAQuery compiled = CACHE.get(query);
+        if (compiled == null) {
+            compiled = new Parser(query).parse();
+            CACHE.put(query, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * @param hierarchy window hierarchy
+     *
+     * @return matched nodes in document order, empty if none
+     */
+    public List<UIANode> find(WindowHierarchy hierarchy) {
+        Step last = steps[steps.length - 1];
+        if (last.indexAttribute == null) {
+            return findAll(hierarchy, this).get(0);
+        }
+        List<UIANode> found = new ArrayList<>();
+        for (UIANode node : lookup(hierarchy, last.indexAttribute, last.indexValue)) {
+            if (matches(node)) {
+                found.add(node);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param hierarchy window hierarchy
+     *
+     * @return first matched node in document order, or null
+     */
+    public UIANode findFirst(WindowHierarchy hierarchy) {
+        List<UIANode> found = find(hierarchy);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * Runs several queries, indexed ones with indexes, and the others together in one pass over all nodes.
+     *
+     * @param hierarchy window hierarchy
+     * @param queries   compiled queries
+     *
+     * @return matched nodes of each query, in the order of queries
+     */
+    public static List<List<UIANode>> findAll(WindowHierarchy hierarchy, UIAQuery... queries) {
+        List<List<UIANode>> found = new ArrayList<>(queries.length);
+        List<Integer> scanned = new ArrayList<>();
+        for (int i = 0; i < queries.length; i++) {
+            if (queries[i].getIndexAttribute() == null) {
+                found.add(new ArrayList<>());
+                scanned.add(i);
+            } else {
+                found.add(queries[i].find(hierarchy));
+            }
+        }
+        if (scanned.isEmpty()) {
+            return found;
+        }
+        List<UIANode> stack = new ArrayList<>();
+        stack.add(hierarchy.getRoot());
+        while (!stack.isEmpty()) {
+            UIANode node = stack.remove(stack.size() - 1);
+            for (int i : scanned) {
+                if (queries[i].matches(node)) {
+                    found.get(i).add(node);
+                }
+            }
+            UIANode[] children = node.nodes();
+            for (int c = children.length - 1; c >= 0; c--) {
+                stack.add(children[c]);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param node node
+     *
+     * @return true if node matches the last step, and its ancestors match the steps before
+     */
+    public boolean matches(UIANode node) {
+        int last = steps.length - 1;
+        return steps[last].test(node) && matches(node, last);
+    }
+
+    @Override
+    public String toString() {
+        return query;
+    }
+
+    /**
+     * @return attribute looked up in the indexes of hierarchy, or null if all nodes are checked
+     */
+    String getIndexAttribute() {
+        return steps[steps.length - 1].indexAttribute;
+    }
+
+    /**
+     * Checks steps before a step, from right to left, node matches the step already.
+     */
+    private boolean matches(UIANode node, int step) {
+        if (step == 0) {
+            return true;
+        }
+        Step before = steps[step - 1];
+        UIANode parent = node.getParent();
+        if (steps[step].child) {
+            return parent != null && before.test(parent) && matches(parent, step - 1);
+        }
+        for (; parent != null; parent = parent.getParent()) {
+            if (before.test(parent) && matches(parent, step - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<UIANode> lookup(WindowHierarchy hierarchy, String attribute, String value) {
+        switch (attribute) {
+            case "resource-id":
+                return hierarchy.findByResourceId(value);
+            case "text":
+                return hierarchy.findByText(value);
+            case "content-desc":
+                return hierarchy.findByContentDesc(value);
+            case "class":
+                return hierarchy.findByClass(value);
+            default:
+                return hierarchy.findByPackage(value);
+        }
+    }
+
+    /**
+     * One step, with the combinator to the step before.
+     */
+    private static final class Step {
+        /**
+         * True if node of this step is a child of node of step before, false for any descendant.
+         */
+        final boolean child;
+
+        final List<Predicate<UIANode>> predicates = new ArrayList<>();
+
+        String indexAttribute;
+
+        String indexValue;
+
+        Step(boolean child) {
+            this.child = child;
+        }
+
+        boolean test(UIANode node) {
+            for (Predicate<UIANode> predicate : predicates) {
+                if (!predicate.test(node)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void index(String attribute, String value) {
+            if (indexAttribute == null || INDEXED.indexOf(attribute) < INDEXED.indexOf(indexAttribute)) {
+                indexAttribute = attribute;
+                indexValue = value;
+            }
+        }
+    }
+
+    /**
+     * Parses query text into steps.
+     */
+    private static final class Parser {
+        private final String query;
+
+        private int p;
+
+        Parser(String query) {
+            this.query = Objects.requireNonNull(query, "query");
+        }
+
+        UIAQuery parse() {
+            List<Step> steps = new ArrayList<>();
+            boolean child = false;
+            skipSpaces();
+            while (true) {
+                steps.add(step(child));
+                int start = p;
+                skipSpaces();
+                if (p == query.length()) {
+                    break;
+                }
+                if (query.charAt(p) == '>') {
+                    p++;
+                    skipSpaces();
+                    child = true;
+                } else if (p > start) {
+                    child = false;
+                } else {
+                    throw error("expect space or >");
+                }
+            }
+            return new UIAQuery(query, steps.toArray(new Step[steps.size()]));
+        }
+
+        private Step step(boolean child) {
+            Step step = new Step(child);
+            int start = p;
+            while (p < query.length() && (Character.isJavaIdentifierPart(query.charAt(p)) || query.charAt(p) == '.')) {
+                p++;
+            }
+            if (p > start) {
+                String type = query.substring(start, p);
+                if (type.indexOf('.') >= 0) {
+                    step.predicates.add(n -> type.equals(n.getKlass()));
+                    step.index("class", type);
+                } else {
+                    String suffix = "." + type;
+                    step.predicates.add(n -> n.getKlass() != null
+                        && (n.getKlass().endsWith(suffix) || n.getKlass().equals(type)));
+                }
+            } else if (p < query.length() && query.charAt(p) == '*') {
+                p++;
+            } else if (p == query.length() || query.charAt(p) != '[') {
+                throw error("expect class name, * or [");
+            }
+            while (p < query.length() && query.charAt(p) == '[') {
+                p++;
+                predicate(step);
+            }
+            return step;
+        }
+
+        private void predicate(Step step) {
+            skipSpaces();
+            int start = p;
+            while (p < query.length() && (Character.isLetter(query.charAt(p)) || query.charAt(p) == '-')) {
+                p++;
+            }
+            String name = query.substring(start, p);
+            skipSpaces();
+            String op = null;
+            String value = null;
+            if (p < query.length() && query.charAt(p) != ']') {
+                if (query.startsWith("=", p)) {
+                    op = "=";
+                } else if (p + 1 < query.length() && query.charAt(p + 1) == '='
+                    && "~*^".indexOf(query.charAt(p)) >= 0) {
+                    op = query.substring(p, p + 2);
+                } else {
+                    throw error("expect =, ~=, *= or ^=");
+                }
+                p += op.length();
+                skipSpaces();
+                value = value();
+                skipSpaces();
+            }
+            if (p == query.length() || query.charAt(p) != ']') {
+                throw error("expect ]");
+            }
+            p++;
+
+            Function<UIANode, String> getter = getter(name);
+            if (getter != null) {
+                if (op == null) {
+                    throw error("expect a value of " + name);
+                }
+                step.predicates.add(match(getter, op, value));
+                if ("=".equals(op) && !"index".equals(name)) {
+                    step.index(name, value);
+                }
+                return;
+            }
+            Predicate<UIANode> flag = flag(name);
+            if (flag == null) {
+                throw error("unknown attribute " + name);
+            }
+            if (op == null || "=".equals(op) && "true".equals(value)) {
+                step.predicates.add(flag);
+            } else if ("=".equals(op) && "false".equals(value)) {
+                step.predicates.add(flag.negate());
+            } else {
+                throw error("expect true or false of " + name);
+            }
+        }
+
+        private Predicate<UIANode> match(Function<UIANode, String> getter, String op, String value) {
+            switch (op) {
+                case "~=":
+                    Pattern pattern;
+                    try {
+                        pattern = Pattern.compile(value);
+                    } catch (PatternSyntaxException ex) {
+                        throw error("invalid regular expression " + ex.getDescription());
+                    }
+                    return n -> {
+                        String v = getter.apply(n);
+                        return v != null && pattern.matcher(v).matches();
+                    };
+                case "*=":
+                    return n -> {
+                        String v = getter.apply(n);
+                        return v != null && v.contains(value);
+                    };
+                case "^=":
+                    return n -> {
+                        String v = getter.apply(n);
+                        return v != null && v.startsWith(value);
+                    };
+                default:
+                    return n -> value.equals(getter.apply(n));
+            }
+        }
+
+        private static Function<UIANode, String> getter(String name) {
+            switch (name) {
+                case "resource-id":
+                    return UIANode::getResourceId;
+                case "text":
+                    return UIANode::getText;
+                case "content-desc":
+                    return UIANode::getContentDesc;
+                case "class":
+                    return UIANode::getKlass;
+                case "package":
+                    return UIANode::getPakkage;
+                case "index":
+                    return n -> Integer.toString(n.getIndex());
+                default:
+                    return null;
+            }
+        }
+
+        private static Predicate<UIANode> flag(String name) {
+            switch (name) {
+                case "checkable":
+                    return UIANode::isCheckable;
+                case "checked":
+                    return UIANode::isChecked;
+                case "clickable":
+                    return UIANode::isClickable;
+                case "enabled":
+                    return UIANode::isEnabled;
+                case "focusable":
+                    return UIANode::isFocusable;
+                case "focused":
+                    return UIANode::isFocused;
+                case "scrollable":
+                    return UIANode::isScrollable;
+                case "long-clickable":
+                    return UIANode::isLongClickable;
+                case "password":
+                    return UIANode::isPassword;
+                case "selected":
+                    return UIANode::isSelected;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Reads a quoted value, with backslash escaping a quote or a backslash, or an unquoted value up to ].
+         */
+        private String value() {
+            if (p < query.length() && (query.charAt(p) == '"' || query.charAt(p) == '\'')) {
+                char quote = query.charAt(p++);
+                StringBuilder sb = new StringBuilder();
+                while (p < query.length() && query.charAt(p) != quote) {
+                    char c = query.charAt(p++);
+                    if (c == '\\' && p < query.length()
+                        && (query.charAt(p) == quote || query.charAt(p) == '\\')) {
+                        c = query.charAt(p++);
+                    }
+                    sb.append(c);
+                }
+                if (p == query.length()) {
+                    throw error("expect " + quote);
+                }
+                p++;
+                return sb.toString();
+            }
+            int start = p;
+            while (p < query.length() && query.charAt(p) != ']') {
+                p++;
+            }
+            return query.substring(start, p).trim();
+        }
+
+        private void skipSpaces() {
+            while (p < query.length() && Character.isWhitespace(query.charAt(p))) {
+                p++;
+            }
+        }
+
+        private UIAException error(String message) {
+            return new UIAException("Invalid query '" + query + "' at " + p + ", " + message);
+        }
+    }
+}
@@ -15,7 +15,15 @@
  */
 package com.tascape.reactor.android.model;
 
+import com.android.uiautomator.stub.Rect;
 import com.tascape.reactor.android.driver.UiAutomatorDevice;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import org.json.JSONObject;
 
 /**
@@ -30,6 +38,15 @@ public class WindowHierarchy {
 
     private String rotation;
 
+    /**
+     * Nodes by attribute value, of each attribute looked up so far.
+     */
+    private final Map<String, Map<String, List<UIANode>>> indexes = new ConcurrentHashMap<>();
+
+    private volatile SpatialIndex spatialIndex;
+
+    private final Object spatialLock = new Object();
+
     WindowHierarchy(UIANode root) {
         this.root = root;
     }
@@ -42,6 +59,109 @@ public class WindowHierarchy {
         return root;
     }
 
+    /**
+     * @param resourceId resource id
+     *
+     * @return nodes of the resource id in document order, empty if none
+     */
+    public List<UIANode> findByResourceId(String resourceId) {
+        return find("resource-id", UIANode::getResourceId, resourceId);
+    }
+
+    /**
+     * @param text text
+     *
+     * @return nodes of the text in document order, empty if none
+     */
+    public List<UIANode> findByText(String text) {
+        return find("text", UIANode::getText, text);
+    }
+
+    /**
+     * @param contentDesc content description
+     *
+     * @return nodes of the content description in document order, empty if none
+     */
+    public List<UIANode> findByContentDesc(String contentDesc) {
+        return find("content-desc", UIANode::getContentDesc, contentDesc);
+    }
+
+    /**
+     * @param klass class name, such as android.widget.Button
+     *
+     * @return nodes of the class in document order, empty if none
+     */
+    public List<UIANode> findByClass(String klass) {
+        return find("class", UIANode::getKlass, klass);
+    }
+
+    /**
+     * @param pakkage package name
+     *
+     * @return nodes of the package in document order, empty if none
+     */
+    public List<UIANode> findByPackage(String pakkage) {
+        return find("package", UIANode::getPakkage, pakkage);
+    }
+
+    /**
+     * @param query query of nodes, see {@link UIAQuery}
+     *
+     * @return matched nodes in document order, empty if none
+     *
+     * @throws UIAException if query is not valid
+     */
+    public List<UIANode> query(String query) {
+        return UIAQuery.compile(query).find(this);
+    }
+
+    /**
+     * Finds the node at a point, such as the one a tap hits.
+     *
+     * @param x x on screen
+     * @param y y on screen
+     *
+     * @return the deepest node whose bounds contain the point, or null
+     */
+    public UIANode findDeepestAt(int x, int y) {
+        return spatialIndex().findDeepestAt(x, y, null);
+    }
+
+    /**
+     * @param x x on screen
+     * @param y y on screen
+     *
+     * @return the deepest clickable node whose bounds contain the point, or null
+     */
+    public UIANode findClickableAt(int x, int y) {
+        return spatialIndex().findDeepestAt(x, y, UIANode::isClickable);
+    }
+
+    /**
+     * @param rect region on screen
+     *
+     * @return nodes whose bounds overlap the region, in document order
+     */
+    public List<UIANode> findOverlapping(Rect rect) {
+        return spatialIndex().find(rect, false);
+    }
+
+    /**
+     * @param rect region on screen
+     *
+     * @return nodes whose bounds are inside the region, in document order
+     */
+    public List<UIANode> findInside(Rect rect) {
+        return spatialIndex().find(rect, true);
+    }
+
+    /**
+     * @return copy of this hierarchy as arrays, to keep with little heap
+     */
+    public CompactHierarchy toCompact() {
+        return CompactHierarchy.of(this);
+    }
+
     @Override
     public String toString() {
         return TAG_NAME + ", rotation=\"" + rotation + "\"";
@@ -55,6 +175,52 @@ public class WindowHierarchy {
         return json;
     }
 
+    /**
+     * Looks up an index of an attribute, which is built on first lookup, in one pass over all nodes, and kept with
+     * this hierarchy.
+     */
+    private List<UIANode> find(String attribute, Function<UIANode, String> getter, String value) {
+        Map<String, List<UIANode>> index = indexes.computeIfAbsent(attribute, a -> index(getter));
+        List<UIANode> nodes = index.get(value);
+        return nodes == null ? Collections.emptyList() : nodes;
+    }
+
+    private Map<String, List<UIANode>> index(Function<UIANode, String> getter) {
+        Map<String, List<UIANode>> index = new HashMap<>();
+        List<UIANode> stack = new ArrayList<>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            UIANode node = stack.remove(stack.size() - 1);
+            String value = getter.apply(node);
+            if (value != null) {
+                index.computeIfAbsent(value, v -> new ArrayList<>(1)).add(node);
+            }
+            UIANode[] children = node.nodes();
+            for (int i = children.length - 1; i >= 0; i--) {
+                stack.add(children[i]);
+            }
+        }
+        index.replaceAll((v, nodes) -> Collections.unmodifiableList(nodes));
+        return index;
+    }
+
+    /**
+     * Builds the R-tree of node bounds on first query, and keeps it with this hierarchy.
+     */
+    private SpatialIndex spatialIndex() {
+        SpatialIndex index = this.spatialIndex;
+        if (index == null) {
+            synchronized (spatialLock) {
+                index = this.spatialIndex;
+                if (index == null) {
+                    index = new SpatialIndex(root);
+                    this.spatialIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
     void setUiAutomatorDevice(UiAutomatorDevice device) {
         this.root.setUiAutomatorDevice(device);
     }
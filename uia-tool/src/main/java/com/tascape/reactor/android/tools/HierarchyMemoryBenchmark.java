@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.tools;
+
+import com.tascape.reactor.android.model.CompactHierarchy;
+import com.tascape.reactor.android.model.UIA;
+import com.tascape.reactor.android.model.UIANode;
+import com.tascape.reactor.android.model.WindowHierarchy;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compares heap and traversal time of window hierarchy kept as node objects, and kept as arrays, see
+ * {@link CompactHierarchy}. A big hierarchy is made of copies of the sample hierarchy.xml under one root.
+ *
+ * Usage: HierarchyMemoryBenchmark [copies of sample] [hierarchies kept], default is 50 and 20. Run with a fixed heap,
+ * such as -Xms1g -Xmx1g, for stable numbers.
+ *
+ * @author linsong wang
+ */
+public class HierarchyMemoryBenchmark {
+
+    private static final String SAMPLE = "/com/tascape/qa/th/android/model/hierarchy.xml";
+
+    public static void main(String[] args) throws Exception {
+        int copies = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int kept = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        byte[] xml = sample(copies);
+
+        List<WindowHierarchy> trees = new ArrayList<>();
+        long before = used();
+        for (int i = 0; i < kept; i++) {
+            trees.add(UIA.parseHierarchy(new ByteArrayInputStream(xml), null));
+        }
+        long treeBytes = (used() - before) / kept;
+
+        List<CompactHierarchy> compacts = new ArrayList<>();
+        before = used();
+        for (int i = 0; i < kept; i++) {
+            compacts.add(UIA.parseCompactHierarchy(new ByteArrayInputStream(xml)));
+        }
+        long compactBytes = (used() - before) / kept;
+
+        int nodes = compacts.get(0).size();
+        System.out.printf("%d bytes of XML, %d nodes%n", xml.length, nodes);
+        System.out.printf("objects %9d bytes/hierarchy, %5d bytes/node%n", treeBytes, treeBytes / nodes);
+        System.out.printf("arrays  %9d bytes/hierarchy, %5d bytes/node%n", compactBytes, compactBytes / nodes);
+
+        WindowHierarchy tree = trees.get(0);
+        CompactHierarchy compact = compacts.get(0);
+        int iterations = 2000;
+        for (int round = 0; round < 2; round++) {
+            System.out.println(round == 0 ? "warm up" : "measure");
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < iterations; i++) {
+                found += countClickable(tree.getRoot());
+            }
+            report("objects", System.nanoTime() - start, iterations, found);
+
+            start = System.nanoTime();
+            found = 0;
+            for (int i = 0; i < iterations; i++) {
+                found += countClickable(compact);
+            }
+            report("arrays ", System.nanoTime() - start, iterations, found);
+        }
+        // keeps all hierarchies reachable till here
+        System.out.printf("%d hierarchies kept%n", trees.size() + compacts.size());
+    }
+
+    /**
+     * Puts copies of the sample root node under one root node.
+     */
+    private static byte[] sample(int copies) throws Exception {
+        String xml;
+        try (InputStream in = HierarchyMemoryBenchmark.class.getResourceAsStream(SAMPLE)) {
+            xml = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        String node = xml.substring(xml.indexOf("<node"), xml.lastIndexOf("</hierarchy>"));
+        StringBuilder sb = new StringBuilder("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>")
+            .append("<hierarchy rotation=\"0\"><node index=\"0\" class=\"android.widget.FrameLayout\"")
+            .append(" bounds=\"[0,0][1080,1920]\">");
+        for (int i = 0; i < copies; i++) {
+            sb.append(node);
+        }
+        sb.append("</node></hierarchy>");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int countClickable(UIANode node) {
+        int n = node.isClickable() ? 1 : 0;
+        for (UIANode child : node.nodes()) {
+            n += countClickable(child);
+        }
+        return n;
+    }
+
+    private static int countClickable(CompactHierarchy compact) {
+        int n = 0;
+        for (int i = 0, size = compact.size(); i < size; i++) {
+            if (compact.isClickable(i)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static long used() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, long nanos, int iterations, int found) {
+        System.out.printf("%s %9.1f us/traversal, %d clickable%n", name, nanos / 1000.0 / iterations,
+            found / iterations);
+    }
+}
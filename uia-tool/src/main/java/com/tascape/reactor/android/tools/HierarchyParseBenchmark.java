@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.tools;
+
+import com.tascape.reactor.android.model.UIA;
+import com.tascape.reactor.android.model.UIANode;
+import com.tascape.reactor.android.model.WindowHierarchy;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compares parsing window hierarchy XML with a DOM, as done before, and with the streaming parser of
+ * {@link UIA#parseHierarchy(InputStream, com.tascape.reactor.android.driver.UiAutomatorDevice)}, in memory, so only
+ * the cost of parsing is measured.
+ *
+ * Usage: HierarchyParseBenchmark [xml file] [iterations], default is the sample hierarchy.xml and 2000.
+ *
+ * @author linsong wang
+ */
+public class HierarchyParseBenchmark {
+
+    private static final String SAMPLE = "/com/tascape/qa/th/android/model/hierarchy.xml";
+
+    public static void main(String[] args) throws Exception {
+        byte[] xml;
+        if (args.length > 0) {
+            xml = Files.readAllBytes(new File(args[0]).toPath());
+        } else {
+            try (InputStream in = HierarchyParseBenchmark.class.getResourceAsStream(SAMPLE)) {
+                xml = IOUtils.toByteArray(in);
+            }
+        }
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int nodes = count(UIA.parseHierarchy(new ByteArrayInputStream(xml), null).getRoot());
+        System.out.printf("%d bytes, %d nodes%n", xml.length, nodes);
+
+        for (int round = 0; round < 2; round++) {
+            System.out.println(round == 0 ? "warm up" : "measure");
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                parseDom(xml);
+            }
+            report("dom   ", System.nanoTime() - start, iterations, nodes);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                UIA.parseHierarchy(new ByteArrayInputStream(xml), null);
+            }
+            report("stream", System.nanoTime() - start, iterations, nodes);
+        }
+    }
+
+    /**
+     * Parses as before, a new factory and a DOM for each dump, then nodes from the DOM.
+     */
+    private static UIANode parseDom(byte[] xml) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new ByteArrayInputStream(xml));
+        NodeList nl = document.getDocumentElement().getChildNodes();
+        for (int i = 0; i < nl.getLength(); i++) {
+            Node node = nl.item(i);
+            UIANode uiNode = UIA.parseNode(node);
+            if (uiNode != null) {
+                return uiNode;
+            }
+        }
+        return null;
+    }
+
+    private static int count(UIANode node) {
+        int n = 1;
+        for (UIANode child : node.nodes()) {
+            n += count(child);
+        }
+        return n;
+    }
+
+    private static void report(String name, long nanos, int iterations, int nodes) {
+        System.out.printf("%s %9.1f us/dump, %6.2f us/node%n", name, nanos / 1000.0 / iterations,
+            nanos / 1000.0 / iterations / nodes);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.tools;
+
+import com.android.uiautomator.stub.IUiDevice;
+import com.android.uiautomator.stub.IUiObject;
+import com.android.uiautomator.stub.Rect;
+import com.android.uiautomator.stub.RpcClient;
+import com.android.uiautomator.stub.RpcServer;
+import com.android.uiautomator.stub.UiObjectResult;
+import com.android.uiautomator.stub.UiSelector;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.net.Client;
+import net.sf.lipermi.net.Server;
+
+/**
+ * Compares LipeRMI and binary rpc of uiautomator stubs, on loopback against in-process stubs which return canned
+ * values, so only the cost of encoding and round trips is measured. Bytes on the wire are counted by a relay in
+ * between.
+ *
+ * Usage: RpcBenchmark [iterations], default is 10000.
+ *
+ * @author linsong wang
+ */
+public class RpcBenchmark {
+
+    private static final int RMI_PORT = 28998;
+
+    private static final int RPC_PORT = 28999;
+
+    private static final UiSelector SELECTOR = new UiSelector().className("android.widget.Button")
+        .resourceId("com.example:id/login").textContains("Sign in").index(2);
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        IUiDevice device = stub(IUiDevice.class);
+        IUiObject object = stub(IUiObject.class);
+
+        CallHandler handler = new CallHandler();
+        handler.registerGlobal(IUiDevice.class, device);
+        handler.registerGlobal(IUiObject.class, object);
+        Server server = new Server();
+        server.bind(RMI_PORT, handler);
+        Relay rmiRelay = new Relay(RMI_PORT);
+        Client client = new Client("localhost", rmiRelay.getPort(), new CallHandler());
+
+        RpcServer rpcServer = new RpcServer();
+        rpcServer.register(IUiDevice.class, device);
+        rpcServer.register(IUiObject.class, object);
+        rpcServer.bind(RPC_PORT);
+        Relay rpcRelay = new Relay(RPC_PORT);
+        RpcClient rpcClient = new RpcClient("localhost", rpcRelay.getPort(), 5000);
+
+        IUiDevice rmiDevice = (IUiDevice) client.getGlobal(IUiDevice.class);
+        IUiObject rmiObject = (IUiObject) client.getGlobal(IUiObject.class);
+        IUiDevice rpcDevice = rpcClient.getService(IUiDevice.class, null);
+        IUiObject rpcObject = rpcClient.getService(IUiObject.class, null);
+
+        for (int round = 0; round < 2; round++) {
+            System.out.println(round == 0 ? "warm up" : "measure");
+            run("lipermi ", rmiDevice, rmiObject, rmiRelay, iterations);
+            run("binary  ", rpcDevice, rpcObject, rpcRelay, iterations);
+            runOneShot("one-shot", rpcObject, rpcRelay, iterations);
+        }
+
+        rpcClient.close();
+        client.close();
+        rpcServer.close();
+        server.close();
+        System.exit(0);
+    }
+
+    /**
+     * One iteration is the usual sequence of a UI step: select, check, read, and click.
+     */
+    private static void run(String name, IUiDevice device, IUiObject object, Relay relay, int iterations) {
+        relay.reset();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            object.useUiObjectSelector(SELECTOR);
+            object.exists();
+            object.getText();
+            Rect r = object.getBounds();
+            device.click(r.centerX(), r.centerY());
+        }
+        report(name, System.nanoTime() - start, iterations * 5, relay, iterations);
+    }
+
+    /**
+     * Same UI step with selector-carrying calls: check, read, and click.
+     */
+    private static void runOneShot(String name, IUiObject object, Relay relay, int iterations) {
+        relay.reset();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            object.exists(SELECTOR);
+            object.getText(SELECTOR);
+            object.click(SELECTOR);
+        }
+        report(name, System.nanoTime() - start, iterations * 3, relay, iterations);
+    }
+
+    private static void report(String name, long nanos, int calls, Relay relay, int iterations) {
+        System.out.printf("%s %9.1f us/step, %2d calls/step, %5d bytes/step sent, %5d bytes/step received%n", name,
+            nanos / 1000.0 / iterations, calls / iterations, relay.sent.get() / iterations,
+            relay.received.get() / iterations);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> service) {
+        return (T) Proxy.newProxyInstance(service.getClassLoader(), new Class<?>[]{service}, (proxy, method, args) -> {
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return true;
+            } else if (type == int.class) {
+                return 1080;
+            } else if (type == String.class) {
+                return "Sign in";
+            } else if (type == Rect.class) {
+                return new Rect(100, 200, 980, 320);
+            } else if (type == UiObjectResult.class) {
+                return new UiObjectResult(method.getName().equals("getText") ? "Sign in" : true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Forwards connections to a local port, and counts bytes each way.
+     */
+    private static class Relay {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+
+        private final AtomicLong sent = new AtomicLong();
+
+        private final AtomicLong received = new AtomicLong();
+
+        Relay(int target) throws IOException {
+            Thread thread = new Thread(() -> {
+                while (true) {
+                    try {
+                        Socket in = serverSocket.accept();
+                        Socket out = new Socket("localhost", target);
+                        in.setTcpNoDelay(true);
+                        out.setTcpNoDelay(true);
+                        pipe(in.getInputStream(), out.getOutputStream(), sent);
+                        pipe(out.getInputStream(), in.getOutputStream(), received);
+                    } catch (IOException ex) {
+                        return;
+                    }
+                }
+            }, "relay-" + target);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void reset() {
+            sent.set(0);
+            received.set(0);
+        }
+
+        private static void pipe(InputStream in, OutputStream out, AtomicLong counter) {
+            Thread thread = new Thread(() -> {
+                byte[] buf = new byte[8192];
+                try {
+                    for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                        out.write(buf, 0, n);
+                        out.flush();
+                        counter.addAndGet(n);
+                    }
+                } catch (IOException ex) {
+                    // connection closed
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
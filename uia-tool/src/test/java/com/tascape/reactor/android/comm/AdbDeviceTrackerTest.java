@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.comm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The tracker is one per JVM, it follows the fake server of this test.
+ *
+ * @author linsong wang
+ */
+public class AdbDeviceTrackerTest {
+
+    private static FakeAdbServer server;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        server = new FakeAdbServer();
+        server.device("emulator-5554", "device", "product:sdk model:sdk device:generic");
+        server.device("0123456789", "unauthorized", "");
+        AdbServerClient.setInstance(server.newClient());
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        server.close();
+        AdbServerClient.setInstance(null);
+    }
+
+    @Test
+    public void testParse() {
+        Map<String, AdbDeviceTracker.Device> devices = AdbDeviceTracker.parse(
+            "emulator-5554\tdevice\n0123456789\toffline\n\n");
+        assertEquals(2, devices.size());
+        assertEquals("device", devices.get("emulator-5554").getState());
+        assertEquals("", devices.get("emulator-5554").getDetail());
+        assertTrue(devices.get("emulator-5554").isOnline());
+        assertFalse(devices.get("0123456789").isOnline());
+
+        devices = AdbDeviceTracker.parse("emulator-5554          device product:sdk model:sdk device:generic\n");
+        assertEquals("product:sdk model:sdk device:generic", devices.get("emulator-5554").getDetail());
+    }
+
+    @Test
+    public void testTrack() throws Exception {
+        AdbDeviceTracker tracker = AdbDeviceTracker.getInstance();
+        assertEquals(2, tracker.getDevices().size());
+        Map<String, String> online = tracker.getOnlineDevices();
+        assertEquals(1, online.size());
+        assertEquals("product:sdk model:sdk device:generic", online.get("emulator-5554"));
+
+        BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+        AdbDeviceTracker.Listener listener = (change, device) -> changes.add(change + " " + device.getSerial()
+            + " " + device.getState());
+        tracker.addListener(listener);
+        try {
+            Set<String> replayed = new TreeSet<>();
+            replayed.add(changes.poll(5, TimeUnit.SECONDS));
+            replayed.add(changes.poll(5, TimeUnit.SECONDS));
+            assertEquals("[ATTACHED 0123456789 unauthorized, ATTACHED emulator-5554 device]", replayed.toString());
+
+            server.device("emulator-5556", "device", "product:x model:y device:z");
+            assertEquals("ATTACHED emulator-5556 device", changes.poll(5, TimeUnit.SECONDS));
+            server.device("0123456789", "device", "product:a model:b device:c");
+            assertEquals("STATE_CHANGED 0123456789 device", changes.poll(5, TimeUnit.SECONDS));
+            server.detach("emulator-5554");
+            assertEquals("DETACHED emulator-5554 device", changes.poll(5, TimeUnit.SECONDS));
+            assertNull(changes.poll(200, TimeUnit.MILLISECONDS));
+
+            assertEquals("[0123456789, emulator-5556]", tracker.getOnlineDevices().keySet().toString());
+            assertNull(tracker.getDevice("emulator-5554"));
+        } finally {
+            tracker.removeListener(listener);
+        }
+    }
+
+    /**
+     * Each listener added while a device keeps coming and going sees it attached and detached in turn, with no
+     * change replayed twice or out of order.
+     */
+    @Test
+    public void testAddListenerWhileChanging() throws Exception {
+        AdbDeviceTracker tracker = AdbDeviceTracker.getInstance();
+        String serial = "emulator-5558";
+        List<List<AdbDeviceTracker.Change>> seen = new ArrayList<>();
+        List<AdbDeviceTracker.Listener> listeners = new ArrayList<>();
+        Thread toggle = new Thread(() -> {
+            for (int i = 0; i < 300; i++) {
+                if (i % 2 == 0) {
+                    server.device(serial, "device", "");
+                } else {
+                    server.detach(serial);
+                }
+                Thread.yield();
+            }
+        });
+        toggle.start();
+        try {
+            while (toggle.isAlive()) {
+                List<AdbDeviceTracker.Change> changes = Collections.synchronizedList(new ArrayList<>());
+                AdbDeviceTracker.Listener listener = (change, device) -> {
+                    if (serial.equals(device.getSerial())) {
+                        changes.add(change);
+                    }
+                };
+                tracker.addListener(listener);
+                seen.add(changes);
+                listeners.add(listener);
+            }
+            toggle.join();
+            // lists are sent in order, the marker comes after the last change
+            server.device("emulator-5560", "device", "");
+            long end = System.currentTimeMillis() + 5000;
+            while (tracker.getDevice("emulator-5560") == null && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertNotNull(tracker.getDevice("emulator-5560"));
+            server.detach("emulator-5560");
+            assertNull(tracker.getDevice(serial));
+        } finally {
+            listeners.forEach(tracker::removeListener);
+        }
+
+        for (List<AdbDeviceTracker.Change> changes : seen) {
+            synchronized (changes) {
+                for (int i = 0; i < changes.size(); i++) {
+                    assertEquals(changes.toString(), i % 2 == 0 ? AdbDeviceTracker.Change.ATTACHED
+                        : AdbDeviceTracker.Change.DETACHED, changes.get(i));
+                }
+                assertEquals(changes.toString(), 0, changes.size() % 2);
+            }
+        }
+    }
+}
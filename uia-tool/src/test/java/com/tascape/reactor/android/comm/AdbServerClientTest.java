@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author linsong wang
+ */
+public class AdbServerClientTest {
+
+    private FakeAdbServer server;
+
+    private AdbServerClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeAdbServer();
+        server.device("emulator-5554", "device", "product:sdk model:sdk device:generic");
+        server.device("0123456789", "offline", "");
+        client = server.newClient();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.reset();
+        server.close();
+    }
+
+    @Test
+    public void testQuery() throws IOException {
+        assertEquals(FakeAdbServer.VERSION, client.query("host:version"));
+    }
+
+    @Test
+    public void testDevices() throws IOException {
+        assertEquals(Arrays.asList("0123456789\toffline", "emulator-5554\tdevice"), client.devices(false));
+        List<String> lines = client.devices(true);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(1).startsWith("emulator-5554"));
+        assertTrue(lines.get(1).endsWith("device product:sdk model:sdk device:generic"));
+    }
+
+    @Test
+    public void testExecute() throws IOException {
+        client.execute("host-serial:emulator-5554:forward:tcp:18998;tcp:8998");
+    }
+
+    @Test
+    public void testShell() throws IOException {
+        server.command("getprop ro.product.model", "sdk\n", 0);
+        assertEquals(Arrays.asList("sdk"), client.shell("emulator-5554", "getprop ro.product.model"));
+        assertEquals(Arrays.asList("hello world"), client.shell("", "echo hello world"));
+    }
+
+    @Test
+    public void testShellStoppedByHandler() throws IOException {
+        server.command("logcat", "1\n2\n3\n", 0);
+        List<String> lines = new ArrayList<>();
+        assertTrue(client.shell("emulator-5554", "logcat", line -> lines.add(line.toString()) && lines.size() < 2));
+        assertEquals(Arrays.asList("1", "2"), lines);
+        assertFalse(client.shell("emulator-5554", "logcat", line -> true));
+    }
+
+    @Test
+    public void testExec() throws IOException {
+        server.command("cat /data/local/tmp/a", "a\r\nb", 0);
+        try (Socket socket = client.exec("emulator-5554", "cat /data/local/tmp/a")) {
+            InputStream in = socket.getInputStream();
+            assertEquals("a\r\nb", IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testDeviceNotFound() throws IOException {
+        for (String serial : new String[]{"nosuch", "0123456789"}) {
+            try {
+                client.open(serial, "shell:ls");
+                fail("open should fail on " + serial);
+            } catch (AdbServerClient.AdbFailException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("device '" + serial + "' not found"));
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownRequest() throws IOException {
+        try {
+            client.query("host:nosuch");
+            fail("query should fail");
+        } catch (AdbServerClient.AdbFailException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("host:nosuch failed: "));
+        }
+    }
+
+    @Test(expected = ConnectException.class)
+    public void testServerDown() throws IOException {
+        server.close();
+        client.query("host:version");
+    }
+
+    @Test
+    public void testSocketPool() throws Exception {
+        AdbServerClient pooled = new AdbServerClient("localhost", server.getPort(), 2);
+        try {
+            assertEquals(Arrays.asList("1"), pooled.shell("emulator-5554", "echo 1"));
+            waitForTransports(3);
+            assertEquals(Arrays.asList("2"), pooled.shell("emulator-5554", "echo 2"));
+            waitForTransports(4);
+            assertEquals(Arrays.asList("3"), pooled.shell("emulator-5554", "echo 3"));
+            waitForTransports(5);
+        } finally {
+            pooled.reset();
+        }
+    }
+
+    @Test
+    public void testStalePooledSocket() throws Exception {
+        AdbServerClient pooled = new AdbServerClient("localhost", server.getPort(), 1);
+        try {
+            assertEquals(Arrays.asList("1"), pooled.shell("emulator-5554", "echo 1"));
+            waitForTransports(2);
+            server.dropSwitched();
+            assertEquals(Arrays.asList("2"), pooled.shell("emulator-5554", "echo 2"));
+            waitForTransports(4);
+            server.detach("emulator-5554");
+            server.dropSwitched();
+            try {
+                pooled.shell("emulator-5554", "echo 3");
+                fail("shell should fail on detached device");
+            } catch (AdbServerClient.AdbFailException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("not found"));
+            }
+        } finally {
+            pooled.reset();
+        }
+    }
+
+    @Test
+    public void testResetClosesOpenSockets() throws Exception {
+        Socket blocked = client.open("emulator-5554", "shell:sleep 10");
+        Socket other = client.open("", "shell:sleep 10");
+        CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+            try {
+                return blocked.getInputStream().read();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+        Thread.sleep(200);
+        assertFalse(read.isDone());
+
+        client.reset("emulator-5554");
+        try {
+            read.get(2, TimeUnit.SECONDS);
+            fail("read should fail once device sockets are closed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof UncheckedIOException);
+        }
+        assertTrue(blocked.isClosed());
+        assertFalse(other.isClosed());
+        other.close();
+    }
+
+    /**
+     * One socket is switched to device for each command, the pool tops up in background.
+     */
+    private void waitForTransports(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (server.getTransports() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertEquals(count, server.getTransports());
+    }
+}
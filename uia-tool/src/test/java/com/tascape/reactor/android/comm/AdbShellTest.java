@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.comm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author linsong wang
+ */
+public class AdbShellTest {
+
+    private static final String SERIAL = "emulator-5554";
+
+    private static final String[] TEXTS = {"hello world", "it's", "say \"hi\"", "a; echo b", "a && b | c &",
+        "$HOME `id` $(id)", "back\\slash", "two  spaces", "", "'", "\"", "*"};
+
+    private FakeAdbServer server;
+
+    private AdbShell shell;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeAdbServer();
+        server.device(SERIAL, "device", "");
+        server.command("ls /sdcard", "Download\nPictures\n", 0);
+        server.command("cat /nosuch", "cat: /nosuch: No such file or directory\n", 1);
+        server.command("printf abc", "abc", 0);
+        server.command("true", "", 0);
+        AdbServerClient.setInstance(server.newClient());
+        shell = new AdbShell(SERIAL);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        shell.close();
+        server.close();
+        AdbServerClient.setInstance(null);
+    }
+
+    @Test
+    public void testRun() throws IOException {
+        assertResult(shell.run("ls /sdcard"), 0, "Download", "Pictures");
+        assertResult(shell.run("cat /nosuch"), 1, "cat: /nosuch: No such file or directory");
+        assertResult(shell.run("true"), 0);
+        assertResult(shell.run("nosuch"), 127, "sh: nosuch: not found");
+        assertEquals(1, server.getTransports());
+    }
+
+    @Test
+    public void testOutputWithoutNewLine() throws IOException {
+        assertResult(shell.run("printf abc"), 0, "abc");
+        assertResult(shell.run("echo next"), 0, "next");
+    }
+
+    @Test
+    public void testPtyEcho() throws IOException {
+        server.setEcho(true);
+        assertResult(shell.run("ls /sdcard"), 0, "Download", "Pictures");
+        assertResult(shell.run("printf abc"), 0, "abc");
+        List<AdbShell.Result> results = shell.run(Arrays.asList("echo 1", "cat /nosuch", "echo 3"), 5000);
+        assertEquals(3, results.size());
+        assertResult(results.get(0), 0, "1");
+        assertResult(results.get(1), 1, "cat: /nosuch: No such file or directory");
+        assertResult(results.get(2), 0, "3");
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        List<AdbShell.Result> results = shell.run(Arrays.asList("echo 1", "nosuch", "true", "echo 4"), 5000);
+        assertEquals(4, results.size());
+        assertResult(results.get(0), 0, "1");
+        assertResult(results.get(1), 127, "sh: nosuch: not found");
+        assertResult(results.get(2), 0);
+        assertResult(results.get(3), 0, "4");
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        try {
+            shell.run("sleep 5", 200);
+            fail("sleep should time out");
+        } catch (InterruptedIOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("did not finish in 200 ms"));
+        }
+        assertResult(shell.run("echo again"), 0, "again");
+        assertEquals(2, server.getTransports());
+    }
+
+    @Test
+    public void testReconnect() throws IOException {
+        assertResult(shell.run("echo 1"), 0, "1");
+        server.dropShells();
+        assertResult(shell.run("echo 2"), 0, "2");
+        assertEquals(2, server.getTransports());
+    }
+
+    @Test
+    public void testDeviceNotFound() throws IOException {
+        try (AdbShell s = new AdbShell("nosuch")) {
+            s.run("echo 1");
+            fail("shell should fail on missing device");
+        } catch (AdbServerClient.AdbFailException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("not found"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyCommand() throws IOException {
+        shell.run(Collections.singletonList(" "), 1000);
+    }
+
+    @Test
+    public void testQuote() {
+        assertEquals("/sdcard/a-1_b.txt", Adb.quote("/sdcard/a-1_b.txt"));
+        assertEquals("42", Adb.quote(42));
+        assertEquals("''", Adb.quote(""));
+        assertEquals("'a b'", Adb.quote("a b"));
+        assertEquals("'it'\\''s'", Adb.quote("it's"));
+        assertEquals("input text 'a;b'", Adb.commandLine(Arrays.asList("input", "text", "a;b")));
+    }
+
+    @Test
+    public void testQuotedArgumentsInSession() throws Exception {
+        Adb adb = new Adb(SERIAL);
+        for (String text : TEXTS) {
+            assertEquals(text, Collections.singletonList(text), adb.shellInSession(Arrays.asList("echo", text)));
+        }
+        assertEquals(Arrays.asList("next"), adb.shellInSession(Arrays.asList("echo", "next")));
+    }
+
+    @Test
+    public void testQuotedArguments() throws Exception {
+        Adb adb = new Adb(SERIAL);
+        Adb.Batch batch = adb.batch();
+        for (String text : TEXTS) {
+            assertEquals(text, Collections.singletonList(text), adb.shell(Arrays.asList("echo", text)));
+            batch.add("echo", text);
+        }
+        List<AdbShell.Result> results = batch.run();
+        for (int i = 0; i < TEXTS.length; i++) {
+            assertResult(results.get(i), 0, TEXTS[i]);
+        }
+    }
+
+    private static void assertResult(AdbShell.Result result, int exitCode, String... lines) {
+        assertEquals(result.toString(), exitCode, result.getExitCode());
+        assertEquals(Arrays.asList(lines), result.getLines());
+    }
+}
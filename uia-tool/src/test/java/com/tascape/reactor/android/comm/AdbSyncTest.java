@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.comm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author linsong wang
+ */
+public class AdbSyncTest {
+
+    private static final String SERIAL = "emulator-5554";
+
+    private FakeAdbServer server;
+
+    private AdbSync sync;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeAdbServer();
+        server.device(SERIAL, "device", "");
+        AdbServerClient.setInstance(server.newClient());
+        sync = AdbSync.open(SERIAL);
+        dir = Files.createTempDirectory("adb-sync").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sync.close();
+        server.close();
+        AdbServerClient.setInstance(null);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testStat() throws IOException {
+        server.getFiles().put("/sdcard/a.txt", bytes("hello"));
+        AdbSync.Entry entry = sync.stat("/sdcard/a.txt");
+        assertTrue(entry.exists());
+        assertFalse(entry.isDirectory());
+        assertEquals(5, entry.getSize());
+        assertEquals(0644, entry.getMode() & 0777);
+        assertTrue(sync.stat("/sdcard").isDirectory());
+        assertFalse(sync.stat("/sdcard/nosuch").exists());
+    }
+
+    @Test
+    public void testList() throws IOException {
+        server.getFiles().put("/sdcard/a.txt", bytes("a"));
+        server.getFiles().put("/sdcard/b.txt", bytes("bb"));
+        server.getFiles().put("/sdcard/Download/c.txt", bytes("ccc"));
+        List<AdbSync.Entry> entries = sync.list("/sdcard");
+        assertEquals("[Download, a.txt, b.txt]", entries.stream().map(AdbSync.Entry::getName)
+            .collect(Collectors.toList()).toString());
+        assertTrue(entries.get(0).isDirectory());
+        assertEquals(2, entries.get(2).getSize());
+    }
+
+    @Test
+    public void testPushPullMemory() throws IOException {
+        byte[] content = random(200 * 1024 + 7);
+        sync.push(ByteBuffer.wrap(content), "/data/local/tmp/big.bin", 0644);
+        assertArrayEquals(content, server.getFiles().get("/data/local/tmp/big.bin"));
+
+        ByteBuffer pulled = sync.pull("/data/local/tmp/big.bin");
+        assertEquals(content.length, pulled.remaining());
+        assertEquals(ByteBuffer.wrap(content), pulled);
+
+        ByteBuffer buffer = ByteBuffer.allocate(content.length + 3);
+        buffer.put(new byte[3]);
+        assertEquals(content.length, sync.pull("/data/local/tmp/big.bin", buffer));
+        assertEquals(content.length + 3, buffer.position());
+    }
+
+    @Test
+    public void testPushPullEmpty() throws IOException {
+        sync.push(ByteBuffer.allocate(0), "/data/local/tmp/empty", 0644);
+        assertEquals(0, server.getFiles().get("/data/local/tmp/empty").length);
+        assertEquals(0, sync.pull("/data/local/tmp/empty").remaining());
+    }
+
+    @Test
+    public void testPushPullFiles() throws IOException {
+        Map<File, String> push = new LinkedHashMap<>();
+        Map<String, File> pull = new LinkedHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            File local = new File(dir, "push-" + i);
+            FileUtils.writeByteArrayToFile(local, random(i * 70000 + 1));
+            push.put(local, "/sdcard/f" + i);
+            pull.put("/sdcard/f" + i, new File(dir, "pull-" + i));
+        }
+        sync.push(push);
+        sync.pull(pull);
+        for (int i = 0; i < 3; i++) {
+            byte[] expected = FileUtils.readFileToByteArray(new File(dir, "push-" + i));
+            assertArrayEquals(expected, server.getFiles().get("/sdcard/f" + i));
+            assertArrayEquals(expected, FileUtils.readFileToByteArray(new File(dir, "pull-" + i)));
+        }
+        File single = new File(dir, "single");
+        assertEquals(70001, sync.pull("/sdcard/f1", single));
+        assertEquals(70001, single.length());
+    }
+
+    @Test
+    public void testPullMissing() throws IOException {
+        try {
+            sync.pull("/sdcard/nosuch", new File(dir, "nosuch"));
+            fail("pull should fail");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("No such file or directory"));
+        }
+    }
+
+    @Test
+    public void testPullMissingInMemory() throws IOException {
+        try {
+            sync.pull("/sdcard/nosuch");
+            fail("pull should fail");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("No such file or directory"));
+        }
+    }
+
+    @Test
+    public void testPullGrownFile() throws IOException {
+        server.getFiles().put("/sdcard/log.txt", bytes("hello"));
+        assertEquals(5, sync.stat("/sdcard/log.txt").getSize());
+        byte[] content = random(100 * 1024);
+        server.getFiles().put("/sdcard/log.txt", content);
+        assertEquals(ByteBuffer.wrap(content), sync.pull("/sdcard/log.txt"));
+        assertEquals(ByteBuffer.wrap(content), sync.pull("/sdcard/log.txt"));
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
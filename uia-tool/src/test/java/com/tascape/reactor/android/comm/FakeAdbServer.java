@@ -0,0 +1,584 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.comm;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A local stand-in of the host adb server, which speaks the smart-socket protocol on a free port, with devices that
+ * exist only in memory. It serves host:version, host:devices[-l], host:track-devices[-l], host:transport, and the
+ * device services shell:, exec: and sync:.
+ *
+ * Shell commands are not run. Command lines are split into words as sh does, with quotes, backslash, $ variables
+ * (always empty), and ; &amp; | between commands; a line with an open quote waits for more lines. Each device answers
+ * commands set with {@link #command(String, String, int)}, plus 'echo text' and 'sleep seconds'; others fail with
+ * exit code 127. An interactive shell echoes its input like a pty does, if asked to.
+ *
+ * @author linsong wang
+ */
+public class FakeAdbServer implements Closeable {
+
+    public static final String VERSION = "0029";
+
+    private static final Pattern SHELL_START = Pattern.compile("^echo '([^']*)''([^']*)'; \\{ (.*)$");
+
+    private static final Pattern SHELL_END = Pattern.compile("^\\} </dev/null 2>&1; echo '([^']*)''([^']*)'\\$\\?$");
+
+    private final ServerSocket serverSocket;
+
+    private final Thread acceptor;
+
+    private final Map<String, String> devices = new ConcurrentHashMap<>();
+
+    private final Map<String, String> details = new ConcurrentHashMap<>();
+
+    private final Map<String, String> outputs = new ConcurrentHashMap<>();
+
+    private final Map<String, Integer> exitCodes = new ConcurrentHashMap<>();
+
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+
+    private final List<Socket> trackers = new CopyOnWriteArrayList<>();
+
+    private final List<Socket> shells = new CopyOnWriteArrayList<>();
+
+    private final List<Socket> switched = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger transports = new AtomicInteger();
+
+    private volatile boolean echo;
+
+    public FakeAdbServer() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress("localhost", 0));
+        acceptor = new Thread(this::accept, "fake-adb-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return a client of this server, without socket pool
+     */
+    public AdbServerClient newClient() {
+        return new AdbServerClient("localhost", getPort(), 0);
+    }
+
+    /**
+     * Attaches a device, or changes its state, and tells device trackers.
+     *
+     * @param serial device serial
+     * @param state  device state, such as device, offline
+     * @param detail product detail, such as 'product:x model:y device:z'
+     */
+    public void device(String serial, String state, String detail) {
+        devices.put(serial, state);
+        details.put(serial, detail);
+        track();
+    }
+
+    /**
+     * Detaches a device, and tells device trackers.
+     *
+     * @param serial device serial
+     */
+    public void detach(String serial) {
+        devices.remove(serial);
+        details.remove(serial);
+        track();
+    }
+
+    /**
+     * Sets the answer of a shell command, on all devices.
+     *
+     * @param command  shell command line
+     * @param output   output, lines end with \n
+     * @param exitCode exit code
+     */
+    public void command(String command, String output, int exitCode) {
+        outputs.put(command, output);
+        exitCodes.put(command, exitCode);
+    }
+
+    /**
+     * @param echo true to echo input of interactive shells, with a prompt, like a pty
+     */
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    /**
+     * @return files on devices, path to content
+     */
+    public Map<String, byte[]> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return number of sockets switched to a device so far
+     */
+    public int getTransports() {
+        return transports.get();
+    }
+
+    /**
+     * Closes sockets which are switched to a device, but not used for a service yet, like a restarted adb server.
+     */
+    public void dropSwitched() {
+        switched.forEach(FakeAdbServer::close);
+        switched.clear();
+    }
+
+    /**
+     * Closes all interactive shells, like a device that goes away and comes back.
+     */
+    public void dropShells() {
+        shells.forEach(FakeAdbServer::close);
+        shells.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        try {
+            // the listening socket is released only after accept returns, till then connects still succeed
+            acceptor.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        trackers.forEach(FakeAdbServer::close);
+        dropShells();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (serverSocket.isClosed()) {
+                    close(socket);
+                    return;
+                }
+                Thread thread = new Thread(() -> serve(socket), "fake-adb-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ex) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String request = readRequest(in);
+                switched.remove(socket);
+                if (request.equals("host:version")) {
+                    okay(out, VERSION);
+                    return;
+                } else if (request.equals("host:devices") || request.equals("host:devices-l")) {
+                    okay(out, list(request.endsWith("-l")));
+                    return;
+                } else if (request.equals("host:track-devices") || request.equals("host:track-devices-l")) {
+                    out.write(bytes("OKAY"));
+                    synchronized (trackers) {
+                        out.write(bytes(string(list(request.endsWith("-l")))));
+                        out.flush();
+                        trackers.add(socket);
+                    }
+                    return;
+                } else if (request.startsWith("host-serial:") || request.startsWith("host:forward:")) {
+                    okay(out, null);
+                    return;
+                } else if (request.equals("host:transport-any") || request.startsWith("host:transport:")) {
+                    String serial = request.substring(request.lastIndexOf(':') + 1);
+                    if (request.equals("host:transport-any")) {
+                        List<String> online = devices.keySet().stream().filter(d -> "device".equals(devices.get(d)))
+                            .collect(Collectors.toList());
+                        if (online.size() != 1) {
+                            fail(out, online.isEmpty() ? "no devices" : "more than one device");
+                            return;
+                        }
+                        serial = online.get(0);
+                    }
+                    if (!"device".equals(devices.get(serial))) {
+                        fail(out, "device '" + serial + "' not found");
+                        return;
+                    }
+                    transports.incrementAndGet();
+                    okay(out, null);
+                    switched.add(socket);
+                } else if (request.equals("shell:")) {
+                    okay(out, null);
+                    shells.add(socket);
+                    shell(in, out);
+                    return;
+                } else if (request.startsWith("shell:") || request.startsWith("exec:")) {
+                    okay(out, null);
+                    StringBuilder sb = new StringBuilder();
+                    run(request.substring(request.indexOf(':') + 1), sb);
+                    out.write(bytes(sb.toString()));
+                    return;
+                } else if (request.equals("sync:")) {
+                    okay(out, null);
+                    sync(in, out);
+                    return;
+                } else {
+                    fail(out, "unknown request " + request);
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            // connection closed
+        } finally {
+            if (!trackers.contains(socket)) {
+                close(socket);
+            }
+        }
+    }
+
+    private void track() {
+        synchronized (trackers) {
+            for (Socket socket : trackers) {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    out.write(bytes(string(list(true))));
+                    out.flush();
+                } catch (IOException ex) {
+                    trackers.remove(socket);
+                }
+            }
+        }
+    }
+
+    private String list(boolean detail) {
+        StringBuilder sb = new StringBuilder();
+        new TreeSet<>(devices.keySet()).forEach(serial -> {
+            sb.append(serial).append(detail ? "          " : "\t").append(devices.get(serial));
+            if (detail) {
+                sb.append(' ').append(details.get(serial));
+            }
+            sb.append('\n');
+        });
+        return sb.toString();
+    }
+
+    private void shell(DataInputStream in, OutputStream out) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String newLine = echo ? "\r\n" : "\n";
+        if (echo) {
+            out.write(bytes("$ "));
+        }
+        StringBuilder command = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            StringBuilder sb = new StringBuilder();
+            if (echo) {
+                sb.append(line).append("\r\n");
+            }
+            Matcher start = SHELL_START.matcher(line);
+            Matcher end = SHELL_END.matcher(line);
+            if (start.matches()) {
+                sb.append(start.group(1)).append(start.group(2)).append(newLine);
+                command = new StringBuilder(start.group(3));
+            } else if (end.matches() && command != null && words(command.toString()) != null) {
+                out.write(bytes(sb.toString()));
+                out.flush();
+                sb.setLength(0);
+                int code = run(command.toString(), sb);
+                sb.append(end.group(1)).append(end.group(2)).append(code).append(newLine);
+                if (echo) {
+                    sb.append("$ ");
+                }
+                command = null;
+            } else if (command != null) {
+                command.append('\n').append(line);
+            }
+            out.write(bytes(sb.toString()));
+            out.flush();
+        }
+    }
+
+    private int run(String line, StringBuilder output) throws InterruptedException {
+        List<List<String>> commands = words(line);
+        if (commands == null) {
+            output.append("sh: syntax error: unterminated quoted string\n");
+            return 2;
+        }
+        int code = 0;
+        for (List<String> words : commands) {
+            String command = String.join(" ", words);
+            if (outputs.containsKey(command)) {
+                output.append(outputs.get(command));
+                code = exitCodes.get(command);
+            } else if (words.get(0).equals("echo")) {
+                output.append(String.join(" ", words.subList(1, words.size()))).append('\n');
+                code = 0;
+            } else if (words.get(0).equals("sleep") && words.size() == 2) {
+                Thread.sleep((long) (Double.parseDouble(words.get(1)) * 1000));
+                code = 0;
+            } else {
+                output.append("sh: ").append(words.get(0)).append(": not found\n");
+                code = 127;
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Splits a command line into commands and their words, as sh does.
+     *
+     * @return commands, or null if a quote is still open
+     */
+    static List<List<String>> words(String line) {
+        List<List<String>> commands = new ArrayList<>();
+        List<String> words = new ArrayList<>();
+        StringBuilder word = null;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote == '\'') {
+                if (c == '\'') {
+                    quote = 0;
+                } else {
+                    word.append(c);
+                }
+                continue;
+            }
+            if (c == '\\') {
+                if (++i == line.length()) {
+                    return null;
+                }
+                char next = line.charAt(i);
+                word = word == null ? new StringBuilder() : word;
+                if (quote == '"' && "\"\\$`".indexOf(next) < 0) {
+                    word.append(c);
+                }
+                word.append(next);
+            } else if (c == '$' && i + 1 < line.length() && Character.isJavaIdentifierStart(line.charAt(i + 1))) {
+                while (i + 1 < line.length() && Character.isJavaIdentifierPart(line.charAt(i + 1))) {
+                    i++;
+                }
+            } else if (quote == '"') {
+                if (c == '"') {
+                    quote = 0;
+                } else {
+                    word.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                word = word == null ? new StringBuilder() : word;
+            } else if (Character.isWhitespace(c) || c == ';' || c == '&' || c == '|') {
+                if (word != null) {
+                    words.add(word.toString());
+                    word = null;
+                }
+                if (c != ' ' && c != '\t' && !words.isEmpty()) {
+                    commands.add(words);
+                    words = new ArrayList<>();
+                }
+            } else {
+                word = word == null ? new StringBuilder() : word;
+                word.append(c);
+            }
+        }
+        if (quote != 0) {
+            return null;
+        }
+        if (word != null) {
+            words.add(word.toString());
+        }
+        if (!words.isEmpty()) {
+            commands.add(words);
+        }
+        return commands;
+    }
+
+    private void sync(DataInputStream in, OutputStream out) throws IOException {
+        while (true) {
+            String id = readId(in);
+            int length = readInt(in);
+            if (id.equals("QUIT")) {
+                return;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            String path = new String(bytes, StandardCharsets.UTF_8);
+            switch (id) {
+                case "STAT":
+                    out.write(syncHeader("STAT", mode(path), size(path), 1460000000));
+                    break;
+                case "LIST":
+                    out.write(syncList(path));
+                    break;
+                case "RECV":
+                    byte[] content = files.get(path);
+                    if (content == null) {
+                        byte[] message = bytes("No such file or directory");
+                        out.write(syncHeader("FAIL", message.length));
+                        out.write(message);
+                        out.flush();
+                        return;
+                    }
+                    for (int i = 0; i < content.length; i += 64 * 1024) {
+                        int n = Math.min(64 * 1024, content.length - i);
+                        out.write(syncHeader("DATA", n));
+                        out.write(content, i, n);
+                    }
+                    out.write(syncHeader("DONE", 0));
+                    break;
+                case "SEND":
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    while (true) {
+                        String chunk = readId(in);
+                        int n = readInt(in);
+                        if (chunk.equals("DONE")) {
+                            break;
+                        }
+                        if (!chunk.equals("DATA")) {
+                            throw new IOException("unexpected " + chunk);
+                        }
+                        byte[] b = new byte[n];
+                        in.readFully(b);
+                        data.write(b);
+                    }
+                    files.put(path.substring(0, path.lastIndexOf(',')), data.toByteArray());
+                    out.write(syncHeader("OKAY", 0));
+                    break;
+                default:
+                    throw new IOException("unexpected " + id);
+            }
+            out.flush();
+        }
+    }
+
+    private byte[] syncList(String dir) {
+        String prefix = dir.endsWith("/") ? dir : dir + "/";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TreeSet<String> names = new TreeSet<>();
+        names.add(".");
+        names.add("..");
+        files.keySet().stream().filter(path -> path.startsWith(prefix))
+            .map(path -> path.substring(prefix.length()).split("/")[0]).forEach(names::add);
+        for (String name : names) {
+            byte[] b = bytes(name);
+            String path = prefix + name;
+            bytes.write(syncHeader("DENT", mode(path), size(path), 1460000000, b.length), 0, 20);
+            bytes.write(b, 0, b.length);
+        }
+        bytes.write(syncHeader("DONE", 0, 0, 0, 0), 0, 20);
+        return bytes.toByteArray();
+    }
+
+    private int mode(String path) {
+        if (files.containsKey(path)) {
+            return 0100644;
+        }
+        String prefix = path.endsWith("/") ? path : path + "/";
+        return path.endsWith("/.") || path.endsWith("/..") || files.keySet().stream()
+            .anyMatch(p -> p.startsWith(prefix)) ? 040755 : 0;
+    }
+
+    private int size(String path) {
+        byte[] content = files.get(path);
+        return content == null ? 0 : content.length;
+    }
+
+    private static byte[] syncHeader(String id, int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(bytes(id));
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    private static String readId(DataInputStream in) throws IOException {
+        byte[] id = new byte[4];
+        in.readFully(id);
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        byte[] b = new byte[4];
+        in.readFully(b);
+        return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private static String readRequest(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        in.readFully(length);
+        byte[] payload = new byte[Integer.parseInt(new String(length, StandardCharsets.US_ASCII), 16)];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private static void okay(OutputStream out, String reply) throws IOException {
+        out.write(bytes("OKAY"));
+        if (reply != null) {
+            out.write(bytes(string(reply)));
+        }
+        out.flush();
+    }
+
+    private static void fail(OutputStream out, String message) throws IOException {
+        out.write(bytes("FAIL"));
+        out.write(bytes(string(message)));
+        out.flush();
+    }
+
+    private static String string(String payload) {
+        return String.format("%04x", bytes(payload).length) + payload;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // ignore
+        }
+    }
+}
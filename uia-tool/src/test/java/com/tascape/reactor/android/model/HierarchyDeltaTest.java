@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.model;
+
+import com.android.uiautomator.stub.HierarchyDelta;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Delta of window hierarchy, from diff on device to the hierarchy built on host.
+ *
+ * @author linsong wang
+ */
+public class HierarchyDeltaTest {
+
+    private static final String ROOT = HierarchyDelta.path("", 0);
+
+    @Test
+    public void testDiffApply() throws IOException {
+        SortedMap<String, String[]> old = new TreeMap<>();
+        put(old, ROOT, "android.widget.FrameLayout", "");
+        put(old, path(0, 1), "android.widget.LinearLayout", "");
+        put(old, path(0, 1, 0), "android.widget.TextView", "Wi-Fi");
+        put(old, path(0, 1, 1), "android.widget.TextView", "Bluetooth");
+        put(old, path(0, 2), "android.widget.TextView", "Battery");
+        put(old, path(0, 10), "android.widget.LinearLayout", "");
+        put(old, path(0, 10, 0), "android.widget.TextView", "Storage");
+
+        SortedMap<String, String[]> now = new TreeMap<>();
+        put(now, ROOT, "android.widget.FrameLayout", "");
+        put(now, path(0, 2), "android.widget.TextView", "Battery 80%");
+        put(now, path(0, 10), "android.widget.LinearLayout", "");
+        put(now, path(0, 10, 0), "android.widget.TextView", "Storage");
+        put(now, path(0, 10, 1), "android.widget.Button", "Free up space");
+        put(now, path(0, 11), "android.widget.TextView", "Display");
+
+        HierarchyDelta delta = HierarchyDelta.diff(7, 3, 4, "0", old, now);
+        assertFalse(delta.isFull());
+        assertEquals(Arrays.asList("0/1"), delta.getRemoved().stream().map(HierarchyDelta::toString)
+            .collect(Collectors.toList()));
+        assertEquals(Arrays.asList("0/2", "0/10/1", "0/11"), delta.getNodes().keySet().stream()
+            .map(HierarchyDelta::toString).collect(Collectors.toList()));
+
+        HierarchyDelta read = HierarchyDelta.read(delta.toByteArray());
+        assertEquals(7, read.getSession());
+        assertEquals(3, read.getBase());
+        assertEquals(4, read.getVersion());
+        assertEquals("0", read.getRotation());
+        assertEquals(delta.getRemoved(), read.getRemoved());
+        assertEquals(delta.getNodes().keySet(), read.getNodes().keySet());
+
+        SortedMap<String, String[]> applied = new TreeMap<>(old);
+        read.applyTo(applied);
+        assertNodes(now, applied);
+
+        WindowHierarchy wh = UIA.buildHierarchy(applied, read.getRotation(), null);
+        assertEquals(3, wh.getRoot().nodes().length);
+        assertEquals("Battery 80%", wh.getRoot().nodes()[0].getText());
+        assertTrue(wh.getRoot().nodes()[1].nodes()[1] instanceof Button);
+        assertEquals(1, wh.findByText("Free up space").size());
+    }
+
+    @Test
+    public void testFullAndEmpty() throws IOException {
+        SortedMap<String, String[]> now = new TreeMap<>();
+        put(now, ROOT, "android.widget.FrameLayout", "");
+        put(now, path(0, 0), "android.widget.TextView", "a");
+
+        HierarchyDelta full = HierarchyDelta.read(HierarchyDelta.diff(1, 0, 1, "1", null, now).toByteArray());
+        assertTrue(full.isFull());
+        SortedMap<String, String[]> applied = new TreeMap<>();
+        put(applied, path(0, 5), "android.widget.TextView", "stale");
+        full.applyTo(applied);
+        assertNodes(now, applied);
+
+        HierarchyDelta empty = HierarchyDelta.diff(1, 1, 2, "1", now, new TreeMap<>(now));
+        assertTrue(empty.isEmpty());
+        assertTrue(HierarchyDelta.read(empty.toByteArray()).isEmpty());
+    }
+
+    @Test
+    public void testRandomChanges() throws IOException {
+        Random random = new Random(19);
+        SortedMap<String, String[]> old = randomTree(random, 300);
+        for (int i = 0; i < 200; i++) {
+            SortedMap<String, String[]> now = mutate(random, old);
+            HierarchyDelta delta = HierarchyDelta.read(HierarchyDelta.diff(1, i + 1, i + 2, "0", old, now)
+                .toByteArray());
+            SortedMap<String, String[]> applied = new TreeMap<>(old);
+            delta.applyTo(applied);
+            assertNodes(now, applied);
+            old = now;
+        }
+    }
+
+    @Test
+    public void testVersion() throws IOException {
+        byte[] bytes = HierarchyDelta.diff(1, 0, 1, "0", null, new TreeMap<>()).toByteArray();
+        bytes[3]++;
+        try {
+            HierarchyDelta.read(bytes);
+            fail("version should be checked");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("version"));
+        }
+    }
+
+    private static SortedMap<String, String[]> randomTree(Random random, int size) {
+        SortedMap<String, String[]> tree = new TreeMap<>();
+        put(tree, ROOT, "android.widget.FrameLayout", "");
+        List<String> paths = new ArrayList<>(tree.keySet());
+        while (tree.size() < size) {
+            String parent = paths.get(random.nextInt(paths.size()));
+            String path = HierarchyDelta.path(parent, random.nextInt(12));
+            if (!tree.containsKey(path)) {
+                put(tree, path, "android.widget.TextView", "t" + random.nextInt(50));
+                paths.add(path);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Removes some subtrees, changes text of some nodes, and adds some nodes.
+     */
+    private static SortedMap<String, String[]> mutate(Random random, SortedMap<String, String[]> old) {
+        SortedMap<String, String[]> now = new TreeMap<>(old);
+        List<String> paths = new ArrayList<>(old.keySet());
+        for (int i = 0; i < 3; i++) {
+            String removed = paths.get(1 + random.nextInt(paths.size() - 1));
+            now.keySet().removeIf(p -> p.startsWith(removed));
+        }
+        paths = new ArrayList<>(now.keySet());
+        for (int i = 0; i < 5; i++) {
+            String path = paths.get(random.nextInt(paths.size()));
+            put(now, path, "android.widget.TextView", "t" + random.nextInt(50));
+        }
+        for (int i = 0; i < 5; i++) {
+            String path = HierarchyDelta.path(paths.get(random.nextInt(paths.size())), random.nextInt(12));
+            now.putIfAbsent(path, values("android.widget.Button", "new"));
+        }
+        return now;
+    }
+
+    private static String path(int... indexes) {
+        String path = "";
+        for (int index : indexes) {
+            path = HierarchyDelta.path(path, index);
+        }
+        return path;
+    }
+
+    private static void put(Map<String, String[]> nodes, String path, String klass, String text) {
+        nodes.put(path, values(klass, text));
+    }
+
+    private static String[] values(String klass, String text) {
+        return new String[]{"0", text, "", klass, "com.android.settings", "", "false", "false", "true", "true",
+            "false", "false", "false", "false", "false", "false", "[0,0][1080,1920]"};
+    }
+
+    private static void assertNodes(SortedMap<String, String[]> expected, SortedMap<String, String[]> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        expected.forEach((path, values) -> assertArrayEquals(HierarchyDelta.toString(path), values,
+            actual.get(path)));
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.model;
+
+import com.android.uiautomator.stub.Rect;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the R-tree against a brute-force scan of all nodes, on a random tree with degenerate bounds.
+ *
+ * @author linsong wang
+ */
+public class SpatialIndexTest {
+
+    private static final int WIDTH = 1080;
+
+    private static final int HEIGHT = 1920;
+
+    private final Random random = new Random(20160101);
+
+    private final List<UIANode> nodes = new ArrayList<>();
+
+    private final List<Integer> depths = new ArrayList<>();
+
+    private WindowHierarchy hierarchy;
+
+    @Before
+    public void setUp() {
+        UIANode root = node(0, new Rect(0, 0, WIDTH, HEIGHT));
+        List<UIANode> all = new ArrayList<>(Collections.singletonList(root));
+        for (int i = 1; i < 5000; i++) {
+            UIANode node = node(i, randomBounds(i));
+            node.setClickable(random.nextInt(3) == 0);
+            all.get(random.nextInt(all.size())).addNode(node);
+            all.add(node);
+        }
+        collect(root, 0);
+        hierarchy = new WindowHierarchy(root);
+    }
+
+    @Test
+    public void testFindDeepestAt() {
+        for (int i = 0; i < 5000; i++) {
+            int x = random.nextInt(WIDTH + 20) - 10;
+            int y = random.nextInt(HEIGHT + 20) - 10;
+            assertEquals(x + "," + y, index(deepestAt(x, y, n -> true)), index(hierarchy.findDeepestAt(x, y)));
+            assertEquals(x + "," + y, index(deepestAt(x, y, UIANode::isClickable)),
+                index(hierarchy.findClickableAt(x, y)));
+        }
+    }
+
+    @Test
+    public void testFindInRegion() {
+        for (int i = 0; i < 500; i++) {
+            Rect r = i % 5 == 0 ? nodes.get(random.nextInt(nodes.size())).getBounds() : randomBounds(i);
+            Rect rect = r == null ? new Rect(0, 0, WIDTH, HEIGHT / 2) : r;
+            assertEquals(rect.toString(), indexes(filter(n -> overlaps(n.getBounds(), rect))),
+                indexes(hierarchy.findOverlapping(rect)));
+            assertEquals(rect.toString(), indexes(filter(n -> inside(n.getBounds(), rect))),
+                indexes(hierarchy.findInside(rect)));
+        }
+    }
+
+    @Test
+    public void testDegenerateBounds() {
+        UIANode root = node(0, new Rect(0, 0, 100, 100));
+        root.addNode(node(1, new Rect(0, 0, 0, 0)));
+        root.addNode(node(2, new Rect(50, 0, 50, 100)));
+        root.addNode(node(3, new Rect(0, 100, 100, 100)));
+        root.addNode(node(4, null));
+        WindowHierarchy wh = new WindowHierarchy(root);
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), indexes(wh.findInside(new Rect(0, 0, 100, 100))));
+        assertEquals(Arrays.asList(1), indexes(wh.findInside(new Rect(0, 0, 0, 0))));
+        assertEquals(Arrays.asList(2), indexes(wh.findInside(new Rect(10, 0, 50, 100))));
+        assertEquals(Arrays.asList(3), indexes(wh.findInside(new Rect(0, 100, 100, 200))));
+        assertEquals(Arrays.asList(0, 2), indexes(wh.findOverlapping(new Rect(0, 0, 100, 100))));
+        assertEquals(Arrays.asList(0), indexes(wh.findOverlapping(new Rect(0, 0, 50, 100))));
+        assertEquals(0, index(wh.findDeepestAt(50, 50)));
+        assertNull(wh.findDeepestAt(100, 50));
+    }
+
+    @Test
+    public void testNoBounds() {
+        WindowHierarchy wh = new WindowHierarchy(node(0, null));
+        assertNull(wh.findDeepestAt(0, 0));
+        assertEquals(0, wh.findOverlapping(new Rect(0, 0, WIDTH, HEIGHT)).size());
+    }
+
+    /**
+     * Mostly nested boxes, with some that are empty, a line, a point at origin, off screen, or without bounds.
+     */
+    private Rect randomBounds(int i) {
+        switch (i % 20) {
+            case 0:
+                return new Rect(0, 0, 0, 0);
+            case 1:
+                int x = random.nextInt(WIDTH);
+                return new Rect(x, random.nextInt(HEIGHT / 2), x, HEIGHT / 2 + random.nextInt(HEIGHT / 2));
+            case 2:
+                int y = random.nextInt(HEIGHT);
+                return new Rect(random.nextInt(WIDTH / 2), y, WIDTH / 2 + random.nextInt(WIDTH / 2), y);
+            case 3:
+                return null;
+            case 4:
+                return new Rect(-50, HEIGHT - 10, 30, HEIGHT + 40);
+            default:
+                int left = random.nextInt(WIDTH);
+                int top = random.nextInt(HEIGHT);
+                return new Rect(left, top, left + 1 + random.nextInt(WIDTH - left), top + 1 + random.nextInt(
+                    Math.min(400, HEIGHT - top)));
+        }
+    }
+
+    private UIANode deepestAt(int x, int y, Predicate<UIANode> filter) {
+        UIANode best = null;
+        int depth = -1;
+        for (int i = 0; i < nodes.size(); i++) {
+            Rect r = nodes.get(i).getBounds();
+            if (r.left <= x && x < r.right && r.top <= y && y < r.bottom && filter.test(nodes.get(i))
+                && depths.get(i) >= depth) {
+                best = nodes.get(i);
+                depth = depths.get(i);
+            }
+        }
+        return best;
+    }
+
+    private List<UIANode> filter(Predicate<UIANode> filter) {
+        return nodes.stream().filter(filter).collect(Collectors.toList());
+    }
+
+    private static boolean overlaps(Rect r, Rect rect) {
+        return r.left < rect.right && r.right > rect.left && r.top < rect.bottom && r.bottom > rect.top;
+    }
+
+    private static boolean inside(Rect r, Rect rect) {
+        return r.left >= rect.left && r.top >= rect.top && r.right <= rect.right && r.bottom <= rect.bottom;
+    }
+
+    private void collect(UIANode node, int depth) {
+        if (node.getBounds() != null) {
+            nodes.add(node);
+            depths.add(depth);
+        }
+        for (UIANode child : node.nodes()) {
+            collect(child, depth + 1);
+        }
+    }
+
+    private static UIANode node(int index, Rect bounds) {
+        UIANode node = new UIANode();
+        node.setIndex(index);
+        node.setBounds(bounds);
+        return node;
+    }
+
+    private static int index(UIANode node) {
+        return node == null ? -1 : node.getIndex();
+    }
+
+    private static List<Integer> indexes(List<UIANode> nodes) {
+        return nodes.stream().map(UIANode::getIndex).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Queries on the sample window hierarchy, checked against scanning all nodes with plain predicates.
+ *
+ * @author linsong wang
+ */
+public class UIAQueryTest {
+
+    private static final String TITLE = "com.mykaishi.xinkaishi:id/community_thread_title";
+
+    private static WindowHierarchy hierarchy;
+
+    private static List<UIANode> all;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        try (InputStream in = UIAQueryTest.class.getResourceAsStream(UIATest.SAMPLE)) {
+            hierarchy = UIA.parseHierarchy(in, null);
+        }
+        all = new ArrayList<>();
+        collect(hierarchy.getRoot(), all);
+    }
+
+    @Test
+    public void testClass() {
+        assertQuery("TextView", null, 27, n -> isA(n, "TextView"));
+        assertQuery("android.widget.TextView", "class", 27, n -> "android.widget.TextView".equals(n.getKlass()));
+        assertQuery("*", null, 100, n -> true);
+        assertQuery("Button", null, 0, n -> isA(n, "Button"));
+        assertQuery("widget.TextView", "class", 0, n -> false);
+    }
+
+    @Test
+    public void testAttributes() {
+        assertQuery("*[clickable]", null, 20, UIANode::isClickable);
+        assertQuery("*[clickable=true]", null, 20, UIANode::isClickable);
+        assertQuery("[clickable=false]", null, 80, n -> !n.isClickable());
+        assertQuery("[resource-id=" + TITLE + "]", "resource-id", 5, n -> TITLE.equals(n.getResourceId()));
+        assertQuery("TextView[text~='iOS-Automation-.*']", null, 4,
+            n -> isA(n, "TextView") && n.getText().matches("iOS-Automation-.*"));
+        assertQuery("*[text*=分钟前]", null, -1, n -> n.getText().contains("分钟前"));
+        assertQuery("*[text^=iOS]", null, 4, n -> n.getText().startsWith("iOS"));
+        assertQuery("*[text=\"qa-tFV0V • 33分钟前 • 运动\"]", "text", 1,
+            n -> "qa-tFV0V • 33分钟前 • 运动".equals(n.getText()));
+        assertQuery("*[ text = '营养' ]", "text", 2, n -> "营养".equals(n.getText()));
+        assertQuery("*[index=0]", null, -1, n -> n.getIndex() == 0);
+        assertQuery("ImageView[index=1][enabled]", null, -1, n -> isA(n, "ImageView") && n.getIndex() == 1
+            && n.isEnabled());
+    }
+
+    @Test
+    public void testCombinators() {
+        assertQuery("LinearLayout > TextView", null, -1,
+            n -> isA(n, "TextView") && isA(n.getParent(), "LinearLayout"));
+        assertQuery("RecyclerView [resource-id=" + TITLE + "]", "resource-id", 5,
+            n -> TITLE.equals(n.getResourceId()) && hasAncestor(n, p -> isA(p, "RecyclerView")));
+        assertQuery("RecyclerView > [resource-id=" + TITLE + "]", "resource-id", 0,
+            n -> TITLE.equals(n.getResourceId()) && isA(n.getParent(), "RecyclerView"));
+        assertQuery("FrameLayout > LinearLayout > FrameLayout", null, -1,
+            n -> isA(n, "FrameLayout") && isA(n.getParent(), "LinearLayout")
+            && isA(n.getParent().getParent(), "FrameLayout"));
+        assertQuery("RecyclerView  *[clickable]>TextView", null, -1,
+            n -> isA(n, "TextView") && n.getParent().isClickable()
+            && hasAncestor(n.getParent(), p -> isA(p, "RecyclerView")));
+    }
+
+    @Test
+    public void testIndexPreference() {
+        assertEquals("resource-id", UIAQuery.compile("android.widget.TextView[text=a][resource-id=b]")
+            .getIndexAttribute());
+        assertEquals("text", UIAQuery.compile("*[package=p][content-desc=c][text=a]").getIndexAttribute());
+        assertEquals("content-desc", UIAQuery.compile("*[package=p][content-desc=c]").getIndexAttribute());
+        assertEquals("class", UIAQuery.compile("*[package=p][class=android.widget.TextView]").getIndexAttribute());
+        assertEquals("package", UIAQuery.compile("TextView[package=p]").getIndexAttribute());
+        assertNull(UIAQuery.compile("[resource-id=" + TITLE + "] TextView").getIndexAttribute());
+        assertNull(UIAQuery.compile("*[text~=a][text*=a][text^=a][index=1]").getIndexAttribute());
+    }
+
+    @Test
+    public void testFindAll() {
+        UIAQuery[] queries = {
+            UIAQuery.compile("TextView"),
+            UIAQuery.compile("[resource-id=" + TITLE + "]"),
+            UIAQuery.compile("*[clickable]"),
+            UIAQuery.compile("RecyclerView > *"),
+            UIAQuery.compile("*[text=营养]")
+        };
+        List<List<UIANode>> found = UIAQuery.findAll(hierarchy, queries);
+        assertEquals(queries.length, found.size());
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(queries[i].toString(), queries[i].find(hierarchy), found.get(i));
+            assertFalse(queries[i].toString(), found.get(i).isEmpty());
+        }
+        assertSame(found.get(1).get(0), queries[1].findFirst(hierarchy));
+        assertNull(UIAQuery.compile("Button").findFirst(hierarchy));
+    }
+
+    @Test
+    public void testInvalid() {
+        String[] invalid = {"", " ", "TextView[", "TextView[text]", "TextView[text=a", "TextView[foo=1]",
+            "TextView[clickable=yes]", "TextView[clickable~=true]", "TextView[text~='(']", "TextView[text='a]",
+            "TextView[text!=a]", "TextView >", "> TextView", "TextView,Button", "TextView]", "#id"};
+        for (String query : invalid) {
+            try {
+                UIAQuery.compile(query);
+                fail("query '" + query + "' should be invalid");
+            } catch (UIAException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().startsWith("Invalid query '" + query + "' at "));
+            }
+        }
+    }
+
+    @Test
+    public void testCache() {
+        UIAQuery query = UIAQuery.compile("LinearLayout > TextView[clickable]");
+        assertSame(query, UIAQuery.compile("LinearLayout > TextView[clickable]"));
+        assertEquals("LinearLayout > TextView[clickable]", query.toString());
+    }
+
+    /**
+     * Checks find, matches and the index pushdown of a query against a plain scan of all nodes.
+     *
+     * @param count expected number of matched nodes, or -1 for at least one
+     */
+    private static void assertQuery(String text, String indexAttribute, int count, Predicate<UIANode> expected) {
+        UIAQuery query = UIAQuery.compile(text);
+        assertEquals(text, indexAttribute, query.getIndexAttribute());
+        List<UIANode> scanned = all.stream().filter(expected).collect(Collectors.toList());
+        if (count < 0) {
+            assertFalse(text, scanned.isEmpty());
+        } else {
+            assertEquals(text, count, scanned.size());
+        }
+        assertEquals(text, scanned, query.find(hierarchy));
+        assertEquals(text, scanned, all.stream().filter(query::matches).collect(Collectors.toList()));
+    }
+
+    private static boolean isA(UIANode node, String simpleName) {
+        return node != null && node.getKlass().endsWith("." + simpleName);
+    }
+
+    private static boolean hasAncestor(UIANode node, Predicate<UIANode> predicate) {
+        for (UIANode p = node.getParent(); p != null; p = p.getParent()) {
+            if (predicate.test(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void collect(UIANode node, List<UIANode> nodes) {
+        nodes.add(node);
+        for (UIANode child : node.nodes()) {
+            collect(child, nodes);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.reactor.android.model;
+
+import com.android.uiautomator.stub.Rect;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.commons.io.IOUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Parsing of window hierarchy with the StAX reader, checked against DOM parsing it replaced.
+ *
+ * @author linsong wang
+ */
+public class UIATest {
+
+    static final String SAMPLE = "/com/tascape/qa/th/android/model/hierarchy.xml";
+
+    /**
+     * Bounds pattern of DOM parsing.
+     */
+    private static final Pattern BOUNDS = Pattern.compile("\\[(\\d+?),(\\d+?)\\]\\[(\\d+?),(\\d+?)\\]");
+
+    private static byte[] sample;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        try (InputStream in = UIATest.class.getResourceAsStream(SAMPLE)) {
+            sample = IOUtils.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        WindowHierarchy stax = UIA.parseHierarchy(new ByteArrayInputStream(sample), null);
+        WindowHierarchy dom = parseWithDom(sample);
+        assertEquals(dom.getRotation(), stax.getRotation());
+        assertEquals(100, assertTree(dom.getRoot(), stax.getRoot()));
+        assertNull(stax.getRoot().getParent());
+        assertEquals(27, stax.findByClass(TextView.CLASS_ANME).size());
+    }
+
+    @Test
+    public void testSharedStrings() throws IOException {
+        WindowHierarchy wh = UIA.parseHierarchy(new ByteArrayInputStream(sample), null);
+        UIANode[] nodes = wh.getRoot().nodes();
+        UIANode last = nodes[nodes.length - 1];
+        assertSame(wh.getRoot().getPakkage(), last.getPakkage());
+    }
+
+    @Test
+    public void testEntitiesCommentsAndSecondRoot() throws Exception {
+        String xml = "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>"
+            + "<hierarchy rotation=\"1\">\n"
+            + "  <!-- <node class=\"android.widget.Button\" /> -->\n"
+            + "  <node index=\"0\" text=\"\" class=\"android.widget.FrameLayout\" package=\"p\""
+            + " bounds=\"[0,0][10,20]\">"
+            + "    <node index=\"0\" text=\"a &amp; b &lt;c&gt; &quot;d&quot; &#x4e2d;文\" resource-id=\"p:id/t\""
+            + " class=\"android.widget.TextView\" package=\"p\" content-desc=\"\" clickable=\"true\""
+            + " bounds=\"[1,2][3,4]\" />\n"
+            + "    <node index=\"1\" text=\"\" class=\"com.example.CustomView\" package=\"p\" checked=\"true\""
+            + " bounds=\"[0,10][10,20]\"><node index=\"0\" class=\"android.widget.Button\" text=\"ok\""
+            + " bounds=\"[0,10][5,20]\"/></node>\n"
+            + "  </node>\n"
+            + "  <node index=\"1\" text=\"ignored\" class=\"android.widget.Button\" bounds=\"[0,0][1,1]\" />\n"
+            + "</hierarchy>";
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        WindowHierarchy stax = UIA.parseHierarchy(new ByteArrayInputStream(bytes), null);
+        assertEquals("1", stax.getRotation());
+        assertEquals(4, assertTree(parseWithDom(bytes).getRoot(), stax.getRoot()));
+
+        UIANode text = stax.getRoot().nodes()[0];
+        assertTrue(text instanceof TextView);
+        assertEquals("a & b <c> \"d\" 中文", text.getText());
+        assertEquals("p:id/t", text.getResourceId());
+        assertTrue(text.isClickable());
+        assertEquals(new Rect(1, 2, 3, 4), text.getBounds());
+        assertTrue(stax.getRoot().nodes()[1].isChecked());
+        assertTrue(stax.getRoot().nodes()[1].nodes()[0] instanceof Button);
+        assertTrue(stax.findByText("ignored").isEmpty());
+    }
+
+    @Test(expected = UIAException.class)
+    public void testNoNode() throws IOException {
+        byte[] bytes = "<hierarchy rotation=\"0\"></hierarchy>".getBytes(StandardCharsets.UTF_8);
+        UIA.parseHierarchy(new ByteArrayInputStream(bytes), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformed() throws IOException {
+        byte[] bytes = "<hierarchy rotation=\"0\"><node class=\"a\"></hierarchy>".getBytes(StandardCharsets.UTF_8);
+        UIA.parseHierarchy(new ByteArrayInputStream(bytes), null);
+    }
+
+    @Test
+    public void testCompactHierarchy() throws IOException {
+        WindowHierarchy wh = UIA.parseHierarchy(new ByteArrayInputStream(sample), null);
+        CompactHierarchy ch = UIA.parseCompactHierarchy(new ByteArrayInputStream(sample));
+        assertEquals(wh.getRotation(), ch.getRotation());
+        assertEquals(100, ch.size());
+        assertEquals(100, assertTree(wh.getRoot(), ch.toWindowHierarchy(null).getRoot()));
+
+        String title = "com.mykaishi.xinkaishi:id/community_thread_title";
+        assertEquals(wh.findByResourceId(title).get(0), ch.getNode(ch.findByResourceId(title), null));
+        assertEquals(wh.findByText("营养").get(0), ch.getNode(ch.findByText("营养"), null));
+        assertEquals(CompactHierarchy.NONE, ch.findByText("no such text"));
+        assertEquals(CompactHierarchy.NONE, ch.findByResourceId(null));
+        assertEquals(0, ch.findByResourceId(""));
+    }
+
+    @Test
+    public void testParseBounds() {
+        String[] valid = {"[0,0][1080,1812]", "[0,0][0,0]", "[12,345][6789,10]", "[007,08][09,10]",
+            "[2147483647,0][1,1]"};
+        for (String bounds : valid) {
+            Matcher m = BOUNDS.matcher(bounds);
+            assertTrue(bounds, m.matches());
+            Rect expected = new Rect(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)),
+                Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
+            assertEquals(bounds, expected, UIA.parseBounds(bounds));
+        }
+
+        String[] invalid = {"", "[", "[]", "[0,0]", "[0,0][1,1", "[0,0][1,1]]", "[0,0] [1,1]", "[-1,0][1,1]",
+            "[0,0][1,1,2]", "(0,0)(1,1)", "[0;0][1;1]", "[ 0,0][1,1]", "[0,0][1,1] ", "[a,0][1,1]", "[0,,0][1,1]"};
+        for (String bounds : invalid) {
+            assertTrue(bounds, !BOUNDS.matcher(bounds).matches());
+            try {
+                UIA.parseBounds(bounds);
+                fail(bounds + " should not be parsed");
+            } catch (UIAException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains(bounds));
+            }
+        }
+    }
+
+    /**
+     * Parses hierarchy the way it was before the StAX reader, with the DOM of the whole document.
+     */
+    private static WindowHierarchy parseWithDom(byte[] xml) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new ByteArrayInputStream(xml));
+        Element doc = document.getDocumentElement();
+        NodeList nl = doc.getChildNodes();
+        for (int i = 0; i < nl.getLength(); i++) {
+            UIANode uiNode = UIA.parseNode(nl.item(i));
+            if (uiNode != null) {
+                WindowHierarchy hierarchy = new WindowHierarchy(uiNode);
+                hierarchy.setRotation(doc.getAttribute("rotation"));
+                return hierarchy;
+            }
+        }
+        throw new UIAException("Cannot parse view hierarchy");
+    }
+
+    /**
+     * @return number of nodes in tree
+     */
+    private static int assertTree(UIANode expected, UIANode actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.toString(), expected, actual);
+        assertEquals(expected.toString(), expected.nodes().length, actual.nodes().length);
+        int count = 1;
+        for (int i = 0; i < expected.nodes().length; i++) {
+            assertSame(actual, actual.nodes()[i].getParent());
+            count += assertTree(expected.nodes()[i], actual.nodes()[i]);
+        }
+        return count;
+    }
+}